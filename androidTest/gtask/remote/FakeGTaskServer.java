@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的GTask服务端模拟
+ * 按GTaskStringUtils定义的action_list格式处理create、update、get_all请求，不访问网络：
+ * 1. 请求可设置固定延迟，模拟网络往返时间
+ * 2. 可按比例随机注入NetworkFailureException，随机数种子固定，结果可以复现
+ * 3. get_all的响应由单独的线程边生成边写入管道，客户端用GTaskResponseDecoder流式读取
+ * 同时实现DeltaSyncEngine.RemoteStore，可直接驱动DeltaSyncEngine和SyncPipeline，用于离线测量同步性能
+ */
+public class FakeGTaskServer implements DeltaSyncEngine.RemoteStore {
+    private static final String TAG = FakeGTaskServer.class.getSimpleName();
+
+    // 模拟服务端分配的gid前缀
+    public static final String GID_PREFIX = "fake-";
+
+    // 管道缓冲区大小
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 服务端保存的任务
+     */
+    private static class Entity {
+        String gid;
+        String name;
+        String notes;
+        long lastModified;
+        boolean deleted;
+    }
+
+    private final LinkedHashMap<String, Entity> mEntities = new LinkedHashMap<String, Entity>();
+    private final AtomicLong mClock = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final Random mRandom;
+    private int mNextId;
+    private volatile long mLatencyMs;
+    private volatile float mFailureRate;
+
+    public FakeGTaskServer() {
+        this(0);
+    }
+
+    /**
+     * @param seed 故障注入使用的随机数种子
+     */
+    public FakeGTaskServer(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * 设置每个请求的延迟
+     */
+    public void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * 设置请求失败的比例，0表示从不失败，1表示总是失败
+     */
+    public void setFailureRate(float failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Wrong failure rate:" + failureRate);
+        }
+        mFailureRate = failureRate;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public synchronized int getTaskCount() {
+        return mEntities.size();
+    }
+
+    /**
+     * 生成count条合成的文本便签，内容格式与DeltaSyncEngine上传的本地内容一致
+     */
+    public synchronized void seed(int count) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            try {
+                String text = "Synthetic note " + i + "\nline 2 of note " + i;
+                JSONObject note = new JSONObject();
+                note.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                note.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                note.put(NoteColumns.SNIPPET, text);
+                note.put(NoteColumns.CREATED_DATE, now);
+                note.put(NoteColumns.MODIFIED_DATE, now);
+                JSONObject data = new JSONObject();
+                data.put(DataColumns.MIME_TYPE, DataConstants.NOTE);
+                data.put(DataColumns.CONTENT, text);
+                JSONObject content = new JSONObject();
+                content.put(GTaskStringUtils.META_HEAD_NOTE, note);
+                content.put(GTaskStringUtils.META_HEAD_DATA, new JSONArray().put(data));
+
+                Entity entity = new Entity();
+                entity.gid = GID_PREFIX + (mNextId++);
+                entity.name = text;
+                entity.notes = content.toString();
+                entity.lastModified = mClock.incrementAndGet();
+                mEntities.put(entity.gid, entity);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 修改count条任务的内容，模拟其他设备上的编辑
+     */
+    public synchronized void touch(int count) {
+        int touched = 0;
+        for (Entity entity : mEntities.values()) {
+            if (touched++ >= count) {
+                break;
+            }
+            entity.lastModified = mClock.incrementAndGet();
+        }
+    }
+
+    /**
+     * 处理一个action_list请求
+     * @param request 包含GTASK_JSON_ACTION_LIST的请求
+     * @return 响应，包含GTASK_JSON_RESULTS和GTASK_JSON_LATEST_SYNC_POINT
+     * @throws NetworkFailureException 注入的网络故障
+     */
+    public JSONObject post(JSONObject request) throws NetworkFailureException {
+        simulateNetwork();
+        try {
+            JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+            JSONArray results = new JSONArray();
+            synchronized (this) {
+                for (int i = 0; i < actions.length(); i++) {
+                    results.put(handleAction(actions.getJSONObject(i)));
+                }
+            }
+            JSONObject response = new JSONObject();
+            response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+            response.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, mClock.get());
+            return response;
+        } catch (JSONException e) {
+            Log.e(TAG, "Bad request: " + e.toString());
+            throw new ActionFailureException("bad request");
+        }
+    }
+
+    private JSONObject handleAction(JSONObject action) throws JSONException {
+        String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+
+        Entity entity;
+        if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+            entity = new Entity();
+            entity.gid = GID_PREFIX + (mNextId++);
+            mEntities.put(entity.gid, entity);
+            result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, entity.gid);
+        } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+            entity = mEntities.get(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+            if (entity == null) {
+                throw new JSONException("unknown task " + action.optString(GTaskStringUtils.GTASK_JSON_ID));
+            }
+        } else {
+            throw new JSONException("unsupported action " + type);
+        }
+
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+            entity.name = delta.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+            entity.notes = delta.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+        }
+        entity.deleted = delta.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, entity.deleted);
+        entity.lastModified = mClock.incrementAndGet();
+        result.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entity.lastModified);
+        return result;
+    }
+
+    /**
+     * 处理get_all请求，返回watermark之后变化的任务（包括已删除的）
+     * 响应格式为{"tasks":[...],"latest_sync_point":...}，由后台线程边生成边写入
+     * @return 响应输入流，由调用方读完后关闭
+     */
+    public InputStream getAll(final long watermark) throws NetworkFailureException {
+        simulateNetwork();
+        final List<Entity> changed = new ArrayList<Entity>();
+        synchronized (this) {
+            for (Entity entity : mEntities.values()) {
+                if (entity.lastModified > watermark) {
+                    changed.add(copyOf(entity));
+                }
+            }
+        }
+
+        final PipedInputStream in = new PipedInputStream(PIPE_BUFFER_SIZE);
+        final PipedOutputStream out;
+        try {
+            out = new PipedOutputStream(in);
+        } catch (IOException e) {
+            throw new NetworkFailureException("open response stream failed", e);
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                JsonWriter writer = null;
+                try {
+                    writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+                    writer.beginObject();
+                    writer.name(GTaskStringUtils.GTASK_JSON_TASKS).beginArray();
+                    for (Entity entity : changed) {
+                        writer.beginObject();
+                        writer.name(GTaskStringUtils.GTASK_JSON_ID).value(entity.gid);
+                        writer.name(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE)
+                                .value(GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+                        writer.name(GTaskStringUtils.GTASK_JSON_NAME).value(entity.name);
+                        writer.name(GTaskStringUtils.GTASK_JSON_NOTES).value(entity.notes);
+                        writer.name(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)
+                                .value(entity.lastModified);
+                        writer.name(GTaskStringUtils.GTASK_JSON_DELETED).value(entity.deleted);
+                        writer.endObject();
+                    }
+                    writer.endArray();
+                    writer.name(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT).value(mClock.get());
+                    writer.endObject();
+                } catch (IOException e) {
+                    // 客户端提前关闭了输入流
+                    Log.w(TAG, "Response stream closed: " + e.toString());
+                } finally {
+                    try {
+                        if (writer != null) {
+                            writer.close();
+                        } else {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Close response stream failed: " + e.toString());
+                    }
+                }
+            }
+        }, TAG).start();
+        return in;
+    }
+
+    public void getChangedNodes(long watermark, GTaskResponseDecoder.NodeHandler handler)
+            throws NetworkFailureException {
+        InputStream in = getAll(watermark);
+        try {
+            GTaskResponseDecoder.readNodes(in, GTaskStringUtils.GTASK_JSON_TASKS,
+                    new GTaskResponseDecoder.NodeFactory() {
+                        public Node create() {
+                            return new RemoteNote();
+                        }
+                    }, handler);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Close response failed: " + e.toString());
+            }
+        }
+    }
+
+    public long getWatermark() throws NetworkFailureException {
+        simulateNetwork();
+        return mClock.get();
+    }
+
+    public Node push(int action, JSONObject local, Node node) throws NetworkFailureException {
+        RemoteNote note = node instanceof RemoteNote ? (RemoteNote) node : new RemoteNote();
+        if (action != Node.SYNC_ACTION_ADD_REMOTE && note.getGid() == null) {
+            // 远程没有变化时计划项中没有节点，gid取自本地笔记
+            JSONObject localNote = local.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+            note.setGid(node != null ? node.getGid()
+                    : localNote != null ? localNote.optString(NoteColumns.GTASK_ID) : null);
+        }
+        JSONObject actionJson;
+        if (action == Node.SYNC_ACTION_ADD_REMOTE) {
+            note.setContentByLocalJSON(local);
+            actionJson = note.getCreateAction(0);
+        } else if (action == Node.SYNC_ACTION_UPDATE_REMOTE) {
+            note.setContentByLocalJSON(local);
+            actionJson = note.getUpdateAction(0);
+        } else if (action == Node.SYNC_ACTION_DEL_REMOTE) {
+            note.setDeleted(true);
+            actionJson = note.getUpdateAction(0);
+        } else {
+            throw new IllegalArgumentException("Not a remote action:" + action);
+        }
+
+        try {
+            JSONObject request = new JSONObject();
+            request.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, new JSONArray().put(actionJson));
+            JSONObject result = post(request).getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS)
+                    .getJSONObject(0);
+            if (result.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                note.setGid(result.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            }
+            note.setLastModified(result.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("bad push response");
+        }
+        return note;
+    }
+
+    private void simulateNetwork() throws NetworkFailureException {
+        mRequestCount.incrementAndGet();
+        long latency = mLatencyMs;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkFailureException("request interrupted", e);
+            }
+        }
+        float failureRate = mFailureRate;
+        if (failureRate > 0) {
+            boolean fail;
+            synchronized (mRandom) {
+                fail = mRandom.nextFloat() < failureRate;
+            }
+            if (fail) {
+                throw new NetworkFailureException("injected network failure");
+            }
+        }
+    }
+
+    private static Entity copyOf(Entity entity) {
+        Entity copy = new Entity();
+        copy.gid = entity.gid;
+        copy.name = entity.name;
+        copy.notes = entity.notes;
+        copy.lastModified = entity.lastModified;
+        copy.deleted = entity.deleted;
+        return copy;
+    }
+
+    /**
+     * 模拟服务端的任务节点，内容字段保存DeltaSyncEngine的本地内容JSON
+     */
+    public static class RemoteNote extends Node {
+        private String mNotes;
+
+        public String getNotes() {
+            return mNotes;
+        }
+
+        @Override
+        public JSONObject getCreateAction(int actionId) {
+            try {
+                JSONObject action = new JSONObject();
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                        GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE);
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+                action.put(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA, getEntityDelta());
+                return action;
+            } catch (JSONException e) {
+                throw new ActionFailureException("fail to generate create action");
+            }
+        }
+
+        @Override
+        public JSONObject getUpdateAction(int actionId) {
+            try {
+                JSONObject action = new JSONObject();
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                        GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE);
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+                action.put(GTaskStringUtils.GTASK_JSON_ID, getGid());
+                action.put(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA, getEntityDelta());
+                return action;
+            } catch (JSONException e) {
+                throw new ActionFailureException("fail to generate update action");
+            }
+        }
+
+        private JSONObject getEntityDelta() throws JSONException {
+            JSONObject delta = new JSONObject();
+            delta.put(GTaskStringUtils.GTASK_JSON_NAME, getName());
+            delta.put(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+            delta.put(GTaskStringUtils.GTASK_JSON_DELETED, getDeleted());
+            if (mNotes != null) {
+                delta.put(GTaskStringUtils.GTASK_JSON_NOTES, mNotes);
+            }
+            return delta;
+        }
+
+        @Override
+        public void setContentByRemoteJSON(JSONObject js) {
+            setGid(js.optString(GTaskStringUtils.GTASK_JSON_ID, null));
+            setName(js.optString(GTaskStringUtils.GTASK_JSON_NAME));
+            setLastModified(js.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
+            setDeleted(js.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED));
+            mNotes = js.optString(GTaskStringUtils.GTASK_JSON_NOTES, null);
+        }
+
+        @Override
+        public boolean readRemoteField(String name, JsonReader reader) throws IOException {
+            if (GTaskStringUtils.GTASK_JSON_NOTES.equals(name)) {
+                mNotes = nextString(reader);
+                return true;
+            }
+            return super.readRemoteField(name, reader);
+        }
+
+        @Override
+        public void setContentByLocalJSON(JSONObject js) {
+            mNotes = js.toString();
+            JSONObject note = js.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+            setName(note != null ? note.optString(NoteColumns.SNIPPET) : "");
+        }
+
+        @Override
+        public JSONObject getLocalJSONFromContent() {
+            try {
+                return mNotes != null ? new JSONObject(mNotes) : null;
+            } catch (JSONException e) {
+                Log.w(TAG, "Bad notes content of " + getGid());
+                return null;
+            }
+        }
+
+        /**
+         * 与任务节点相同的规则：SYNC_ID记录上次同步时的远程修改时间
+         */
+        @Override
+        public int getSyncAction(Cursor c) {
+            boolean remoteChanged = c.getLong(DeltaSyncEngine.SYNC_ID_COLUMN) != getLastModified();
+            if (c.getInt(DeltaSyncEngine.LOCAL_MODIFIED_COLUMN) == 0) {
+                return remoteChanged ? SYNC_ACTION_UPDATE_LOCAL : SYNC_ACTION_NONE;
+            }
+            return remoteChanged ? SYNC_ACTION_UPDATE_CONFLICT : SYNC_ACTION_UPDATE_REMOTE;
+        }
+    }
+}
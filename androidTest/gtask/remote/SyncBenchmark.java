@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 同步性能测试
+ * 用FakeGTaskServer生成合成账户，通过SyncPipeline同步到本地，记录：
+ * 1. 首次同步和无变化时再次同步的耗时
+ * 2. NotesProvider的访问次数（批量操作计一次）
+ * 3. 同步期间堆内存占用的峰值（相对同步开始前）
+ * 每次测试都检查同步结果：首次同步后本地便签数等于账户规模，再次同步没有写入和上传；
+ * 注入网络延迟和故障时同步失败，水位保持不变。
+ * 十万条便签的账户标记为LargeTest，只在按size=large运行时测试。
+ * NotesProvider运行在ProviderTestCase2提供的隔离上下文中，数据库文件和同步水位都与应用分开，
+ * 每次测试结束后只删除本次同步写入的笔记
+ */
+public class SyncBenchmark extends ProviderTestCase2<NotesProvider> {
+    private static final String TAG = SyncBenchmark.class.getSimpleName();
+
+    // 默认测试的账户规模
+    public static final int[] DEFAULT_SIZES = new int[] { 1000, 10000 };
+
+    // 大账户的规模，耗时较长，不在默认测试中
+    public static final int LARGE_SIZE = 100000;
+
+    // 故障注入测试的账户规模、请求延迟、失败比例和随机数种子
+    private static final int FAILURE_TEST_SIZE = 200;
+    private static final long FAILURE_LATENCY_MS = 5;
+    private static final float FAILURE_RATE = 0.2f;
+    private static final long FAILURE_SEED = 42;
+
+    // 堆内存采样间隔
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 20;
+
+    // 隔离上下文中SharedPreferences文件名的前缀
+    private static final String PREFERENCE_PREFIX = "sync_benchmark.";
+
+    // 按ID删除笔记时每条语句的ID数
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    /**
+     * 一次测试的结果
+     */
+    public static class Result {
+        public int noteCount;          // 账户中的便签数
+        public long wallTimeMs;        // 首次同步耗时
+        public long resyncTimeMs;      // 无变化时再次同步的耗时
+        public long providerCalls;     // 首次同步访问NotesProvider的次数
+        public long remoteRequests;    // 首次同步的远程请求数
+        public long peakHeapBytes;     // 首次同步期间堆内存增长的峰值
+        public int localNoteCount;     // 首次同步后本地新增的便签数
+        public long resyncApplied;     // 再次同步写入本地的计划项数
+        public long resyncPushed;      // 再次同步上传的计划项数
+
+        @Override
+        public String toString() {
+            return noteCount + " notes: " + wallTimeMs + "ms, resync " + resyncTimeMs
+                    + "ms, " + providerCalls + " provider calls, " + remoteRequests
+                    + " remote requests, peak heap +" + (peakHeapBytes / 1024) + "KB";
+        }
+    }
+
+    /**
+     * 同步水位写入单独的SharedPreferences文件，不影响应用的同步状态
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        BenchmarkContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return super.getSharedPreferences(PREFERENCE_PREFIX + name, mode);
+        }
+    }
+
+    private Context mBenchmarkContext;
+
+    public SyncBenchmark() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBenchmarkContext = new BenchmarkContext(getMockContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DeltaSyncEngine.resetWatermark(mBenchmarkContext);
+        super.tearDown();
+    }
+
+    /**
+     * 记录流水线最后一次报告的进度，run结束前的最后一次报告包含最终的统计
+     */
+    private static class ProgressRecorder implements SyncPipeline.ProgressListener {
+        private volatile SyncPipeline.SyncProgress mLast;
+
+        public void onProgress(SyncPipeline.SyncProgress progress) {
+            mLast = progress;
+        }
+
+        long getProcessed(int stage) {
+            SyncPipeline.SyncProgress last = mLast;
+            return last != null ? last.processed[stage] : 0;
+        }
+    }
+
+    /**
+     * 按DEFAULT_SIZES依次测试，没有网络延迟和故障注入
+     */
+    @MediumTest
+    public void testDefaultSizes() throws NetworkFailureException {
+        for (int size : DEFAULT_SIZES) {
+            assertSynced(run(size, 0, 0));
+        }
+    }
+
+    /**
+     * 测试十万条便签的账户
+     */
+    @LargeTest
+    public void testLargeAccount() throws NetworkFailureException {
+        assertSynced(run(LARGE_SIZE, 0, 0));
+    }
+
+    /**
+     * 上传时注入网络延迟和故障：同步应以NetworkFailureException失败，水位保持上次成功同步的值
+     */
+    @MediumTest
+    public void testFailureKeepsWatermarks() throws NetworkFailureException {
+        Context context = mBenchmarkContext;
+        ContentResolver resolver = getMockContentResolver();
+        FakeGTaskServer server = new FakeGTaskServer(FAILURE_SEED);
+        server.seed(FAILURE_TEST_SIZE);
+        DeltaSyncEngine.resetWatermark(context);
+
+        Set<Long> existingIds = queryNoteIds(resolver);
+        try {
+            DeltaSyncEngine engine = new DeltaSyncEngine(context, server);
+            assertTrue(new SyncPipeline(engine, null).run());
+            long localWatermark = engine.getLocalWatermark();
+            long remoteWatermark = engine.getRemoteWatermark();
+            assertTrue(localWatermark > 0);
+
+            // 所有同步下来的便签都标记为本地修改，下次同步需要逐条上传
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            int modified = resolver.update(Notes.CONTENT_NOTE_URI, values,
+                    NoteColumns.GTASK_ID + " LIKE ?",
+                    new String[] { FakeGTaskServer.GID_PREFIX + "%" });
+            assertEquals(FAILURE_TEST_SIZE, modified);
+
+            server.setLatency(FAILURE_LATENCY_MS);
+            server.setFailureRate(FAILURE_RATE);
+            try {
+                new SyncPipeline(engine, null).run();
+                fail("Sync should fail with injected network failures");
+            } catch (NetworkFailureException e) {
+                // 注入的故障
+            }
+            assertEquals(localWatermark, engine.getLocalWatermark());
+            assertEquals(remoteWatermark, engine.getRemoteWatermark());
+        } finally {
+            cleanUp(resolver, existingIds);
+        }
+    }
+
+    /**
+     * 首次同步应写入账户中的全部便签，再次同步不应有任何写入和上传
+     */
+    private static void assertSynced(Result result) {
+        Log.i(TAG, result.toString());
+        assertEquals(result.noteCount, result.localNoteCount);
+        assertEquals(0, result.resyncApplied);
+        assertEquals(0, result.resyncPushed);
+    }
+
+    /**
+     * 测试一个规模的账户
+     * @param noteCount 合成便签数
+     * @param latencyMs 每个远程请求的延迟
+     * @param failureRate 远程请求失败的比例
+     * @throws NetworkFailureException 注入的故障导致同步失败
+     */
+    private Result run(int noteCount, long latencyMs, float failureRate)
+            throws NetworkFailureException {
+        Context context = mBenchmarkContext;
+        ContentResolver resolver = getMockContentResolver();
+        FakeGTaskServer server = new FakeGTaskServer();
+        server.seed(noteCount);
+        server.setLatency(latencyMs);
+        server.setFailureRate(failureRate);
+        DeltaSyncEngine.resetWatermark(context);
+
+        Result result = new Result();
+        result.noteCount = noteCount;
+        Set<Long> existingIds = queryNoteIds(resolver);
+        HeapSampler sampler = new HeapSampler();
+        try {
+            long callsBefore = getProviderCalls(resolver);
+            long requestsBefore = server.getRequestCount();
+            sampler.start();
+            long start = SystemClock.elapsedRealtime();
+            new SyncPipeline(new DeltaSyncEngine(context, server), null).run();
+            result.wallTimeMs = SystemClock.elapsedRealtime() - start;
+            result.peakHeapBytes = sampler.finish();
+            result.providerCalls = getProviderCalls(resolver) - callsBefore;
+            result.remoteRequests = server.getRequestCount() - requestsBefore;
+            result.localNoteCount = queryNoteIds(resolver).size() - existingIds.size();
+
+            // 没有任何变化时再同步一次，耗时应与账户规模无关
+            ProgressRecorder recorder = new ProgressRecorder();
+            start = SystemClock.elapsedRealtime();
+            new SyncPipeline(new DeltaSyncEngine(context, server), recorder).run();
+            result.resyncTimeMs = SystemClock.elapsedRealtime() - start;
+            result.resyncApplied = recorder.getProcessed(SyncPipeline.STAGE_APPLY_LOCAL);
+            result.resyncPushed = recorder.getProcessed(SyncPipeline.STAGE_PUSH_REMOTE);
+        } finally {
+            sampler.finish();
+            cleanUp(resolver, existingIds);
+        }
+        return result;
+    }
+
+    private static Set<Long> queryNoteIds(ContentResolver resolver) {
+        Set<Long> ids = new HashSet<Long>();
+        Cursor c = resolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 按ID删除本次测试写入的笔记，测试前已有的笔记不受影响
+     * @param existingIds 测试开始前已有的笔记ID
+     */
+    private static void cleanUp(ContentResolver resolver, Set<Long> existingIds) {
+        List<Long> inserted = new ArrayList<Long>();
+        for (Long id : queryNoteIds(resolver)) {
+            if (!existingIds.contains(id)) {
+                inserted.add(id);
+            }
+        }
+        int count = 0;
+        for (int from = 0; from < inserted.size(); from += DELETE_CHUNK_SIZE) {
+            List<Long> chunk = inserted.subList(from,
+                    Math.min(from + DELETE_CHUNK_SIZE, inserted.size()));
+            count += resolver.delete(Notes.CONTENT_NOTE_URI,
+                    NoteColumns.ID + " IN (" + TextUtils.join(",", chunk) + ")", null);
+        }
+        Log.d(TAG, "Removed " + count + " benchmark notes");
+    }
+
+    private static long getProviderCalls(ContentResolver resolver) {
+        Bundle stats = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_GET_CALL_STATS,
+                null, null);
+        if (stats == null) {
+            return 0;
+        }
+        return stats.getLong(Notes.CALL_STAT_QUERY) + stats.getLong(Notes.CALL_STAT_INSERT)
+                + stats.getLong(Notes.CALL_STAT_UPDATE) + stats.getLong(Notes.CALL_STAT_DELETE)
+                + stats.getLong(Notes.CALL_STAT_BATCH);
+    }
+
+    /**
+     * 在后台线程定期采样已用堆内存，记录相对开始时的最大增长
+     */
+    private static class HeapSampler extends Thread {
+        private volatile boolean mRunning = true;
+        private long mBaseline;
+        private volatile long mPeak;
+
+        HeapSampler() {
+            super(TAG + "-heap");
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            mBaseline = runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (mRunning) {
+                long used = runtime.totalMemory() - runtime.freeMemory() - mBaseline;
+                if (used > mPeak) {
+                    mPeak = used;
+                }
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * 停止采样并返回峰值，可以重复调用
+         */
+        long finish() {
+            mRunning = false;
+            interrupt();
+            return mPeak;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.SpannableStringBuilder;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.ui.ChecklistAdapter;
+
+/**
+ * 自动保存测试
+ * 按编辑界面的顺序操作清单：修改、自动保存取副本、立即保存，检查数据库中的正文
+ */
+public class NoteAutosaverTest extends ProviderTestCase2<NotesProvider> {
+
+    /**
+     * NoteAutosaver使用getApplicationContext，返回自身以便仍然访问测试用的NotesProvider
+     */
+    private static class IsolatedApplicationContext extends ContextWrapper {
+        IsolatedApplicationContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+
+    private Context mContext;
+    private WorkingNote mNote;
+    private ChecklistAdapter mAdapter;
+    private NoteAutosaver mAutosaver;
+
+    public NoteAutosaverTest() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new IsolatedApplicationContext(getMockContext());
+        mNote = WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE, 0);
+
+        mAdapter = new ChecklistAdapter(mContext, null);
+        mAdapter.setItems(new ChecklistAdapter.Item[] {
+                new ChecklistAdapter.Item("bread", false)
+        }, -1);
+        mNote.setWorkingText(mAdapter.getText());
+        assertTrue(mNote.saveNote());
+
+        // 与NoteEditActivity.takeChangedText相同，取副本时清除修改标记
+        mAutosaver = new NoteAutosaver(mContext, mNote, new NoteAutosaver.TextSource() {
+            public CharSequence takeChangedText() {
+                return mAdapter.isDirty() ? new SpannableStringBuilder(mAdapter.getText()) : null;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAutosaver.discard();
+        super.tearDown();
+    }
+
+    private String loadContent() {
+        return WorkingNote.load(mContext, mNote.getNoteId()).getContent();
+    }
+
+    /**
+     * 副本已经取出、还在后台队列中时立即保存，修改不能丢失
+     */
+    @MediumTest
+    public void testSaveNowAfterSnapshot() {
+        synchronized (mAutosaver) {
+            // 持有锁使后台线程不能写入副本，模拟副本还在队列中
+            mAdapter.setText(0, "milk");
+            mAutosaver.flush();
+            assertFalse(mAdapter.isDirty());
+            assertTrue(mAutosaver.saveNow(mAdapter.getText()));
+        }
+        assertTrue(loadContent().contains("milk"));
+    }
+
+    /**
+     * 取副本之后又有修改，立即保存的正文不能被队列中过时的副本覆盖
+     */
+    @MediumTest
+    public void testStaleSnapshotDoesNotOverwrite() throws InterruptedException {
+        synchronized (mAutosaver) {
+            mAdapter.setText(0, "milk");
+            mAutosaver.flush();
+            mAdapter.setText(0, "eggs");
+            assertTrue(mAutosaver.saveNow(mAdapter.getText()));
+        }
+
+        // 等待后台线程处理队列中的副本和保存
+        Thread.sleep(500);
+        String content = loadContent();
+        assertTrue(content.contains("eggs"));
+        assertFalse(content.contains("milk"));
+    }
+}
@@ -17,23 +17,71 @@
 package net.micode.notes.data;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 该类用于查询联系人信息。
  * 它通过电话号码查询联系人姓名，并使用缓存机制减少数据库查询次数。
+ * 缓存是有上限的LRU，线程安全：
+ * - 没有匹配联系人的号码也会缓存（负缓存），避免反复查询
+ * - 每个条目有存活时间，过期后重新查询
+ * - 通讯录变化时由内容观察者清空缓存
  */
 public class Contact {
-    // 用于缓存电话号码和联系人姓名的映射，以减少数据库查询次数
-    private static HashMap<String, String> sContactCache;
     private static final String TAG = "Contact";
 
+    // 缓存的最大条目数
+    private static final int CACHE_SIZE = 500;
+
+    // 找到联系人的条目存活时间
+    private static final long POSITIVE_TTL = 30 * 60 * 1000L;
+
+    // 没有联系人的条目存活时间，较短以便尽快发现新建的联系人
+    private static final long NEGATIVE_TTL = 5 * 60 * 1000L;
+
+    /**
+     * 缓存条目，name为null表示该号码没有匹配的联系人
+     */
+    private static class CacheEntry {
+        final String name;
+        final long expireTime;
+
+        CacheEntry(String name, long now) {
+            this.name = name;
+            this.expireTime = now + (name != null ? POSITIVE_TTL : NEGATIVE_TTL);
+        }
+    }
+
+    // 电话号码到联系人姓名的缓存，LruCache本身是线程安全的
+    private static final LruCache<String, CacheEntry> sContactCache =
+            new LruCache<String, CacheEntry>(CACHE_SIZE);
+
+    // 通讯录观察者，首次查询时注册
+    private static ContentObserver sContactsObserver;
+
+    // 缓存被清空的次数，调用方可以据此判断自己保存的姓名是否过期
+    // 观察者在binder线程回调，用AtomicInteger保证自增是原子的
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    // 统计计数（LruCache已经统计了命中、未命中和淘汰次数）
+    private static final AtomicLong sNegativeHitCount = new AtomicLong();
+    private static final AtomicLong sExpiredCount = new AtomicLong();
+
     /**
      * 查询联系人数据库的 SQL 语句。
      * 通过电话号码匹配联系人。
@@ -46,6 +94,57 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
+    /**
+     * 注册通讯录观察者，通讯录任何变化都会清空缓存
+     */
+    private static synchronized void ensureObserver(Context context) {
+        if (sContactsObserver != null) {
+            return;
+        }
+        sContactsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true, sContactsObserver);
+    }
+
+    /**
+     * 从缓存中查找号码
+     * @return 缓存条目，不存在或已过期时返回null
+     */
+    private static CacheEntry lookup(String phoneNumber) {
+        CacheEntry entry = sContactCache.get(phoneNumber);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireTime < System.currentTimeMillis()) {
+            sContactCache.remove(phoneNumber);
+            sExpiredCount.incrementAndGet();
+            return null;
+        }
+        if (entry.name == null) {
+            sNegativeHitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * 写入查询结果
+     * 查询期间通讯录发生变化时结果可能已经过时，不能留在缓存中。
+     * invalidate先增加代数再清空缓存，这里先写入再检查代数：
+     * 检查时代数未变，则之后的清空一定会清掉这个条目；代数已变，则由这里移除
+     * @param generation 开始查询前读取的缓存代数
+     */
+    private static void store(String phoneNumber, String name, long now, int generation) {
+        sContactCache.put(phoneNumber, new CacheEntry(name, now));
+        if (sGeneration.get() != generation) {
+            sContactCache.remove(phoneNumber);
+        }
+    }
+
     /**
      * 根据电话号码获取联系人姓名。
      *
@@ -54,16 +153,17 @@ public class Contact {
      * @return 如果找到联系人，则返回联系人姓名，否则返回 null。
      */
     public static String getContact(Context context, String phoneNumber) {
-        // 初始化联系人缓存 HashMap
-        if (sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
-        }
+        ensureObserver(context);
 
-        // 如果缓存中已有该电话号码对应的联系人姓名，则直接返回
-        if (sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+        // 如果缓存中已有该电话号码的结果（包括没有联系人的结果），则直接返回
+        CacheEntry entry = lookup(phoneNumber);
+        if (entry != null) {
+            return entry.name;
         }
 
+        // 记下查询前的缓存代数，查询期间通讯录变化时不缓存结果
+        int generation = sGeneration.get();
+
         // 生成匹配的 SQL 查询语句
         String selection = CALLER_ID_SELECTION.replace("+",
                 PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));
@@ -76,26 +176,158 @@ public class Contact {
                 new String[]{ phoneNumber },  // 绑定参数，防止 SQL 注入
                 null);
 
+        if (cursor == null) {
+            // 查询失败不是"没有联系人"，不做负缓存
+            Log.e(TAG, "Query contact failed with number:" + phoneNumber);
+            return null;
+        }
+
         // 处理查询结果
-        if (cursor != null && cursor.moveToFirst()) {
-            try {
+        try {
+            String name = null;
+            if (cursor.moveToFirst()) {
                 // 获取联系人姓名
-                String name = cursor.getString(0);
-                // 将结果存入缓存
-                sContactCache.put(phoneNumber, name);
-                return name;
-            } catch (IndexOutOfBoundsException e) {
-                // 捕获异常，防止崩溃，并记录日志
-                Log.e(TAG, " Cursor get string error " + e.toString());
-                return null;
-            } finally {
-                // 关闭游标，防止内存泄漏
-                cursor.close();
+                name = cursor.getString(0);
+            } else {
+                // 如果没有匹配的联系人，记录日志
+                Log.d(TAG, "No contact matched with number:" + phoneNumber);
             }
-        } else {
-            // 如果没有匹配的联系人，记录日志
-            Log.d(TAG, "No contact matched with number:" + phoneNumber);
+            // 将结果存入缓存
+            store(phoneNumber, name, System.currentTimeMillis(), generation);
+            return name;
+        } catch (IndexOutOfBoundsException e) {
+            // 捕获异常，防止崩溃，并记录日志
+            Log.e(TAG, " Cursor get string error " + e.toString());
             return null;
+        } finally {
+            // 关闭游标，防止内存泄漏
+            cursor.close();
+        }
+    }
+
+    /**
+     * 批量获取联系人姓名，所有未缓存的号码只查询一次联系人数据库。
+     * 先用各号码的min_match取出候选联系人，再用PhoneNumberUtils.compare逐个比对，
+     * 与单个查询时的PHONE_NUMBERS_EQUAL匹配规则一致。
+     *
+     * @param context 应用程序的上下文，用于访问 ContentResolver。
+     * @param phoneNumbers 要查询的电话号码集合。
+     * @return 电话号码到联系人姓名的映射，没有匹配联系人的号码不在结果中。
+     */
+    public static HashMap<String, String> getContacts(Context context,
+            Collection<String> phoneNumbers) {
+        ensureObserver(context);
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String number : phoneNumbers) {
+            if (TextUtils.isEmpty(number) || result.containsKey(number) || missing.contains(number)) {
+                continue;
+            }
+            CacheEntry entry = lookup(number);
+            if (entry == null) {
+                missing.add(number);
+            } else if (entry.name != null) {
+                result.put(number, entry.name);
+            }
         }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        int generation = sGeneration.get();
+        StringBuilder minMatches = new StringBuilder();
+        for (String number : missing) {
+            if (minMatches.length() > 0) {
+                minMatches.append(',');
+            }
+            minMatches.append(DatabaseUtils.sqlEscapeString(
+                    PhoneNumberUtils.toCallerIDMinMatch(number)));
+        }
+        String selection = Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
+                + " AND " + Data.RAW_CONTACT_ID + " IN "
+                + "(SELECT raw_contact_id "
+                + " FROM phone_lookup"
+                + " WHERE min_match IN (" + minMatches + "))";
+
+        Cursor cursor = context.getContentResolver().query(
+                Data.CONTENT_URI,
+                new String[]{ Phone.NUMBER, Phone.DISPLAY_NAME },
+                selection,
+                null,
+                null);
+        if (cursor == null) {
+            Log.e(TAG, "Query contacts failed");
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String candidate = cursor.getString(0);
+                for (String number : missing) {
+                    if (!result.containsKey(number) && PhoneNumberUtils.compare(number, candidate)) {
+                        result.put(number, cursor.getString(1));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // 找到的和没找到的号码都写入缓存
+        long now = System.currentTimeMillis();
+        for (String number : missing) {
+            store(number, result.get(number), now, generation);
+        }
+        return result;
+    }
+
+    /**
+     * 清空缓存，通讯录变化时由观察者调用
+     */
+    public static void invalidate() {
+        // 先增加代数再清空，见store
+        sGeneration.incrementAndGet();
+        sContactCache.evictAll();
+        Log.d(TAG, "Contact cache invalidated, " + getCacheStats());
+    }
+
+    /**
+     * 缓存代数，每次清空缓存加一
+     * 调用方保存姓名时一并记下代数，代数变化说明通讯录有更新
+     */
+    public static int getCacheGeneration() {
+        return sGeneration.get();
+    }
+
+    public static int getHitCount() {
+        return sContactCache.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sContactCache.missCount();
+    }
+
+    public static int getEvictionCount() {
+        return sContactCache.evictionCount();
+    }
+
+    public static long getNegativeHitCount() {
+        return sNegativeHitCount.get();
+    }
+
+    public static long getExpiredCount() {
+        return sExpiredCount.get();
+    }
+
+    /**
+     * 获取缓存统计信息，用于日志和调试
+     */
+    public static String getCacheStats() {
+        return "size=" + sContactCache.size()
+                + " hits=" + getHitCount()
+                + " negativeHits=" + getNegativeHitCount()
+                + " misses=" + getMissCount()
+                + " expired=" + getExpiredCount()
+                + " evictions=" + getEvictionCount();
     }
-}
\ No newline at end of file
+}
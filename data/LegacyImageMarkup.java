@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.text.TextUtils;
+
+import net.micode.notes.data.Notes.Attachment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 旧格式图片标记的转换工具
+ * 旧版本把图片以 [local]图片路径[/local] 的形式嵌在正文中，现在图片单独保存为附件数据，
+ * 正文中只保留Attachment.PLACEHOLDER。这里只处理纯文本，数据库升级和打开旧正文时共用
+ */
+public class LegacyImageMarkup {
+    public static final String TAG_START = "[local]";
+    public static final String TAG_END = "[/local]";
+
+    private static final char PLACEHOLDER = Attachment.PLACEHOLDER.charAt(0);
+
+    /**
+     * 一个旧格式标记在正文中的位置
+     */
+    public static class Marker {
+        public final int start;   // 起始位置
+        public final int end;     // 结束位置
+        public final String path; // 图片路径
+
+        Marker(int start, int end, String path) {
+            this.start = start;
+            this.end = end;
+            this.path = path;
+        }
+    }
+
+    private LegacyImageMarkup() {
+    }
+
+    /**
+     * 解析正文中的全部 [local]路径[/local] 标记
+     * 从上一个标记的结尾继续查找下一个[local]，每个字符最多被检查常数次；
+     * 路径为空或缺少结束标记的片段按普通文本处理
+     * @param text 便签正文
+     * @return 按出现顺序排列的图片标记
+     */
+    public static List<Marker> parse(CharSequence text) {
+        List<Marker> markers = new ArrayList<Marker>();
+        if (TextUtils.isEmpty(text)) {
+            return markers;
+        }
+
+        String str = text.toString();
+        int from = 0;
+        while (true) {
+            int start = str.indexOf(TAG_START, from);
+            if (start < 0) {
+                break;
+            }
+            int pathStart = start + TAG_START.length();
+            int pathEnd = str.indexOf(TAG_END, pathStart);
+            if (pathEnd < 0) {
+                break;  // 后面已经没有结束标记
+            }
+            // 路径中间又出现了[local]，说明前一个是不完整的标记，从新的起点继续
+            int nested = str.lastIndexOf(TAG_START, pathEnd - 1);
+            if (nested > start) {
+                start = nested;
+                pathStart = nested + TAG_START.length();
+            }
+            int end = pathEnd + TAG_END.length();
+            if (pathEnd > pathStart) {
+                markers.add(new Marker(start, end, str.substring(pathStart, pathEnd)));
+            }
+            from = end;
+        }
+        return markers;
+    }
+
+    /**
+     * 把旧格式正文中的图片标记替换为占位符
+     * @param content 旧格式正文
+     * @param outPaths 输出，按出现顺序排列的附件路径
+     * @return 替换后的正文，没有旧格式标记时原样返回
+     */
+    public static String migrate(String content, List<String> outPaths) {
+        List<Marker> markers = parse(content);
+        if (markers.isEmpty()) {
+            return content;
+        }
+        StringBuilder sb = new StringBuilder(content.length());
+        int from = 0;
+        for (Marker marker : markers) {
+            sb.append(content, from, marker.start).append(PLACEHOLDER);
+            outPaths.add(marker.path);
+            from = marker.end;
+        }
+        sb.append(content, from, content.length());
+        return sb.toString();
+    }
+}
@@ -65,14 +65,71 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;      // 普通笔记类型
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE; // 通话笔记类型
+        public static final String ATTACHMENT = Attachment.CONTENT_ITEM_TYPE; // 附件类型
     }
 
+    // 查询笔记时限制返回行数的URI参数，例如 content://micode_notes/note?limit=50
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * NotesProvider.call支持的方法名，用于配置和查看变化通知的合并情况
+     */
+    public static final String METHOD_SET_NOTIFY_INTERVAL = "set_notify_interval";
+    public static final String METHOD_GET_NOTIFY_STATS = "get_notify_stats";
+    public static final String METHOD_FLUSH_NOTIFY = "flush_notify";
+
+    // METHOD_GET_NOTIFY_STATS返回的统计项键名
+    public static final String NOTIFY_STAT_INTERVAL = "interval";      // 当前刷新间隔（毫秒）
+    public static final String NOTIFY_STAT_REQUESTED = "requested";    // 请求通知次数
+    public static final String NOTIFY_STAT_DISPATCHED = "dispatched";  // 实际发送次数
+    public static final String NOTIFY_STAT_SUPPRESSED = "suppressed";  // 被合并掉的次数
+    public static final String NOTIFY_STAT_DROPPED = "dropped";        // 因回滚丢弃的次数
+
+    /**
+     * NotesProvider.call支持的方法名，返回各类调用的累计次数
+     * 批量操作（applyBatch、bulkInsert）只计一次，其中包含的单个操作不再计入
+     */
+    public static final String METHOD_GET_CALL_STATS = "get_call_stats";
+
+    // METHOD_GET_CALL_STATS返回的统计项键名
+    public static final String CALL_STAT_QUERY = "query";
+    public static final String CALL_STAT_INSERT = "insert";
+    public static final String CALL_STAT_UPDATE = "update";
+    public static final String CALL_STAT_DELETE = "delete";
+    public static final String CALL_STAT_BATCH = "batch";
+
+    /**
+     * NotesProvider.call支持的方法名，从备份文件恢复便签，arg为备份文件的路径
+     * 文件格式见BackupFormat，返回恢复的行数，文件读取失败时返回null，格式错误时抛出IllegalArgumentException
+     */
+    public static final String METHOD_RESTORE_BACKUP = "restore_backup";
+
+    // METHOD_RESTORE_BACKUP返回的统计项键名
+    public static final String RESTORE_STAT_NOTES = "notes";       // 恢复的笔记和文件夹数
+    public static final String RESTORE_STAT_DATA = "data";         // 恢复的数据项数
+    public static final String RESTORE_STAT_SKIPPED = "skipped";   // 本地已存在而跳过的笔记数
+
+    // METHOD_RESTORE_BACKUP的extras中依次应用的增量备份文件路径（String数组），arg为其基于的完整备份
+    public static final String RESTORE_EXTRA_DELTAS = "deltas";
+
     // 笔记内容URI（查询所有笔记和文件夹）
     public static final Uri CONTENT_NOTE_URI = Uri.parse("content://" + AUTHORITY + "/note");
 
     // 数据内容URI（查询所有数据）
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * 导出用的只读URI，一次查询返回所有需要导出的文件夹、便签及其数据项（笔记表左连接数据表）
+     * 按文件夹分组：每个文件夹先返回一行文件夹本身（数据列为空），随后是其中的便签；根目录的便签在最后
+     * 同一便签的数据项相邻。列为NoteColumns的ID、PARENT_ID、TYPE、SNIPPET、MODIFIED_DATE
+     * 和DataColumns的CONTENT、MIME_TYPE、DATA1、DATA3，不支持指定投影、条件和排序
+     */
+    public static final Uri CONTENT_EXPORT_URI = Uri.parse("content://" + AUTHORITY + "/export");
+
+    // 已删除笔记记录URI（只支持查询和删除），列见DeletedNoteColumns
+    public static final Uri CONTENT_DELETED_NOTE_URI = Uri.parse("content://" + AUTHORITY
+            + "/deleted_note");
+
     /**
      * 笔记表的列定义接口
      */
@@ -127,6 +184,21 @@ public class Notes {
 
         /** 数据版本号（用于冲突检测），类型：LONG */
         public static final String VERSION = "version";
+
+        /** 本地变更序号，笔记或其数据项每次写入时由触发器设为全表最大值加一（用于增量备份），类型：LONG */
+        public static final String CHANGE_SEQ = "change_seq";
+    }
+
+    /**
+     * 已删除笔记记录表的列定义接口
+     * 删除笔记时由触发器写入，同一ID重新插入笔记时清除
+     */
+    public interface DeletedNoteColumns {
+        /** 被删除的笔记ID，类型：LONG */
+        public static final String NOTE_ID = "note_id";
+
+        /** 删除时间，类型：LONG（毫秒时间戳） */
+        public static final String DELETED_DATE = "deleted_date";
     }
 
     /**
@@ -175,6 +247,9 @@ public class Notes {
         public static final String MODE = DATA1;
         public static final int MODE_CHECK_LIST = 1;  // 清单模式常量
 
+        /** 上次同步时的正文，作为两边都修改时三方合并的基准，类型：TEXT */
+        public static final String SYNC_BASE = DATA5;
+
         // MIME类型定义
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/text_note";      // 多项目类型
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/text_note"; // 单项目类型
@@ -200,4 +275,24 @@ public class Notes {
         // 通话笔记专用URI
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/call_note");
     }
-}
\ No newline at end of file
+
+    /**
+     * 附件的特定列定义（扩展自DataColumns）
+     * 每个附件单独保存为一条数据，正文中对应位置只保留一个PLACEHOLDER字符，
+     * 第n个占位符对应序号为n的附件；摘要中不包含占位符
+     */
+    public static final class Attachment implements DataColumns {
+        /** 附件在正文中的序号（从0开始），类型：INT */
+        public static final String ORDINAL = DATA1;
+
+        /** 附件文件路径，类型：TEXT */
+        public static final String PATH = DATA3;
+
+        /** 正文中代表附件位置的占位符（U+FFFC，对象替换字符） */
+        public static final String PLACEHOLDER = "\uFFFC";
+
+        // MIME类型定义
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/attachment";      // 多项目类型
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/attachment"; // 单项目类型
+    }
+}
@@ -18,14 +18,22 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.Attachment;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.DeletedNoteColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * 笔记应用的数据库帮助类，继承自SQLiteOpenHelper
  * 负责数据库的创建、升级和管理
@@ -33,16 +41,32 @@ import net.micode.notes.data.Notes.NoteColumns;
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 数据库名称和版本常量
     private static final String DB_NAME = "note.db";  // 数据库文件名
-    private static final int DB_VERSION = 4;          // 当前数据库版本
+    private static final int DB_VERSION = 11;         // 当前数据库版本
 
     // 数据库表名接口
     public interface TABLE {
         String NOTE = "note";  // 笔记表名
         String DATA = "data";  // 数据表名
+        String NOTE_FTS = "note_fts";  // 全文索引虚拟表名（docid即笔记ID）
+        String DELETED_NOTE = "deleted_note";  // 已删除笔记记录表（用于增量备份）
     }
 
+    /**
+     * 全文索引分词器，按优先级尝试：
+     * - icu: 基于ICU词典切分，能正确切分中日韩文本
+     * - unicode61: Unicode感知分词，不支持ICU的设备上的回退
+     * - simple: 所有SQLite都支持的最终回退
+     */
+    private static final String[] FTS_TOKENIZERS = {
+        "icu zh_CN",
+        "unicode61",
+        "simple"
+    };
+
     private static final String TAG = "NotesDatabaseHelper";  // 日志标签
-    private static NotesDatabaseHelper mInstance;             // 单例实例
+    // 每个数据库文件一个实例，隔离的上下文（如测试用的IsolatedContext）使用自己的数据库文件
+    private static final HashMap<String, NotesDatabaseHelper> mInstances =
+            new HashMap<String, NotesDatabaseHelper>();
 
     // 创建笔记表的SQL语句
     private static final String CREATE_NOTE_TABLE_SQL =
@@ -63,7 +87,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," + // 本地修改标志
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," + // 原始父ID
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +    // Google任务ID
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +     // 版本号
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +    // 版本号
+            NoteColumns.CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0" +  // 本地变更序号
         ")";
 
     // 创建数据表的SQL语句
@@ -87,6 +112,92 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    // 创建笔记列表索引的SQL语句，与列表的分页排序(type, modified_date, _id)一致
+    private static final String CREATE_NOTE_LIST_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_list_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," +
+        NoteColumns.MODIFIED_DATE + "," + NoteColumns.ID + ");";
+
+    // 创建提醒时间索引的SQL语句，提醒调度按时间顺序只取下一个到期的便签
+    private static final String CREATE_NOTE_ALERT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alert_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.ALERTED_DATE + "," + NoteColumns.TYPE + ");";
+
+    // 创建同步索引的SQL语句，增量同步按 local_modified=1 OR modified_date>? 查询变化的笔记，
+    // 两个条件各用一个索引
+    private static final String CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_local_modified_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.LOCAL_MODIFIED + ");";
+
+    private static final String CREATE_NOTE_MODIFIED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_modified_date_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.MODIFIED_DATE + ");";
+
+    // 创建变更序号索引的SQL语句，触发器取最大值和增量备份按序号查询都依赖它
+    private static final String CREATE_NOTE_CHANGE_SEQ_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_change_seq_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.CHANGE_SEQ + ");";
+
+    // -------------------------- 变更序号触发器定义 --------------------------
+    // 把笔记的变更序号设为全表最大值加一，参数为笔记ID的表达式
+    private static final String NEXT_CHANGE_SEQ_SQL_FORMAT =
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHANGE_SEQ + "=(SELECT IFNULL(MAX(" + NoteColumns.CHANGE_SEQ +
+        "),0) + 1 FROM " + TABLE.NOTE + ")" +
+        "  WHERE " + NoteColumns.ID + "=%s;";
+
+    /**
+     * 当插入笔记时，分配新的变更序号
+     */
+    private static final String NOTE_CHANGE_SEQ_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER change_seq_on_note_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        String.format(NEXT_CHANGE_SEQ_SQL_FORMAT, "new." + NoteColumns.ID) +
+        " END";
+
+    /**
+     * 当更新笔记时，分配新的变更序号（只修改变更序号的更新除外）
+     * 不依赖修改时间，同步写入的远程旧时间、移动文件夹等操作同样会被增量备份记录
+     */
+    private static final String NOTE_CHANGE_SEQ_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER change_seq_on_note_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.CHANGE_SEQ + "=old." + NoteColumns.CHANGE_SEQ +
+        " BEGIN" +
+        String.format(NEXT_CHANGE_SEQ_SQL_FORMAT, "new." + NoteColumns.ID) +
+        " END";
+
+    /**
+     * 当插入数据项时，分配所属笔记新的变更序号
+     */
+    private static final String DATA_CHANGE_SEQ_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER change_seq_on_data_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " BEGIN" +
+        String.format(NEXT_CHANGE_SEQ_SQL_FORMAT, "new." + DataColumns.NOTE_ID) +
+        " END";
+
+    /**
+     * 当更新数据项时，分配所属笔记新的变更序号
+     */
+    private static final String DATA_CHANGE_SEQ_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER change_seq_on_data_update " +
+        " AFTER UPDATE ON " + TABLE.DATA +
+        " BEGIN" +
+        String.format(NEXT_CHANGE_SEQ_SQL_FORMAT, "new." + DataColumns.NOTE_ID) +
+        " END";
+
+    /**
+     * 当删除数据项时，分配所属笔记新的变更序号
+     */
+    private static final String DATA_CHANGE_SEQ_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER change_seq_on_data_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " BEGIN" +
+        String.format(NEXT_CHANGE_SEQ_SQL_FORMAT, "old." + DataColumns.NOTE_ID) +
+        " END";
+
     // -------------------------- 笔记表触发器定义 --------------------------
     /**
      * 当更新笔记的父文件夹时，增加新父文件夹的笔记计数
@@ -138,6 +249,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
         " END";
 
+    // 由正文生成摘要的表达式，去掉代表附件的占位符
+    private static final String SNIPPET_FROM_CONTENT =
+        "replace(new." + DataColumns.CONTENT + ",'" + Attachment.PLACEHOLDER + "','')";
+
     // -------------------------- 数据表触发器定义 --------------------------
     /**
      * 当插入数据类型为NOTE时，更新笔记摘要
@@ -148,7 +263,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=" + SNIPPET_FROM_CONTENT +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -161,7 +276,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=" + SNIPPET_FROM_CONTENT +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -178,6 +293,79 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    // -------------------------- 全文索引触发器定义 --------------------------
+    /**
+     * 当插入数据类型为NOTE时，将内容写入全文索引
+     */
+    private static final String DATA_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER insert_fts_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=new." + DataColumns.NOTE_ID + ";" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ",new." + DataColumns.CONTENT + ");" +
+        " END";
+
+    /**
+     * 当更新数据类型为NOTE的内容时，刷新全文索引
+     * 只监听content和note_id列，其他列的更新不会触发重建索引
+     */
+    private static final String DATA_UPDATE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_fts_on_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + "," + DataColumns.NOTE_ID + " ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + DataColumns.NOTE_ID + ";" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ",new." + DataColumns.CONTENT + ");" +
+        " END";
+
+    /**
+     * 当删除数据类型为NOTE时，从全文索引中移除
+     * 删除笔记时由delete_data_on_delete级联到这里
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    // -------------------------- 附件触发器定义 --------------------------
+    /**
+     * 当插入附件时，标记笔记有附件
+     */
+    private static final String DATA_SET_ATTACHMENT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER set_attachment_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.HAS_ATTACHMENT + "=1" +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID +
+        "  AND " + NoteColumns.HAS_ATTACHMENT + "=0;" +
+        " END";
+
+    /**
+     * 当删除附件时，根据剩余的附件重新计算笔记是否有附件
+     */
+    private static final String DATA_RESET_ATTACHMENT_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER reset_attachment_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.HAS_ATTACHMENT + "=EXISTS(SELECT 1 FROM " + TABLE.DATA +
+        "    WHERE " + DataColumns.NOTE_ID + "=old." + DataColumns.NOTE_ID +
+        "    AND " + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "')" +
+        "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
     /**
      * 当删除笔记时，级联删除关联数据
      */
@@ -213,21 +401,60 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    // -------------------------- 删除记录表定义 --------------------------
+    // 当前时间的毫秒数（strftime只精确到秒）
+    private static final String NOW_MILLIS =
+        "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    // 创建已删除笔记记录表的SQL语句
+    private static final String CREATE_DELETED_NOTE_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.DELETED_NOTE + "(" +
+            DeletedNoteColumns.NOTE_ID + " INTEGER PRIMARY KEY," +       // 被删除的笔记ID
+            DeletedNoteColumns.DELETED_DATE + " INTEGER NOT NULL" +      // 删除时间
+        ")";
+
+    /**
+     * 当删除笔记时，记录笔记ID和删除时间
+     * 删除文件夹时由folder_delete_notes_on_delete级联删除的笔记同样会被记录
+     */
+    private static final String NOTE_RECORD_DELETED_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER record_deleted_note_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.DELETED_NOTE + "(" +
+        DeletedNoteColumns.NOTE_ID + "," + DeletedNoteColumns.DELETED_DATE + ")" +
+        "   VALUES(old." + NoteColumns.ID + "," + NOW_MILLIS + ");" +
+        " END";
+
+    /**
+     * 当插入笔记时，清除该ID的删除记录（ID被重新使用）
+     */
+    private static final String NOTE_CLEAR_DELETED_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER clear_deleted_note_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.DELETED_NOTE +
+        "   WHERE " + DeletedNoteColumns.NOTE_ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
     // -------------------------- 构造函数和单例方法 --------------------------
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
 
     /**
-     * 获取数据库帮助类单例
+     * 获取数据库帮助类单例，同一个数据库文件只有一个实例
      * @param context 应用上下文
      * @return 数据库帮助类实例
      */
     public static synchronized NotesDatabaseHelper getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new NotesDatabaseHelper(context);
+        String path = context.getDatabasePath(DB_NAME).getPath();
+        NotesDatabaseHelper instance = mInstances.get(path);
+        if (instance == null) {
+            instance = new NotesDatabaseHelper(context);
+            mInstances.put(path, instance);
         }
-        return mInstance;
+        return instance;
     }
 
     // -------------------------- 数据库创建方法 --------------------------
@@ -245,6 +472,12 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_TABLE_SQL);  // 执行创建表SQL
         reCreateNoteTableTriggers(db);      // 重建触发器
         createSystemFolder(db);            // 创建系统文件夹
+        db.execSQL(CREATE_NOTE_LIST_INDEX_SQL); // 创建索引
+        db.execSQL(CREATE_NOTE_ALERT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_MODIFIED_DATE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_CHANGE_SEQ_INDEX_SQL);
+        createDeletedNoteTable(db);        // 创建删除记录表（在系统文件夹之后，避免记录初始化操作）
         Log.d(TAG, "note表已创建");
     }
 
@@ -271,6 +504,17 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
     }
 
+    /**
+     * 创建已删除笔记记录表及其触发器
+     */
+    private void createDeletedNoteTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_DELETED_NOTE_TABLE_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS record_deleted_note_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS clear_deleted_note_on_insert");
+        db.execSQL(NOTE_RECORD_DELETED_ON_DELETE_TRIGGER);
+        db.execSQL(NOTE_CLEAR_DELETED_ON_INSERT_TRIGGER);
+    }
+
     /**
      * 创建系统文件夹
      */
@@ -306,11 +550,51 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
      */
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);  // 执行创建表SQL
+        createFtsTable(db);                 // 创建全文索引表（触发器依赖该表）
         reCreateDataTableTriggers(db);      // 重建触发器
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL); // 创建索引
+        reCreateChangeSeqTriggers(db);      // 变更序号触发器同时依赖笔记表和数据表
         Log.d(TAG, "data表已创建");
     }
 
+    /**
+     * 重建变更序号触发器
+     * 单独维护而不放在reCreateNoteTableTriggers/reCreateDataTableTriggers中，
+     * 因为较早版本的升级会重建那些触发器，此时笔记表还没有change_seq列
+     */
+    private void reCreateChangeSeqTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_note_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_note_update");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_data_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_data_update");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_data_delete");
+
+        db.execSQL(NOTE_CHANGE_SEQ_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_CHANGE_SEQ_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_CHANGE_SEQ_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_CHANGE_SEQ_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_CHANGE_SEQ_ON_DELETE_TRIGGER);
+    }
+
+    /**
+     * 创建全文索引虚拟表，依次尝试FTS_TOKENIZERS中的分词器
+     * 设备的SQLite不一定编译了ICU，创建失败时回退到下一个分词器
+     */
+    private void createFtsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        for (String tokenizer : FTS_TOKENIZERS) {
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + TABLE.NOTE_FTS + " USING fts4("
+                        + DataColumns.CONTENT + ", tokenize=" + tokenizer + ")");
+                Log.d(TAG, "全文索引表已创建，分词器: " + tokenizer);
+                return;
+            } catch (SQLException e) {
+                Log.w(TAG, "分词器不可用: " + tokenizer + ", " + e.toString());
+            }
+        }
+        throw new IllegalStateException("无法创建全文索引表");
+    }
+
     /**
      * 重建所有数据表触发器
      */
@@ -319,11 +603,74 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS set_attachment_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS reset_attachment_on_delete");
 
         // 创建新触发器
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_SET_ATTACHMENT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_RESET_ATTACHMENT_ON_DELETE_TRIGGER);
+    }
+
+    // -------------------------- 批量恢复方法 --------------------------
+    /**
+     * 开始批量恢复，必须在事务中调用
+     * 暂时去掉插入时逐行维护文件夹计数、摘要、全文索引、附件标记和变更序号的触发器，
+     * 恢复的行自带摘要和附件标记，计数、索引和变更序号在endBulkRestore中一次性重建。
+     * 事务回滚时触发器随之恢复
+     */
+    void beginBulkRestore(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS set_attachment_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_note_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS change_seq_on_data_insert");
+    }
+
+    /**
+     * 结束批量恢复，重新计算所有文件夹的笔记数、为恢复的笔记建立全文索引、
+     * 按ID顺序为恢复的笔记分配变更序号，并重建触发器
+     * @param firstNoteId 恢复的第一个笔记ID，此后插入的笔记ID都不小于它
+     */
+    void endBulkRestore(SQLiteDatabase db, long firstNoteId) {
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.NOTES_COUNT
+                + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " child"
+                + " WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")"
+                + " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE);
+
+        // 与upgradeToV5一致，每个笔记只取最新的一条文本数据建立索引
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.NOTE_ID + "," + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.ID + " IN (SELECT MAX(" + DataColumns.ID + ")"
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + " AND " + DataColumns.NOTE_ID + ">=" + firstNoteId
+                + " GROUP BY " + DataColumns.NOTE_ID + ")");
+
+        // 只修改变更序号的更新不会触发change_seq_on_note_update
+        long maxChangeSeq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NoteColumns.CHANGE_SEQ + "),0) FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + "<" + firstNoteId, null);
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.CHANGE_SEQ + "="
+                + (maxChangeSeq + 1 - firstNoteId) + "+" + NoteColumns.ID
+                + " WHERE " + NoteColumns.ID + ">=" + firstNoteId);
+
+        db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_SET_ATTACHMENT_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_CHANGE_SEQ_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_CHANGE_SEQ_ON_INSERT_TRIGGER);
     }
 
     // -------------------------- 数据库升级方法 --------------------------
@@ -352,6 +699,48 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        // 从V4升级到V5（添加全文索引）
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        // 从V5升级到V6（添加笔记列表索引）
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        // 从V6升级到V7（图片改为附件数据保存）
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        // 从V7升级到V8（添加删除记录表）
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        // 从V8升级到V9（添加提醒时间索引）
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        // 从V9升级到V10（添加同步索引）
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        // 从V10升级到V11（添加变更序号）
+        if (oldVersion == 10) {
+            upgradeToV11(db);
+            oldVersion++;
+        }
+
         // 重建触发器
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
@@ -400,4 +789,109 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
-}
\ No newline at end of file
+
+    /**
+     * 升级到V5版本（添加全文索引表、同步触发器，并为已有笔记建立索引）
+     */
+    private void upgradeToV5(SQLiteDatabase db) {
+        createFtsTable(db);
+        reCreateDataTableTriggers(db);
+
+        // 每个笔记只取最新的一条文本数据建立索引
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.NOTE_ID + "," + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.ID + " IN (SELECT MAX(" + DataColumns.ID + ")"
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + " GROUP BY " + DataColumns.NOTE_ID + ")");
+    }
+
+    /**
+     * 升级到V6版本（添加笔记列表分页索引）
+     */
+    private void upgradeToV6(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_LIST_INDEX_SQL);
+    }
+
+    /**
+     * 升级到V7版本（图片从正文中的[local]标记改为单独的附件数据）
+     * 摘要触发器改为去掉占位符，并把已有正文中的旧标记转换为附件数据
+     */
+    private void upgradeToV7(SQLiteDatabase db) {
+        reCreateDataTableTriggers(db);
+
+        Cursor c = db.query(TABLE.DATA,
+                new String[] { DataColumns.ID, DataColumns.NOTE_ID, DataColumns.CONTENT },
+                DataColumns.MIME_TYPE + "=? AND " + DataColumns.CONTENT + " LIKE ?",
+                new String[] { DataConstants.NOTE, "%" + LegacyImageMarkup.TAG_START + "%" },
+                null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            ArrayList<String> paths = new ArrayList<String>();
+            while (c.moveToNext()) {
+                long noteId = c.getLong(1);
+                paths.clear();
+                String content = LegacyImageMarkup.migrate(c.getString(2), paths);
+                if (paths.isEmpty()) {
+                    continue;
+                }
+
+                // 更新正文，摘要和全文索引由触发器同步
+                values.clear();
+                values.put(DataColumns.CONTENT, content);
+                db.update(TABLE.DATA, values, DataColumns.ID + "=" + c.getLong(0), null);
+
+                // 插入附件，has_attachment由触发器同步
+                for (int i = 0; i < paths.size(); i++) {
+                    values.clear();
+                    values.put(DataColumns.MIME_TYPE, DataConstants.ATTACHMENT);
+                    values.put(DataColumns.NOTE_ID, noteId);
+                    values.put(Attachment.ORDINAL, i);
+                    values.put(Attachment.PATH, paths.get(i));
+                    db.insert(TABLE.DATA, null, values);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 升级到V8版本（添加已删除笔记记录表，供增量备份记录删除）
+     */
+    private void upgradeToV8(SQLiteDatabase db) {
+        createDeletedNoteTable(db);
+    }
+
+    /**
+     * 升级到V9版本（添加提醒时间索引）
+     */
+    private void upgradeToV9(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_ALERT_INDEX_SQL);
+    }
+
+    /**
+     * 升级到V10版本（添加同步索引）
+     */
+    private void upgradeToV10(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_MODIFIED_DATE_INDEX_SQL);
+    }
+
+    /**
+     * 升级到V11版本（添加变更序号）
+     * 已有笔记按ID分配初始序号，旧的增量备份链没有序号水位，下一次备份会重新生成完整备份
+     */
+    private void upgradeToV11(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CHANGE_SEQ
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.CHANGE_SEQ + "="
+                + NoteColumns.ID + "-(SELECT MIN(" + NoteColumns.ID + ") FROM " + TABLE.NOTE + ")+1");
+        db.execSQL(CREATE_NOTE_CHANGE_SEQ_INDEX_SQL);
+        reCreateChangeSeqTriggers(db);
+    }
+}
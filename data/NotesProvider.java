@@ -19,13 +19,19 @@ package net.micode.notes.data;
 // 导入必要的Android类和组件
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -34,10 +40,22 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.tool.BackupFormat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * 笔记内容提供者类，继承自ContentProvider
  * 负责管理笔记数据的存储和检索，提供CRUD操作接口
+ * 变化通知统一交给NotificationCoalescer合并发送，观察者看到的是去重后的延迟通知
  */
 public class NotesProvider extends ContentProvider {
     // URI匹配器，用于解析不同的URI请求
@@ -49,6 +67,37 @@ public class NotesProvider extends ContentProvider {
     // 日志标签
     private static final String TAG = "NotesProvider";
 
+    // 变化通知合并器，批量操作即为一个写窗口
+    private NotificationCoalescer mNotifier;
+
+    // 笔记更新语句缓存的最大条数
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    // 笔记更新的编译语句缓存（按SQL的LRU），只在mStatementDb上有效
+    private final LinkedHashMap<String, SQLiteStatement> mStatementCache =
+            new LinkedHashMap<String, SQLiteStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private SQLiteDatabase mStatementDb;
+
+    // 各类调用的累计次数，下标见CALL_*，供性能测试统计访问次数
+    private static final int CALL_QUERY  = 0;
+    private static final int CALL_INSERT = 1;
+    private static final int CALL_UPDATE = 2;
+    private static final int CALL_DELETE = 3;
+    private static final int CALL_BATCH  = 4;
+    private final AtomicLongArray mCallCounts = new AtomicLongArray(CALL_BATCH + 1);
+
+    // 当前线程是否在批量操作中，批量操作内部的单个操作不重复计数
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>();
+
     // URI匹配代码常量
     private static final int URI_NOTE            = 1;  // 操作整个笔记表
     private static final int URI_NOTE_ITEM       = 2;  // 操作单个笔记项
@@ -56,6 +105,8 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM       = 4;  // 操作单个数据项
     private static final int URI_SEARCH          = 5;  // 搜索操作
     private static final int URI_SEARCH_SUGGEST  = 6;  // 搜索建议操作
+    private static final int URI_EXPORT          = 7;  // 导出查询（只读）
+    private static final int URI_DELETED_NOTE    = 8;  // 已删除笔记记录
 
     // 静态初始化块，配置URI匹配规则
     static {
@@ -67,6 +118,8 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);              // 搜索功能
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);          // 搜索建议基础URI
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);   // 带查询参数的搜索建议
+        mMatcher.addURI(Notes.AUTHORITY, "export", URI_EXPORT);              // content://net.micode.notes/export
+        mMatcher.addURI(Notes.AUTHORITY, "deleted_note", URI_DELETED_NOTE);  // content://net.micode.notes/deleted_note
     }
 
     /**
@@ -82,23 +135,79 @@ public class NotesProvider extends ContentProvider {
             + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
             + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    // 搜索查询SQL语句模板
+    // 搜索查询SQL语句模板（全文索引无法匹配时的回退方案）
     private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
             + " FROM " + TABLE.NOTE
             + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"  // 模糊匹配片段内容
             + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER  // 排除垃圾箱中的笔记
             + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;  // 只匹配普通笔记类型
 
+    /**
+     * 命中次数表达式
+     * offsets()对每个命中返回4个以空格分隔的整数，空格数+1再除以4即为命中次数
+     */
+    private static final String FTS_HITS_EXPRESSION = "((LENGTH(fts_offsets)"
+            + " - LENGTH(REPLACE(fts_offsets, ' ', '')) + 1) / 4)";
+
+    // 全文索引搜索SQL语句模板，按命中次数和修改时间排序
+    private static String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+            + " FROM " + TABLE.NOTE
+            + " INNER JOIN (SELECT docid AS fts_id, offsets(" + TABLE.NOTE_FTS + ") AS fts_offsets"
+            + " FROM " + TABLE.NOTE_FTS
+            + " WHERE " + TABLE.NOTE_FTS + " MATCH ?)"  // 前缀匹配表达式
+            + " ON " + NoteColumns.ID + "=fts_id"
+            + " WHERE " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER  // 排除垃圾箱中的笔记
+            + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE  // 只匹配普通笔记类型
+            + " ORDER BY " + FTS_HITS_EXPRESSION + " DESC, " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    // 需要导出的文件夹：不在回收站中的用户文件夹，以及通话记录文件夹
+    private static final String EXPORT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "="
+            + Notes.TYPE_FOLDER + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + ") OR " + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER;
+
+    // 每行所属的分组：便签归入其父文件夹，文件夹自成一组
+    private static final String EXPORT_GROUP_EXPRESSION = "CASE WHEN n." + NoteColumns.TYPE + "="
+            + Notes.TYPE_NOTE + " THEN n." + NoteColumns.PARENT_ID + " ELSE n." + NoteColumns.ID
+            + " END";
+
+    /**
+     * 导出查询，用一次连接查询代替逐个文件夹、逐个便签的查询
+     * 排序保证文件夹行在其便签之前、根目录的便签在最后、同一便签的数据项相邻
+     */
+    private static final String NOTES_EXPORT_QUERY = "SELECT"
+            + " n." + NoteColumns.ID + " AS " + NoteColumns.ID + ","
+            + " n." + NoteColumns.PARENT_ID + " AS " + NoteColumns.PARENT_ID + ","
+            + " n." + NoteColumns.TYPE + " AS " + NoteColumns.TYPE + ","
+            + " n." + NoteColumns.SNIPPET + " AS " + NoteColumns.SNIPPET + ","
+            + " n." + NoteColumns.MODIFIED_DATE + " AS " + NoteColumns.MODIFIED_DATE + ","
+            + " d." + DataColumns.CONTENT + " AS " + DataColumns.CONTENT + ","
+            + " d." + DataColumns.MIME_TYPE + " AS " + DataColumns.MIME_TYPE + ","
+            + " d." + DataColumns.DATA1 + " AS " + DataColumns.DATA1 + ","
+            + " d." + DataColumns.DATA3 + " AS " + DataColumns.DATA3
+            + " FROM " + TABLE.NOTE + " n"
+            + " LEFT JOIN " + TABLE.DATA + " d ON d." + DataColumns.NOTE_ID + "=n." + NoteColumns.ID
+            + " WHERE n." + NoteColumns.ID + " IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+            + " WHERE " + EXPORT_FOLDER_SELECTION + ")"
+            + " OR (n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND (n." + NoteColumns.PARENT_ID
+            + "=" + Notes.ID_ROOT_FOLDER + " OR n." + NoteColumns.PARENT_ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE " + EXPORT_FOLDER_SELECTION + ")))"
+            + " ORDER BY n." + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + " AND n."
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + ", " + EXPORT_GROUP_EXPRESSION + ", n."
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + ", n." + NoteColumns.ID + ", d."
+            + DataColumns.ID;
+
     @Override
     public boolean onCreate() {
         // 初始化数据库帮助类实例
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mNotifier = new NotificationCoalescer(getContext().getContentResolver());
         return true;  // 成功初始化返回true
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        countCall(CALL_QUERY);
         Cursor c = null;
         SQLiteDatabase db = mHelper.getReadableDatabase();  // 获取可读数据库实例
         String id = null;
@@ -106,8 +215,13 @@ public class NotesProvider extends ContentProvider {
         // 根据URI匹配类型执行不同查询
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                // 查询整个笔记表
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null, sortOrder);
+                // 查询整个笔记表，可以通过limit参数限制返回行数（用于分页加载）
+                String limit = uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT);
+                if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+                    throw new IllegalArgumentException("Wrong limit:" + limit);
+                }
+                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null, sortOrder,
+                        limit);
                 break;
             case URI_NOTE_ITEM:
                 // 查询指定ID的笔记
@@ -147,14 +261,33 @@ public class NotesProvider extends ContentProvider {
                     return null;  // 空搜索词返回空结果
                 }
 
+                String suggestLimit = null;
+                if (mMatcher.match(uri) == URI_SEARCH_SUGGEST) {
+                    // 搜索框只展示有限条建议，没必要取回全部结果
+                    suggestLimit = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+                    if (suggestLimit != null && !TextUtils.isDigitsOnly(suggestLimit)) {
+                        suggestLimit = null;
+                    }
+                }
+
                 try {
-                    // 构造模糊查询参数（添加%通配符）
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY, new String[] { searchString });
+                    c = searchNotes(db, searchString, suggestLimit);
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "查询异常: " + ex.toString());
                 }
                 break;
+            case URI_EXPORT:
+                // 导出查询的列和顺序是固定的
+                if (projection != null || selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException("禁止指定投影、条件或排序参数");
+                }
+                c = db.rawQuery(NOTES_EXPORT_QUERY, null);
+                break;
+            case URI_DELETED_NOTE:
+                // 查询删除记录
+                c = db.query(TABLE.DELETED_NOTE, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("未知URI: " + uri);
         }
@@ -168,6 +301,7 @@ public class NotesProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        countCall(CALL_INSERT);
         SQLiteDatabase db = mHelper.getWritableDatabase();  // 获取可写数据库实例
         long dataId = 0, noteId = 0, insertedId = 0;
 
@@ -191,12 +325,10 @@ public class NotesProvider extends ContentProvider {
 
         // 通知相关URI的数据变化
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         // 返回新插入项的URI
@@ -205,6 +337,7 @@ public class NotesProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        countCall(CALL_DELETE);
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
@@ -236,6 +369,10 @@ public class NotesProvider extends ContentProvider {
                         + parseSelection(selection), selectionArgs);
                 deleteData = true;
                 break;
+            case URI_DELETED_NOTE:
+                // 清理删除记录
+                count = db.delete(TABLE.DELETED_NOTE, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("未知URI: " + uri);
         }
@@ -244,15 +381,16 @@ public class NotesProvider extends ContentProvider {
         if (count > 0) {
             if (deleteData) {
                 // 数据表删除需要通知笔记URI更新
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        countCall(CALL_UPDATE);
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
@@ -260,16 +398,15 @@ public class NotesProvider extends ContentProvider {
 
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                // 更新整个笔记表
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                // 更新整个笔记表（同时增加版本号）
+                count = updateNoteWithVersion(db, values, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
-                // 更新指定ID的笔记
+                // 更新指定ID的笔记（同时增加版本号）
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                // ID通过绑定传入，所有便签共用同一条编译语句
+                count = updateNoteWithVersion(db, values, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(Long.valueOf(id), selectionArgs));
                 break;
             case URI_DATA:
                 // 更新数据表
@@ -290,13 +427,365 @@ public class NotesProvider extends ContentProvider {
         // 通知数据变化
         if (count > 0) {
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
+    /**
+     * 在一个事务中批量插入，所有行插入完成后每个URI只通知一次
+     * 任意一行插入失败抛出异常时整个批次回滚
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        countCall(CALL_BATCH);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        mNotifier.beginWindow();
+        int count;
+        boolean success = false;
+        db.beginTransaction();
+        mInBatch.set(Boolean.TRUE);
+        try {
+            count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            mInBatch.set(Boolean.FALSE);
+            db.endTransaction();
+            mNotifier.endWindow(success);
+        }
+        return count;
+    }
+
+    /**
+     * 在一个事务中执行批量操作，所有操作完成后每个URI只通知一次
+     * 任意一个操作失败时整个批次回滚，之前已执行的操作也不会生效
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        countCall(CALL_BATCH);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        mNotifier.beginWindow();
+        ContentProviderResult[] results;
+        boolean success = false;
+        db.beginTransaction();
+        mInBatch.set(Boolean.TRUE);
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            mInBatch.set(Boolean.FALSE);
+            db.endTransaction();
+            mNotifier.endWindow(success);
+        }
+        return results;
+    }
+
+    /**
+     * 记录一次调用，批量操作内部的调用不计数
+     */
+    private void countCall(int type) {
+        if (!Boolean.TRUE.equals(mInBatch.get())) {
+            mCallCounts.incrementAndGet(type);
+        }
+    }
+
+    /**
+     * 通知URI对应的数据发生变化，由合并器去重后延迟发送
+     */
+    private void notifyChange(Uri uri) {
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * 提供通知合并器的配置和统计接口
+     * - Notes.METHOD_SET_NOTIFY_INTERVAL: arg为新的刷新间隔（毫秒）
+     * - Notes.METHOD_GET_NOTIFY_STATS: 返回请求、发送、合并、回滚丢弃的通知次数
+     * - Notes.METHOD_FLUSH_NOTIFY: 立即发送待发送的通知
+     * - Notes.METHOD_GET_CALL_STATS: 返回查询、插入、更新、删除、批量操作的累计次数
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_SET_NOTIFY_INTERVAL.equals(method)) {
+            try {
+                mNotifier.setFlushInterval(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Wrong flush interval:" + arg);
+            }
+            return null;
+        } else if (Notes.METHOD_GET_NOTIFY_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(Notes.NOTIFY_STAT_INTERVAL, mNotifier.getFlushInterval());
+            stats.putLong(Notes.NOTIFY_STAT_REQUESTED, mNotifier.getRequestedCount());
+            stats.putLong(Notes.NOTIFY_STAT_DISPATCHED, mNotifier.getDispatchedCount());
+            stats.putLong(Notes.NOTIFY_STAT_SUPPRESSED, mNotifier.getSuppressedCount());
+            stats.putLong(Notes.NOTIFY_STAT_DROPPED, mNotifier.getDroppedCount());
+            return stats;
+        } else if (Notes.METHOD_FLUSH_NOTIFY.equals(method)) {
+            mNotifier.flush();
+            return null;
+        } else if (Notes.METHOD_GET_CALL_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(Notes.CALL_STAT_QUERY, mCallCounts.get(CALL_QUERY));
+            stats.putLong(Notes.CALL_STAT_INSERT, mCallCounts.get(CALL_INSERT));
+            stats.putLong(Notes.CALL_STAT_UPDATE, mCallCounts.get(CALL_UPDATE));
+            stats.putLong(Notes.CALL_STAT_DELETE, mCallCounts.get(CALL_DELETE));
+            stats.putLong(Notes.CALL_STAT_BATCH, mCallCounts.get(CALL_BATCH));
+            return stats;
+        } else if (Notes.METHOD_RESTORE_BACKUP.equals(method)) {
+            String[] deltas = extras != null
+                    ? extras.getStringArray(Notes.RESTORE_EXTRA_DELTAS) : null;
+            return restoreBackup(arg, deltas);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * 从备份文件恢复便签，整个恢复在一个事务中完成，任何一行失败时全部回滚
+     * 恢复期间暂停插入触发器，文件夹计数和全文索引在最后一次性重建。
+     * 恢复的行重新分配ID，父文件夹和所属笔记按新ID修正；
+     * 本地已有相同gtask_id的笔记不重复恢复，备份中属于它的便签归入本地已有的笔记
+     * @param path 完整备份文件路径
+     * @param deltas 在完整备份之上依次应用的增量备份文件路径，可以为null
+     * @return 恢复统计，文件读取失败时为null
+     */
+    private Bundle restoreBackup(String path, String[] deltas) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("Wrong backup path:" + path);
+        }
+        countCall(CALL_BATCH);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        mNotifier.beginWindow();
+        boolean success = false;
+        InputStream in = null;
+        db.beginTransaction();
+        try {
+            RestoreHandler handler = new RestoreHandler(db);
+            mHelper.beginBulkRestore(db);
+            in = new FileInputStream(path);
+            BackupFormat.read(in, handler);
+            if (deltas != null) {
+                for (String delta : deltas) {
+                    in.close();
+                    in = new FileInputStream(delta);
+                    BackupFormat.read(in, handler);
+                }
+            }
+            mHelper.endBulkRestore(db, handler.mFirstNoteId);
+            db.setTransactionSuccessful();
+            success = true;
+
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(Notes.CONTENT_DATA_URI);
+            Bundle stats = new Bundle();
+            stats.putInt(Notes.RESTORE_STAT_NOTES, handler.mNoteCount);
+            stats.putInt(Notes.RESTORE_STAT_DATA, handler.mDataCount);
+            stats.putInt(Notes.RESTORE_STAT_SKIPPED, handler.mSkippedCount);
+            Log.d(TAG, "从备份恢复: " + handler.mNoteCount + " 笔记, " + handler.mDataCount
+                    + " 数据项, 跳过 " + handler.mSkippedCount);
+            return stats;
+        } catch (IOException e) {
+            Log.e(TAG, "读取备份文件失败: " + e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+            db.endTransaction();
+            mNotifier.endWindow(success);
+        }
+    }
+
+    /**
+     * 把备份中的行插入数据库，并记录备份ID到新ID的对应关系
+     * 备份中文件夹在其便签之前、便签在其数据项之前，所以父行总是先于子行插入
+     * 增量备份中已恢复过的笔记再次出现时更新该笔记，并用随后的数据项替换其原有数据项
+     */
+    private static class RestoreHandler implements BackupFormat.RowHandler {
+        private final SQLiteDatabase mDb;
+        private final long mFirstNoteId;
+        private final HashMap<String, Long> mLocalGtaskIds = new HashMap<String, Long>();
+        private final HashMap<Long, Long> mNoteIds = new HashMap<Long, Long>();
+        private final HashSet<Long> mSkippedNotes = new HashSet<Long>();
+        private int mNoteCount;
+        private int mDataCount;
+        private int mSkippedCount;
+
+        RestoreHandler(SQLiteDatabase db) {
+            mDb = db;
+            mFirstNoteId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + NoteColumns.ID + "),0)+1 FROM " + TABLE.NOTE, null);
+            Cursor c = db.query(TABLE.NOTE, new String[] { NoteColumns.ID, NoteColumns.GTASK_ID },
+                    NoteColumns.GTASK_ID + "<>''", null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    mLocalGtaskIds.put(c.getString(1), c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public void onNote(ContentValues values) {
+            Long backupId = values.getAsLong(NoteColumns.ID);
+            values.remove(NoteColumns.ID);
+
+            String gtaskId = values.getAsString(NoteColumns.GTASK_ID);
+            Long localId = TextUtils.isEmpty(gtaskId) ? null : mLocalGtaskIds.get(gtaskId);
+            if (localId != null) {
+                if (backupId != null) {
+                    mNoteIds.put(backupId, localId);
+                    mSkippedNotes.add(backupId);
+                }
+                mSkippedCount++;
+                return;
+            }
+
+            values.put(NoteColumns.PARENT_ID, mapParentId(values.getAsLong(NoteColumns.PARENT_ID)));
+            Long restoredId = backupId != null ? mNoteIds.get(backupId) : null;
+            if (restoredId != null) {
+                // 先删除数据项再更新笔记，删除触发器清空的摘要和附件标记由备份中的值覆盖
+                mDb.delete(TABLE.DATA, DataColumns.NOTE_ID + "=" + restoredId, null);
+                if (mDb.update(TABLE.NOTE, values, NoteColumns.ID + "=" + restoredId, null) > 0) {
+                    return;
+                }
+                // 笔记已随所在文件夹的删除被触发器一并删除，之后的增量备份中它又有修改，重新插入
+                long id = mDb.insertOrThrow(TABLE.NOTE, null, values);
+                mNoteIds.put(backupId, id);
+                return;
+            }
+            long id = mDb.insertOrThrow(TABLE.NOTE, null, values);
+            if (backupId != null) {
+                mNoteIds.put(backupId, id);
+            }
+            mNoteCount++;
+        }
+
+        @Override
+        public void onDeleted(long backupId) {
+            // 本地原有的笔记不受备份中删除操作的影响
+            if (mSkippedNotes.contains(backupId)) {
+                return;
+            }
+            Long restoredId = mNoteIds.remove(backupId);
+            if (restoredId != null) {
+                mDb.delete(TABLE.NOTE, NoteColumns.ID + "=" + restoredId, null);
+                mNoteCount--;
+            }
+        }
+
+        @Override
+        public void onData(ContentValues values) {
+            values.remove(DataColumns.ID);
+            Long backupNoteId = values.getAsLong(DataColumns.NOTE_ID);
+            if (backupNoteId == null || mSkippedNotes.contains(backupNoteId)) {
+                return;
+            }
+            Long noteId = mNoteIds.get(backupNoteId);
+            if (noteId == null) {
+                Log.w(TAG, "备份中的数据项没有对应的笔记: " + backupNoteId);
+                return;
+            }
+            values.put(DataColumns.NOTE_ID, noteId);
+            mDb.insertOrThrow(TABLE.DATA, null, values);
+            mDataCount++;
+        }
+
+        /**
+         * 系统文件夹的ID在所有设备上相同，其他父文件夹换成恢复后的ID，找不到时放到根目录
+         */
+        private long mapParentId(Long parentId) {
+            if (parentId == null) {
+                return Notes.ID_ROOT_FOLDER;
+            }
+            if (parentId <= 0) {
+                return parentId;
+            }
+            Long id = mNoteIds.get(parentId);
+            return id != null ? id : Notes.ID_ROOT_FOLDER;
+        }
+    }
+
+    /**
+     * 搜索笔记，优先使用全文索引
+     * 以下两种情况回退到LIKE查询：
+     * 1. 搜索词中没有可索引的字符（例如只有标点）
+     * 2. 索引没有命中但搜索词包含中日韩字符（设备不支持ICU分词时，整段中文会被当成一个词）
+     * @param db 数据库实例
+     * @param searchString 用户输入的搜索词
+     * @param limit 最大结果数，为null表示不限制
+     * @return 搜索结果游标
+     */
+    private Cursor searchNotes(SQLiteDatabase db, String searchString, String limit) {
+        String limitClause = limit != null ? " LIMIT " + limit : "";
+        String matchQuery = buildMatchQuery(searchString);
+        if (matchQuery != null) {
+            Cursor c = db.rawQuery(NOTES_FTS_SEARCH_QUERY + limitClause, new String[] { matchQuery });
+            if (c.getCount() > 0 || !containsCJK(searchString)) {
+                return c;
+            }
+            c.close();
+        }
+
+        // 构造模糊查询参数（添加%通配符）
+        return db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY + limitClause,
+                new String[] { String.format("%%%s%%", searchString) });
+    }
+
+    /**
+     * 将用户输入转换为全文索引的MATCH表达式
+     * 按非字母数字字符切分成若干词，每个词加上"*"做前缀匹配，词之间是隐式的AND关系。
+     * 切分同时去掉了引号、括号、减号等FTS语法字符，用户输入不会被解释成查询语法
+     * @param searchString 用户输入的搜索词
+     * @return MATCH表达式，没有可用的词时返回null
+     */
+    private static String buildMatchQuery(String searchString) {
+        StringBuilder query = new StringBuilder(searchString.length() + 8);
+        int length = searchString.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean isWordChar = i < length && Character.isLetterOrDigit(searchString.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            } else if (!isWordChar && start >= 0) {
+                if (query.length() > 0) {
+                    query.append(' ');
+                }
+                // 转成小写，避免AND/OR/NOT/NEAR被当成运算符
+                query.append(searchString.substring(start, i).toLowerCase()).append('*');
+                start = -1;
+            }
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    /**
+     * 判断字符串中是否包含中日韩字符
+     */
+    private static boolean containsCJK(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            Character.UnicodeBlock block = Character.UnicodeBlock.of(str.charAt(i));
+            if (block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                    || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.HIRAGANA
+                    || block == Character.UnicodeBlock.KATAKANA
+                    || block == Character.UnicodeBlock.HANGUL_SYLLABLES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * 解析附加的查询条件
      * @param selection 原始查询条件
@@ -307,34 +796,84 @@ public class NotesProvider extends ContentProvider {
     }
 
     /**
-     * 增加笔记版本号（用于同步/冲突检测）
-     * @param id 笔记ID（-1表示批量更新）
-     * @param selection 附加条件
+     * 在查询参数前加入一个参数，对应条件开头的占位符
+     */
+    private static String[] prependArg(long arg, String[] selectionArgs) {
+        int length = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[length + 1];
+        args[0] = String.valueOf(arg);
+        if (length > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, length);
+        }
+        return args;
+    }
+
+    /**
+     * 更新笔记并增加版本号（用于同步/冲突检测）
+     * 版本号的增加和字段更新在同一条UPDATE语句中完成，参数全部通过绑定传入。
+     * 编译后的语句按SQL缓存，相同形状的更新（例如编辑器保存）不会重复编译
+     * @param db 可写数据库实例
+     * @param values 要更新的字段，包含VERSION时以传入的值为准，不再自增
+     * @param selection 更新条件
      * @param selectionArgs 条件参数
+     * @return 更新的行数
      */
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+    private int updateNoteWithVersion(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
         StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ").append(TABLE.NOTE)
-                .append(" SET ").append(NoteColumns.VERSION).append("=").append(NoteColumns.VERSION).append("+1 ");
-
-        // 构造WHERE条件
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+        sql.append("UPDATE ").append(TABLE.NOTE).append(" SET ");
+
+        int size = values == null ? 0 : values.size();
+        Object[] bindArgs = new Object[size + (selectionArgs == null ? 0 : selectionArgs.length)];
+        int i = 0;
+        if (size > 0) {
+            for (String key : values.keySet()) {
+                sql.append(i > 0 ? "," : "").append(key).append("=?");
+                bindArgs[i++] = values.get(key);
+            }
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID).append("=").append(id);
+        if (size == 0 || !values.containsKey(NoteColumns.VERSION)) {
+            sql.append(i > 0 ? "," : "").append(NoteColumns.VERSION)
+                    .append("=").append(NoteColumns.VERSION).append("+1");
         }
+
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            // 直接替换参数（注意：存在SQL注入风险，建议使用参数化查询）
+            sql.append(" WHERE ").append(selection);
+        }
+        if (selectionArgs != null) {
             for (String arg : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", arg);
+                bindArgs[i++] = arg;
+            }
+        }
+
+        synchronized (mStatementCache) {
+            if (mStatementDb != db) {
+                // 数据库被重新打开过，旧的编译语句已经失效
+                clearStatementCache();
+                mStatementDb = db;
+            }
+            String key = sql.toString();
+            SQLiteStatement statement = mStatementCache.get(key);
+            if (statement == null) {
+                statement = db.compileStatement(key);
+                mStatementCache.put(key, statement);
+            }
+            statement.clearBindings();
+            for (int index = 0; index < bindArgs.length; index++) {
+                DatabaseUtils.bindObjectToProgram(statement, index + 1, bindArgs[index]);
             }
-            sql.append(selectString);
+            return statement.executeUpdateDelete();
         }
+    }
 
-        // 执行原始SQL语句
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+    /**
+     * 关闭并清空缓存的编译语句，调用方需持有mStatementCache锁
+     */
+    private void clearStatementCache() {
+        for (SQLiteStatement statement : mStatementCache.values()) {
+            statement.close();
+        }
+        mStatementCache.clear();
     }
 
     @Override
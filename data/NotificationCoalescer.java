@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 内容变化通知合并器
+ * 负责收集NotesProvider产生的变化通知，合并后统一发送：
+ * 1. 写窗口（事务）内产生的通知暂存在当前线程，提交后才进入待发送队列，回滚则丢弃
+ * 2. 待发送队列中每个URI只保留一次，父URI已在队列中时子URI不再单独通知
+ *    （ContentService会把父URI的通知分发给注册在子URI上的观察者）
+ * 3. 队列在刷新间隔到期后统一发送，间隔内的连续写入只产生一次通知
+ */
+public class NotificationCoalescer {
+    private static final String TAG = "NotificationCoalescer";
+
+    // 默认刷新间隔（毫秒）
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    private final ContentResolver mResolver;
+
+    // 发送通知的后台线程，避免ContentService的binder调用阻塞写入线程
+    private final Handler mHandler;
+
+    // 各线程当前写窗口内暂存的URI
+    private final ThreadLocal<Window> mWindow = new ThreadLocal<Window>();
+
+    // 待发送的URI队列，受this保护
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    private long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+    private boolean mFlushScheduled;
+
+    // 统计计数，受this保护
+    private long mRequestedCount;   // 请求通知的次数
+    private long mDispatchedCount;  // 实际发送的次数
+    private long mDroppedCount;     // 因事务回滚丢弃的次数
+
+    /**
+     * 写窗口，支持嵌套，只有最外层窗口结束时才处理暂存的URI
+     */
+    private static class Window {
+        int depth;
+        int requested;
+        final HashSet<Uri> uris = new HashSet<Uri>();
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public NotificationCoalescer(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * 设置刷新间隔
+     * @param interval 间隔毫秒数，0表示每次写入后尽快发送
+     */
+    public synchronized void setFlushInterval(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Wrong flush interval:" + interval);
+        }
+        mFlushInterval = interval;
+    }
+
+    public synchronized long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    /**
+     * 开始写窗口，之后当前线程请求的通知都会暂存，直到最外层窗口结束
+     */
+    public void beginWindow() {
+        Window window = mWindow.get();
+        if (window == null) {
+            window = new Window();
+            mWindow.set(window);
+        }
+        window.depth++;
+    }
+
+    /**
+     * 结束写窗口
+     * @param commit 写入是否已提交；为false时最外层窗口暂存的通知全部丢弃
+     */
+    public void endWindow(boolean commit) {
+        Window window = mWindow.get();
+        if (window == null) {
+            throw new IllegalStateException("endWindow without beginWindow");
+        }
+        if (--window.depth > 0) {
+            return;  // 嵌套窗口，由最外层统一处理
+        }
+        mWindow.remove();
+
+        synchronized (this) {
+            if (!commit) {
+                mDroppedCount += window.requested;
+                return;
+            }
+            mPending.addAll(window.uris);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * 请求通知URI对应的数据发生变化
+     */
+    public void notifyChange(Uri uri) {
+        Window window = mWindow.get();
+        if (window != null) {
+            window.requested++;
+            window.uris.add(uri);
+            synchronized (this) {
+                mRequestedCount++;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            mRequestedCount++;
+            mPending.add(uri);
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled && !mPending.isEmpty()) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mFlushInterval);
+        }
+    }
+
+    /**
+     * 立即发送所有待发送的通知
+     */
+    public void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            uris = collapse(mPending);
+            mPending.clear();
+            mDispatchedCount += uris.size();
+        }
+
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+        if (uris.size() > 0) {
+            Log.d(TAG, "Flushed " + uris.size() + " notifications, suppressed "
+                    + getSuppressedCount() + " so far");
+        }
+    }
+
+    /**
+     * 去掉父URI已经在集合中的子URI
+     */
+    private static List<Uri> collapse(LinkedHashSet<Uri> uris) {
+        HashSet<String> keys = new HashSet<String>();
+        for (Uri uri : uris) {
+            keys.add(uri.toString());
+        }
+
+        List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            if (!hasPendingAncestor(uri, keys)) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasPendingAncestor(Uri uri, HashSet<String> keys) {
+        List<String> segments = uri.getPathSegments();
+        StringBuilder parent = new StringBuilder();
+        parent.append(uri.getScheme()).append("://").append(uri.getAuthority());
+        if (keys.contains(parent.toString())) {
+            return segments.size() > 0;
+        }
+        for (int i = 0; i < segments.size() - 1; i++) {
+            parent.append('/').append(segments.get(i));
+            if (keys.contains(parent.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    public synchronized long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 被合并掉的通知次数（包括重复的URI、被父URI覆盖的URI和回滚丢弃的通知）
+     * 尚在队列中等待发送的通知不计入
+     */
+    public synchronized long getSuppressedCount() {
+        return Math.max(0, mRequestedCount - mDispatchedCount - mPending.size());
+    }
+}
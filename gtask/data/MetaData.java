@@ -17,6 +17,7 @@
 package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
+import android.util.JsonReader;
 import android.util.Log;
 
 import net.micode.notes.tool.GTaskStringUtils;
@@ -24,6 +25,9 @@ import net.micode.notes.tool.GTaskStringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringReader;
+
 /**
  * 元数据类，继承自Task，用于处理与Google任务相关的元数据信息
  */
@@ -78,16 +82,52 @@ public class MetaData extends Task {
     @Override
     public void setContentByRemoteJSON(JSONObject js) {
         super.setContentByRemoteJSON(js);
-        if (getNotes() != null) {
+        mRelatedGid = getNotes() != null ? readRelatedGid(getNotes()) : null;
+    }
+
+    /**
+     * 流式解析时读取远程字段，内容字段读完后直接提取相关GID
+     */
+    @Override
+    public boolean readRemoteField(String name, JsonReader reader) throws IOException {
+        if (GTaskStringUtils.GTASK_JSON_NOTES.equals(name)) {
+            String notes = nextString(reader);
+            setNotes(notes);
+            mRelatedGid = notes != null ? readRelatedGid(notes) : null;
+            return true;
+        }
+        return super.readRemoteField(name, reader);
+    }
+
+    /**
+     * 从内容字符串中提取相关GID
+     * 只扫描到META_HEAD_GTASK_ID为止，其余字段直接跳过，不构建JSON对象
+     * 
+     * @param notes 元数据内容字符串
+     * @return 相关GID，不存在或格式错误时返回null
+     */
+    private static String readRelatedGid(String notes) {
+        JsonReader reader = new JsonReader(new StringReader(notes.trim()));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (GTaskStringUtils.META_HEAD_GTASK_ID.equals(reader.nextName())) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "获取相关GID失败");
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "获取相关GID失败");
+        } finally {
             try {
-                // 从内容字符串解析JSON并提取相关GID
-                JSONObject metaInfo = new JSONObject(getNotes().trim());
-                mRelatedGid = metaInfo.getString(GTaskStringUtils.META_HEAD_GTASK_ID);
-            } catch (JSONException e) {
-                Log.w(TAG, "获取相关GID失败");
-                mRelatedGid = null; // 解析失败时重置GID
+                reader.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭解析器失败");
             }
         }
+        return null;
     }
 
     /**
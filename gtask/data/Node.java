@@ -17,8 +17,15 @@
 package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * 抽象节点类，用于数据同步管理
  * 定义节点基础属性和同步操作行为模板，子类需实现具体同步逻辑
@@ -97,6 +104,41 @@ public abstract class Node {
      */
     public abstract int getSyncAction(Cursor c);
 
+    /**
+     * 从流式解析器读取一个远程字段，由GTaskResponseDecoder逐字段调用，不需要先构建完整的JSON树
+     * 子类覆盖时先处理自己的字段，其余交给父类
+     * 
+     * @param name   字段名（GTaskStringUtils.GTASK_JSON_*）
+     * @param reader 已读取字段名、下一个记号为字段值的解析器
+     * @return 已消费字段值时返回true，未识别的字段返回false，由调用方跳过
+     * @throws IOException 读取失败或格式错误
+     */
+    public boolean readRemoteField(String name, JsonReader reader) throws IOException {
+        if (GTaskStringUtils.GTASK_JSON_ID.equals(name)) {
+            setGid(nextString(reader));
+        } else if (GTaskStringUtils.GTASK_JSON_NAME.equals(name)) {
+            setName(nextString(reader));
+        } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+            setLastModified(reader.nextLong());
+        } else if (GTaskStringUtils.GTASK_JSON_DELETED.equals(name)) {
+            setDeleted(reader.nextBoolean());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 读取字符串字段，值为null时返回null
+     */
+    protected static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
     /* 基础属性访问方法 */
 
     /**
@@ -16,12 +16,16 @@
 
 package net.micode.notes.gtask.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -34,6 +38,8 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * 数据库交互工具类
  * 处理笔记数据的本地存储操作，支持创建/更新数据记录
@@ -53,6 +59,12 @@ public class SqlData {
             DataColumns.DATA3 // 4.扩展数据3（字符串）
     };
 
+    // 版本校验条件：数据行属于该笔记、且笔记的版本号未变化时更新才生效
+    // 按主键查找笔记，不扫描整个笔记表；参数见getVersionSelectionArgs
+    public static final String VERSION_SELECTION = DataColumns.NOTE_ID + "=? AND EXISTS"
+            + " (SELECT 1 FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=? AND "
+            + NoteColumns.VERSION + "=?)";
+
     // 列索引常量
     public static final int DATA_ID_COLUMN = 0;
     public static final int DATA_MIME_TYPE_COLUMN = 1;
@@ -118,37 +130,81 @@ public class SqlData {
      * @throws JSONException 解析异常
      */
     public void setContent(JSONObject js) throws JSONException {
+        applyContent(js.has(DataColumns.ID) ? js.getLong(DataColumns.ID) : INVALID_ID,
+                js.has(DataColumns.MIME_TYPE) ? js.getString(DataColumns.MIME_TYPE)
+                        : DataConstants.NOTE,
+                js.has(DataColumns.CONTENT) ? js.getString(DataColumns.CONTENT) : "",
+                js.has(DataColumns.DATA1) ? js.getLong(DataColumns.DATA1) : 0,
+                js.has(DataColumns.DATA3) ? js.getString(DataColumns.DATA3) : "");
+    }
+
+    /**
+     * 从流式解析器加载数据，逐字段读取，不构建JSON对象
+     * 
+     * @param reader 下一个记号为数据对象开始的解析器
+     * @throws IOException 读取失败或格式错误
+     */
+    public void setContent(JsonReader reader) throws IOException {
+        long dataId = INVALID_ID;
+        String dataMimeType = DataConstants.NOTE;
+        String dataContent = "";
+        long dataContentData1 = 0;
+        String dataContentData3 = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (DataColumns.ID.equals(name)) {
+                dataId = reader.nextLong();
+            } else if (DataColumns.MIME_TYPE.equals(name)) {
+                dataMimeType = reader.nextString();
+            } else if (DataColumns.CONTENT.equals(name)) {
+                dataContent = reader.nextString();
+            } else if (DataColumns.DATA1.equals(name)) {
+                dataContentData1 = reader.nextLong();
+            } else if (DataColumns.DATA3.equals(name)) {
+                dataContentData3 = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        applyContent(dataId, dataMimeType, dataContent, dataContentData1, dataContentData3);
+    }
+
+    /**
+     * 设置各字段的值，与当前值不同的字段记入差异数据
+     */
+    private void applyContent(long dataId, String dataMimeType, String dataContent,
+            long dataContentData1, String dataContentData3) {
         // ID处理
-        long dataId = js.has(DataColumns.ID) ? js.getLong(DataColumns.ID) : INVALID_ID;
         if (mIsCreate || mDataId != dataId) {
             mDiffDataValues.put(DataColumns.ID, dataId);
         }
         mDataId = dataId;
 
         // MIME类型处理
-        String dataMimeType = js.has(DataColumns.MIME_TYPE) ? js.getString(DataColumns.MIME_TYPE)
-                : DataConstants.NOTE;
         if (mIsCreate || !mDataMimeType.equals(dataMimeType)) {
             mDiffDataValues.put(DataColumns.MIME_TYPE, dataMimeType);
         }
         mDataMimeType = dataMimeType;
 
         // 内容主体处理
-        String dataContent = js.has(DataColumns.CONTENT) ? js.getString(DataColumns.CONTENT) : "";
         if (mIsCreate || !mDataContent.equals(dataContent)) {
             mDiffDataValues.put(DataColumns.CONTENT, dataContent);
         }
         mDataContent = dataContent;
 
         // 扩展数据1处理（长整型）
-        long dataContentData1 = js.has(DataColumns.DATA1) ? js.getLong(DataColumns.DATA1) : 0;
         if (mIsCreate || mDataContentData1 != dataContentData1) {
             mDiffDataValues.put(DataColumns.DATA1, dataContentData1);
         }
         mDataContentData1 = dataContentData1;
 
         // 扩展数据3处理（字符串）
-        String dataContentData3 = js.has(DataColumns.DATA3) ? js.getString(DataColumns.DATA3) : "";
         if (mIsCreate || !mDataContentData3.equals(dataContentData3)) {
             mDiffDataValues.put(DataColumns.DATA3, dataContentData3);
         }
@@ -176,14 +232,16 @@ public class SqlData {
     }
 
     /**
-     * 提交数据变更到数据库
+     * 提交数据变更到数据库，多条数据应使用SqlDataBatch在一个事务中提交
      * 
      * @param noteId          关联的笔记ID
      * @param validateVersion 是否启用版本验证
      * @param version         当前数据版本号
+     * @return SYNC_ACTION_NONE表示已写入或没有变更，
+     *         SYNC_ACTION_UPDATE_CONFLICT表示同步期间笔记被修改，变更未生效，差异数据保留
      * @throws ActionFailureException 数据库操作失败时抛出
      */
-    public void commit(long noteId, boolean validateVersion, long version) {
+    public int commit(long noteId, boolean validateVersion, long version) {
         if (mIsCreate) {
             // 新建记录处理
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
@@ -194,13 +252,7 @@ public class SqlData {
 
             // 执行插入操作
             Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                // 解析新记录的ID
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "ID解析异常：" + e);
-                throw new ActionFailureException("创建笔记失败");
-            }
+            mDataId = parseInsertedId(uri);
         } else {
             // 更新记录处理
             if (mDiffDataValues.size() > 0) {
@@ -212,15 +264,13 @@ public class SqlData {
                     result = mContentResolver.update(updateUri, mDiffDataValues, null, null);
                 } else {
                     // 带版本控制的更新（防止并发修改）
-                    String where = " ? IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                            + " WHERE " + NoteColumns.VERSION + "=?)";
-                    String[] args = { String.valueOf(noteId), String.valueOf(version) };
-
-                    result = mContentResolver.update(updateUri, mDiffDataValues, where, args);
+                    result = mContentResolver.update(updateUri, mDiffDataValues,
+                            VERSION_SELECTION, getVersionSelectionArgs(noteId, version));
                 }
 
                 if (result == 0) {
                     Log.w(TAG, "更新未生效（可能同步期间用户修改了数据）");
+                    return Node.SYNC_ACTION_UPDATE_CONFLICT;
                 }
             }
         }
@@ -228,6 +278,7 @@ public class SqlData {
         // 清理差异数据
         mDiffDataValues.clear();
         mIsCreate = false;
+        return Node.SYNC_ACTION_NONE;
     }
 
     /**
@@ -238,4 +289,74 @@ public class SqlData {
     public long getId() {
         return mDataId;
     }
-}
\ No newline at end of file
+
+    /**
+     * 生成本次变更的批量操作，供SqlDataBatch合并提交
+     *
+     * @param noteId          关联的笔记ID
+     * @param validateVersion 是否启用版本验证
+     * @param version         当前数据版本号
+     * @return 插入或更新操作，没有变更时返回null
+     */
+    ContentProviderOperation buildOperation(long noteId, boolean validateVersion, long version) {
+        if (mIsCreate) {
+            if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
+                mDiffDataValues.remove(DataColumns.ID);
+            }
+            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
+            return ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(mDiffDataValues).build();
+        }
+        if (mDiffDataValues.size() == 0) {
+            return null;
+        }
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                .withValues(mDiffDataValues);
+        if (validateVersion) {
+            builder.withSelection(VERSION_SELECTION, getVersionSelectionArgs(noteId, version));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 批量操作提交成功后更新本地状态
+     *
+     * @param result 对应操作的执行结果，插入时包含新记录的URI
+     */
+    void onCommitted(ContentProviderResult result) {
+        if (mIsCreate) {
+            mDataId = parseInsertedId(result.uri);
+        }
+        mDiffDataValues.clear();
+        mIsCreate = false;
+    }
+
+    /**
+     * 是否为尚未写入数据库的新记录
+     */
+    boolean isCreate() {
+        return mIsCreate;
+    }
+
+    /**
+     * VERSION_SELECTION的参数
+     *
+     * @param noteId  关联的笔记ID
+     * @param version 笔记的版本号
+     */
+    public static String[] getVersionSelectionArgs(long noteId, long version) {
+        String id = String.valueOf(noteId);
+        return new String[] { id, id, String.valueOf(version) };
+    }
+
+    private static long parseInsertedId(Uri uri) {
+        try {
+            // 解析新记录的ID
+            return Long.valueOf(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "ID解析异常：" + e);
+            throw new ActionFailureException("创建笔记失败");
+        }
+    }
+}
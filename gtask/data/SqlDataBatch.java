@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * SqlData批量提交工具
+ * 收集多条数据记录的变更，在一个事务中统一写入：
+ * 1. 需要版本校验的笔记先用一次查询取出当前版本号，版本已变化的笔记的全部数据直接记为冲突
+ * 2. 其余变更合并为一次applyBatch，更新操作仍带版本条件，事务内被修改的记录同样记为冲突
+ * 3. 每条记录的结果以Node.SYNC_ACTION_*返回，冲突的记录保留差异数据，可在下次同步时重新提交
+ */
+public class SqlDataBatch {
+    private static final String TAG = SqlDataBatch.class.getSimpleName();
+
+    // IN查询每次最多的参数个数（SQLite默认最多999个参数）
+    private static final int IN_CHUNK_SIZE = 500;
+
+    private final ContentResolver mContentResolver;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    private static class Entry {
+        final SqlData data;
+        final long noteId;
+        final boolean validateVersion;
+        final long version;
+        int result = Node.SYNC_ACTION_NONE;
+
+        Entry(SqlData data, long noteId, boolean validateVersion, long version) {
+            this.data = data;
+            this.noteId = noteId;
+            this.validateVersion = validateVersion;
+            this.version = version;
+        }
+    }
+
+    public SqlDataBatch(ContentResolver resolver) {
+        mContentResolver = resolver;
+    }
+
+    /**
+     * 加入一条待提交的数据，参数与SqlData.commit相同
+     *
+     * @return 该记录在批次中的序号，对应commit返回数组的下标
+     */
+    public int add(SqlData data, long noteId, boolean validateVersion, long version) {
+        if (data == null) {
+            throw new IllegalArgumentException("data should not be null");
+        }
+        mEntries.add(new Entry(data, noteId, validateVersion, version));
+        return mEntries.size() - 1;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 放弃所有尚未提交的数据
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * 在一个事务中提交所有数据
+     *
+     * @return 按加入顺序排列的结果，SYNC_ACTION_NONE表示已写入或没有变更，
+     *         SYNC_ACTION_UPDATE_CONFLICT表示同步期间笔记被修改，本次变更未生效
+     * @throws ActionFailureException 数据库操作失败时抛出，此时所有变更都未生效
+     */
+    public int[] commit() {
+        int[] results = new int[mEntries.size()];
+        if (mEntries.isEmpty()) {
+            return results;
+        }
+
+        Map<Long, Long> currentVersions = queryVersions();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ArrayList<Entry> applied = new ArrayList<Entry>();
+        for (Entry entry : mEntries) {
+            if (entry.validateVersion) {
+                Long current = currentVersions.get(entry.noteId);
+                if (current == null || current != entry.version) {
+                    entry.result = Node.SYNC_ACTION_UPDATE_CONFLICT;
+                    continue;
+                }
+            }
+            ContentProviderOperation op = entry.data.buildOperation(entry.noteId,
+                    entry.validateVersion, entry.version);
+            if (op != null) {
+                operations.add(op);
+                applied.add(entry);
+            }
+        }
+
+        if (!operations.isEmpty()) {
+            ContentProviderResult[] opResults;
+            try {
+                opResults = mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+            } catch (RemoteException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("批量提交数据失败");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("批量提交数据失败");
+            }
+
+            for (int i = 0; i < applied.size(); i++) {
+                Entry entry = applied.get(i);
+                ContentProviderResult result = opResults[i];
+                if (!entry.data.isCreate() && (result.count == null || result.count == 0)) {
+                    // 事务开始前笔记已被修改
+                    entry.result = Node.SYNC_ACTION_UPDATE_CONFLICT;
+                } else {
+                    entry.data.onCommitted(result);
+                }
+            }
+        }
+
+        int conflicts = 0;
+        for (int i = 0; i < mEntries.size(); i++) {
+            results[i] = mEntries.get(i).result;
+            if (results[i] == Node.SYNC_ACTION_UPDATE_CONFLICT) {
+                conflicts++;
+            }
+        }
+        if (conflicts > 0) {
+            Log.w(TAG, conflicts + " of " + results.length
+                    + " data rows not committed, notes changed during sync");
+        }
+        mEntries.clear();
+        return results;
+    }
+
+    /**
+     * 一次查询取出所有需要版本校验的笔记的当前版本号
+     */
+    private Map<Long, Long> queryVersions() {
+        LinkedHashSet<String> idSet = new LinkedHashSet<String>();
+        for (Entry entry : mEntries) {
+            if (entry.validateVersion) {
+                idSet.add(String.valueOf(entry.noteId));
+            }
+        }
+        ArrayList<String> ids = new ArrayList<String>(idSet);
+
+        Map<Long, Long> versions = new HashMap<Long, Long>();
+        for (int start = 0; start < ids.size(); start += IN_CHUNK_SIZE) {
+            int end = Math.min(start + IN_CHUNK_SIZE, ids.size());
+            StringBuilder selection = new StringBuilder(NoteColumns.ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+            }
+            selection.append(")");
+
+            Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.ID, NoteColumns.VERSION
+            }, selection.toString(), ids.subList(start, end).toArray(new String[end - start]),
+                    null);
+            if (c == null) {
+                throw new ActionFailureException("查询笔记版本失败");
+            }
+            try {
+                while (c.moveToNext()) {
+                    versions.put(c.getLong(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return versions;
+    }
+}
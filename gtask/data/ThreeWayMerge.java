@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 便签正文的按行三方合并
+ * 以上次同步时的正文为基准，分别比较本地和远程的修改：
+ * 1. 只有一方修改的区域直接采用修改后的内容
+ * 2. 两方做了相同修改的区域只保留一份
+ * 3. 两方对同一区域做了不同修改时依次保留本地和远程的内容，不丢失任何一方的文字，并计为一处冲突
+ * 基准为空（例如升级前同步过的便签）时，两方不同的部分都按冲突处理
+ */
+public class ThreeWayMerge {
+
+    // 逐行比较时动态规划表的最大单元数，超过时把中间部分整体视为修改
+    private static final int MAX_LCS_CELLS = 250000;
+
+    /**
+     * 合并结果
+     */
+    public static class Result {
+        public final String text;        // 合并后的正文
+        public final int conflicts;      // 两方修改冲突的区域数
+        public final boolean localChanged;  // 合并结果与本地正文不同，需要写回本地
+        public final boolean remoteChanged; // 合并结果与远程正文不同，需要上传
+
+        Result(String text, int conflicts, boolean localChanged, boolean remoteChanged) {
+            this.text = text;
+            this.conflicts = conflicts;
+            this.localChanged = localChanged;
+            this.remoteChanged = remoteChanged;
+        }
+    }
+
+    private ThreeWayMerge() {
+    }
+
+    /**
+     * 合并本地和远程的正文
+     * @param base 上次同步时的正文
+     * @param local 本地正文
+     * @param remote 远程正文
+     */
+    public static Result merge(String base, String local, String remote) {
+        base = base != null ? base : "";
+        local = local != null ? local : "";
+        remote = remote != null ? remote : "";
+        if (local.equals(remote)) {
+            return new Result(local, 0, false, false);
+        }
+        if (base.equals(local)) {
+            return new Result(remote, 0, true, false);
+        }
+        if (base.equals(remote)) {
+            return new Result(local, 0, false, true);
+        }
+
+        String[] baseLines = base.split("\n", -1);
+        String[] localLines = local.split("\n", -1);
+        String[] remoteLines = remote.split("\n", -1);
+        int[] localMap = matchLines(baseLines, localLines);
+        int[] remoteMap = matchLines(baseLines, remoteLines);
+
+        List<String> merged = new ArrayList<String>();
+        int conflicts = 0;
+        int b = 0, l = 0, r = 0;
+        while (b < baseLines.length || l < localLines.length || r < remoteLines.length) {
+            // 三方一致的行
+            if (b < baseLines.length && localMap[b] == l && remoteMap[b] == r) {
+                merged.add(baseLines[b]);
+                b++;
+                l++;
+                r++;
+                continue;
+            }
+
+            // 找到下一个三方一致的行，中间的部分为一个修改区域
+            int nextB = b;
+            while (nextB < baseLines.length
+                    && (localMap[nextB] < l || remoteMap[nextB] < r)) {
+                nextB++;
+            }
+            int nextL = nextB < baseLines.length ? localMap[nextB] : localLines.length;
+            int nextR = nextB < baseLines.length ? remoteMap[nextB] : remoteLines.length;
+
+            boolean localEdited = !rangeEquals(baseLines, b, nextB, localLines, l, nextL);
+            boolean remoteEdited = !rangeEquals(baseLines, b, nextB, remoteLines, r, nextR);
+            if (!localEdited) {
+                addRange(merged, remoteLines, r, nextR);
+            } else if (!remoteEdited || rangeEquals(localLines, l, nextL, remoteLines, r, nextR)) {
+                addRange(merged, localLines, l, nextL);
+            } else {
+                addRange(merged, localLines, l, nextL);
+                addRange(merged, remoteLines, r, nextR);
+                conflicts++;
+            }
+            b = nextB;
+            l = nextL;
+            r = nextR;
+        }
+
+        String text = join(merged);
+        return new Result(text, conflicts, !text.equals(local), !text.equals(remote));
+    }
+
+    /**
+     * 求基准与另一版本的最长公共子序列
+     * @return 基准中每一行在另一版本中对应的行号，没有对应时为-1
+     */
+    private static int[] matchLines(String[] base, String[] other) {
+        int[] map = new int[base.length];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = -1;
+        }
+
+        // 相同的开头和结尾直接对应
+        int prefix = 0;
+        while (prefix < base.length && prefix < other.length
+                && base[prefix].equals(other[prefix])) {
+            map[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < base.length - prefix && suffix < other.length - prefix
+                && base[base.length - 1 - suffix].equals(other[other.length - 1 - suffix])) {
+            map[base.length - 1 - suffix] = other.length - 1 - suffix;
+            suffix++;
+        }
+
+        int n = base.length - prefix - suffix;
+        int m = other.length - prefix - suffix;
+        if (n == 0 || m == 0 || (long) (n + 1) * (m + 1) > MAX_LCS_CELLS) {
+            return map;
+        }
+
+        // lcs[i][j]为base[prefix+i..]与other[prefix+j..]的最长公共子序列长度
+        int[] lcs = new int[(n + 1) * (m + 1)];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                if (base[prefix + i].equals(other[prefix + j])) {
+                    lcs[i * (m + 1) + j] = lcs[(i + 1) * (m + 1) + j + 1] + 1;
+                } else {
+                    lcs[i * (m + 1) + j] = Math.max(lcs[(i + 1) * (m + 1) + j],
+                            lcs[i * (m + 1) + j + 1]);
+                }
+            }
+        }
+        int i = 0, j = 0;
+        while (i < n && j < m) {
+            if (base[prefix + i].equals(other[prefix + j])) {
+                map[prefix + i] = prefix + j;
+                i++;
+                j++;
+            } else if (lcs[(i + 1) * (m + 1) + j] >= lcs[i * (m + 1) + j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return map;
+    }
+
+    private static boolean rangeEquals(String[] a, int aStart, int aEnd,
+            String[] b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (!a[aStart + i].equals(b[bStart + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addRange(List<String> out, String[] lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out.add(lines[i]);
+        }
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(lines.get(i));
+        }
+        return sb.toString();
+    }
+}
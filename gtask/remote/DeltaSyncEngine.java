@@ -0,0 +1,1244 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.Attachment;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.SqlData;
+import net.micode.notes.gtask.data.SqlDataBatch;
+import net.micode.notes.gtask.data.ThreeWayMerge;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 增量同步引擎
+ * 只处理上次同步之后发生变化的数据，同步耗时与变化的数量相关，与账户中的便签总数无关：
+ * 1. 本地只查询LOCAL_MODIFIED=1或修改时间晚于本地水位的笔记，远程只取远程水位之后变化的节点
+ * 2. 对两边的变化做一次遍历，按gid配对后得出每条笔记的Node.SYNC_ACTION_*，组成同步计划
+ * 3. 远程动作逐条交给RemoteStore执行，本地动作和同步状态的回写合并成批量事务
+ *    两边都修改的文本便签按TextNote.SYNC_BASE做三方合并，只上传一次合并结果
+ * 4. 全部完成后保存新的水位；中途失败或取消时水位不变，下次同步重新处理这些变化
+ * 文件夹的本地ID只在本设备有效，上传时在笔记内容中带上父文件夹的gid（NOTE_PARENT_GID），
+ * 写入本地时按gid找到本地的文件夹；父文件夹还没有同步的计划项推迟到其他计划项之后处理
+ */
+public class DeltaSyncEngine {
+    private static final String TAG = DeltaSyncEngine.class.getSimpleName();
+
+    // 本地和远程同步水位在偏好设置中的键
+    private static final String PREFERENCE_LOCAL_WATERMARK = "pref_delta_sync_local_watermark";
+    private static final String PREFERENCE_REMOTE_WATERMARK = "pref_delta_sync_remote_watermark";
+
+    // 每个批量事务最多包含的操作数
+    private static final int BATCH_SIZE = 200;
+
+    // IN查询每次最多的参数个数（SQLite默认最多999个参数）
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // 笔记表查询字段，Node.getSyncAction按该顺序读取游标
+    public static final String[] PROJECTION_NOTE = new String[] {
+        NoteColumns.ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.CREATED_DATE,
+        NoteColumns.HAS_ATTACHMENT,
+        NoteColumns.MODIFIED_DATE,
+        NoteColumns.NOTES_COUNT,
+        NoteColumns.PARENT_ID,
+        NoteColumns.SNIPPET,
+        NoteColumns.TYPE,
+        NoteColumns.WIDGET_ID,
+        NoteColumns.WIDGET_TYPE,
+        NoteColumns.SYNC_ID,
+        NoteColumns.LOCAL_MODIFIED,
+        NoteColumns.ORIGIN_PARENT_ID,
+        NoteColumns.GTASK_ID,
+        NoteColumns.VERSION
+    };
+
+    public static final int ID_COLUMN = 0;
+    public static final int PARENT_ID_COLUMN = 7;
+    public static final int TYPE_COLUMN = 9;
+    public static final int SYNC_ID_COLUMN = 12;
+    public static final int LOCAL_MODIFIED_COLUMN = 13;
+    public static final int GTASK_ID_COLUMN = 15;
+    public static final int VERSION_COLUMN = 16;
+
+    // 写入本地时由数据库维护、不从远程内容覆盖的笔记列
+    // PARENT_ID按NOTE_PARENT_GID重新计算，ORIGIN_PARENT_ID只在本设备有意义
+    private static final String[] NOTE_COLUMNS_KEPT_LOCALLY = new String[] {
+        NoteColumns.ID,
+        NoteColumns.HAS_ATTACHMENT,
+        NoteColumns.NOTES_COUNT,
+        NoteColumns.PARENT_ID,
+        NoteColumns.SYNC_ID,
+        NoteColumns.LOCAL_MODIFIED,
+        NoteColumns.ORIGIN_PARENT_ID,
+        NoteColumns.GTASK_ID,
+        NoteColumns.VERSION
+    };
+
+    // 上传的笔记内容中父文件夹gid的键，父文件夹是系统文件夹时为空
+    static final String NOTE_PARENT_GID = "parent_gid";
+
+    // 上传的数据行字段，SYNC_BASE（DATA5）只是本设备的合并基准，不上传
+    private static final String[] PROJECTION_DATA = new String[] {
+        DataColumns.ID,
+        DataColumns.MIME_TYPE,
+        DataColumns.NOTE_ID,
+        DataColumns.CREATED_DATE,
+        DataColumns.MODIFIED_DATE,
+        DataColumns.CONTENT,
+        DataColumns.DATA1,
+        DataColumns.DATA2,
+        DataColumns.DATA3,
+        DataColumns.DATA4
+    };
+
+    /**
+     * 远程存储，由具体的同步后端实现
+     */
+    public interface RemoteStore {
+        /**
+         * 获取远程水位之后发生变化的节点（包括已删除的节点）
+         * 节点应逐个交给handler，例如用GTaskResponseDecoder边读取响应边回调，不必先收集成列表
+         * @param watermark 上次同步保存的远程水位，0表示获取全部节点
+         * @param handler 节点处理器
+         */
+        void getChangedNodes(long watermark, GTaskResponseDecoder.NodeHandler handler)
+                throws NetworkFailureException;
+
+        /**
+         * 获取远程当前的水位，同步成功后保存，下次作为getChangedNodes的参数
+         */
+        long getWatermark() throws NetworkFailureException;
+
+        /**
+         * 把本地笔记的变化写到远程
+         * @param action SYNC_ACTION_ADD_REMOTE、SYNC_ACTION_UPDATE_REMOTE或SYNC_ACTION_DEL_REMOTE
+         * @param local 本地内容，META_HEAD_NOTE为笔记，META_HEAD_DATA为数据数组
+         * @param node 远程节点，新增时为null
+         * @return 写入后的远程节点，其gid和最后修改时间会回写到本地
+         */
+        Node push(int action, JSONObject local, Node node) throws NetworkFailureException;
+    }
+
+    /**
+     * 同步计划中的一项
+     */
+    public static class SyncEntry {
+        public final int action;     // Node.SYNC_ACTION_*
+        public final long noteId;    // 本地笔记ID，SYNC_ACTION_ADD_LOCAL时为0
+        public final long version;   // 制定计划时的本地版本号
+        public final String gid;     // 远程节点ID，尚未同步过时为空
+        public final Node node;      // 远程节点，远程没有变化时为null
+        JSONObject localNote;        // 需要写到远程的本地笔记内容
+
+        SyncEntry(int action, long noteId, long version, String gid, Node node) {
+            this.action = action;
+            this.noteId = noteId;
+            this.version = version;
+            this.gid = gid;
+            this.node = node;
+        }
+    }
+
+    /**
+     * 同步计划，按动作类型统计数量
+     */
+    public static class Plan {
+        private final List<SyncEntry> mEntries = new ArrayList<SyncEntry>();
+        private final int[] mCounts = new int[Node.SYNC_ACTION_ERROR + 1];
+        private int mScannedLocal;   // 扫描的本地行数
+        private int mScannedRemote;  // 获取的远程节点数
+
+        void add(SyncEntry entry) {
+            if (entry == null || entry.action == Node.SYNC_ACTION_NONE) {
+                return;
+            }
+            mEntries.add(entry);
+            mCounts[entry.action]++;
+        }
+
+        public List<SyncEntry> getEntries() {
+            return mEntries;
+        }
+
+        public int getCount(int action) {
+            return mCounts[action];
+        }
+
+        public int getScannedLocalCount() {
+            return mScannedLocal;
+        }
+
+        public int getScannedRemoteCount() {
+            return mScannedRemote;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned local " + mScannedLocal + ", remote " + mScannedRemote
+                    + ", add remote " + mCounts[Node.SYNC_ACTION_ADD_REMOTE]
+                    + ", update remote " + mCounts[Node.SYNC_ACTION_UPDATE_REMOTE]
+                    + ", del remote " + mCounts[Node.SYNC_ACTION_DEL_REMOTE]
+                    + ", add local " + mCounts[Node.SYNC_ACTION_ADD_LOCAL]
+                    + ", update local " + mCounts[Node.SYNC_ACTION_UPDATE_LOCAL]
+                    + ", del local " + mCounts[Node.SYNC_ACTION_DEL_LOCAL]
+                    + ", conflict " + mCounts[Node.SYNC_ACTION_UPDATE_CONFLICT];
+        }
+    }
+
+    /**
+     * 已有笔记的一组数据行变更，以及数据行写入后才能执行的操作
+     */
+    private static class PendingNote {
+        final long noteId;
+        // 数据行在SqlDataBatch中的起止下标
+        final int first;
+        final int end;
+        final List<ContentProviderOperation> after;
+
+        PendingNote(long noteId, int first, int end, List<ContentProviderOperation> after) {
+            this.noteId = noteId;
+            this.first = first;
+            this.end = end;
+            this.after = after;
+        }
+    }
+
+    /**
+     * 批量操作缓冲区，操作数达到BATCH_SIZE时自动提交
+     * 已有笔记的数据行通过SqlDataBatch提交：提交时先在一个事务中按版本号写入数据行，
+     * 笔记没有冲突时再把它随后的操作（删除多余的数据行、回写笔记）加入本批次
+     * 不是线程安全的，并发执行的阶段各自持有一个
+     */
+    static class OperationBatch {
+        private final ContentResolver mResolver;
+        private final ArrayList<ContentProviderOperation> mOperations =
+                new ArrayList<ContentProviderOperation>();
+        private final SqlDataBatch mDataBatch;
+        private final ArrayList<PendingNote> mPendingNotes = new ArrayList<PendingNote>();
+        // 等待数据行提交的操作数（数据行和随后的操作）
+        private int mPendingCount;
+
+        OperationBatch(ContentResolver resolver) {
+            mResolver = resolver;
+            mDataBatch = new SqlDataBatch(resolver);
+        }
+
+        void add(ContentProviderOperation operation) {
+            mOperations.add(operation);
+            if (size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * 加入一条已有笔记的数据行变更
+         * 数据行以计划时的版本号校验，同步期间笔记被修改时整条笔记记为冲突，after中的操作不执行
+         * @param data 数据行，没有变化的行不会写入
+         * @param after 数据行写入后执行的操作
+         */
+        void addNoteData(long noteId, long version, List<SqlData> data,
+                List<ContentProviderOperation> after) {
+            int first = mDataBatch.size();
+            for (SqlData row : data) {
+                mDataBatch.add(row, noteId, true, version);
+            }
+            mPendingNotes.add(new PendingNote(noteId, first, mDataBatch.size(), after));
+            mPendingCount += data.size() + after.size();
+            if (size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * 保证接下来的count个操作能放进同一批次，需要回引用的操作组调用
+         * 等待数据行提交的操作在flush时追加到末尾，不影响这里返回的下标
+         * @return 下一个操作在批次中的下标
+         */
+        int reserve(int count) {
+            if (size() + count > BATCH_SIZE) {
+                flush();
+            }
+            return mOperations.size();
+        }
+
+        /**
+         * 直接加入操作，不触发自动提交，与reserve配合使用
+         */
+        void addReserved(ContentProviderOperation operation) {
+            mOperations.add(operation);
+        }
+
+        int size() {
+            return mOperations.size() + mPendingCount;
+        }
+
+        /**
+         * 出错后尽量提交已经完成的操作（例如已写到远程的笔记的gid），
+         * 提交失败只记录日志，不掩盖原来的异常
+         */
+        void flushAfterFailure() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Flush after failure failed: " + e.toString());
+            }
+        }
+
+        void flush() {
+            try {
+                commitNoteData();
+                if (mOperations.isEmpty()) {
+                    return;
+                }
+                mResolver.applyBatch(Notes.AUTHORITY, mOperations);
+            } catch (RemoteException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("apply sync batch failed");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("apply sync batch failed");
+            } finally {
+                mOperations.clear();
+            }
+        }
+
+        /**
+         * 提交等待中的数据行，没有冲突的笔记的后续操作加入本批次
+         */
+        private void commitNoteData() {
+            if (mPendingNotes.isEmpty()) {
+                return;
+            }
+            try {
+                int[] results = mDataBatch.commit();
+                for (PendingNote pending : mPendingNotes) {
+                    if (hasConflict(results, pending)) {
+                        Log.w(TAG, "Note " + pending.noteId
+                                + " changed during sync, remote update skipped");
+                    } else {
+                        mOperations.addAll(pending.after);
+                    }
+                }
+            } finally {
+                mDataBatch.clear();
+                mPendingNotes.clear();
+                mPendingCount = 0;
+            }
+        }
+
+        private static boolean hasConflict(int[] results, PendingNote pending) {
+            for (int i = pending.first; i < pending.end; i++) {
+                if (results[i] == Node.SYNC_ACTION_UPDATE_CONFLICT) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 本地已有的数据行，写入远程内容时按类型和附件序号配对
+     */
+    private static class LocalDataRow {
+        final SqlData data;
+        final String mimeType;
+        final long ordinal;
+
+        LocalDataRow(SqlData data, String mimeType, long ordinal) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.ordinal = ordinal;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final RemoteStore mRemote;
+    private volatile boolean mCancelled;
+
+    // 文件夹的本地ID和gid的对应关系，按需查询，同步中上传的文件夹直接加入；受mFolderGids保护
+    private final Map<Long, String> mFolderGids = new HashMap<Long, String>();
+    private final Map<String, Long> mFolderIds = new HashMap<String, Long>();
+
+    public DeltaSyncEngine(Context context, RemoteStore remote) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mRemote = remote;
+    }
+
+    /**
+     * 取消同步，已提交的批次保留，水位不更新
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 清除同步水位，下次同步重新比较全部数据（例如更换同步账户后）
+     */
+    public static void resetWatermark(Context context) {
+        getPreferences(context).edit()
+                .remove(PREFERENCE_LOCAL_WATERMARK)
+                .remove(PREFERENCE_REMOTE_WATERMARK)
+                .commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    long getLocalWatermark() {
+        return getPreferences(mContext).getLong(PREFERENCE_LOCAL_WATERMARK, 0);
+    }
+
+    long getRemoteWatermark() {
+        return getPreferences(mContext).getLong(PREFERENCE_REMOTE_WATERMARK, 0);
+    }
+
+    /**
+     * 同步全部完成后保存新的水位
+     */
+    void saveWatermarks(long localWatermark, long remoteWatermark) {
+        getPreferences(mContext).edit()
+                .putLong(PREFERENCE_LOCAL_WATERMARK, localWatermark)
+                .putLong(PREFERENCE_REMOTE_WATERMARK, remoteWatermark)
+                .commit();
+    }
+
+    RemoteStore getRemote() {
+        return mRemote;
+    }
+
+    ContentResolver getResolver() {
+        return mResolver;
+    }
+
+    /**
+     * 执行一次增量同步
+     * @return 计划是否全部执行完成，被取消时返回false
+     * @throws NetworkFailureException 访问远程失败
+     * @throws ActionFailureException 写入本地数据失败
+     */
+    public boolean sync() throws NetworkFailureException {
+        mCancelled = false;
+
+        // 先记下开始时间和远程水位，同步期间发生的变化留给下一次同步
+        long syncStart = System.currentTimeMillis();
+        long newRemoteWatermark = mRemote.getWatermark();
+
+        Plan plan = computePlan(getLocalWatermark(), getRemoteWatermark());
+        Log.d(TAG, "Sync plan: " + plan);
+        if (mCancelled) {
+            return false;
+        }
+
+        OperationBatch batch = new OperationBatch(mResolver);
+        boolean completed;
+        try {
+            completed = executePlan(plan, batch);
+        } catch (NetworkFailureException e) {
+            batch.flushAfterFailure();
+            throw e;
+        } catch (RuntimeException e) {
+            batch.flushAfterFailure();
+            throw e;
+        }
+        // 取消时同样提交已完成的操作，已写到远程的笔记必须回写gid
+        batch.flush();
+        if (!completed) {
+            return false;
+        }
+
+        saveWatermarks(syncStart, newRemoteWatermark);
+        return true;
+    }
+
+    /**
+     * 执行同步计划，父文件夹尚未同步的计划项在最后处理
+     * @return 是否全部执行完成，被取消时返回false
+     */
+    private boolean executePlan(Plan plan, OperationBatch batch) throws NetworkFailureException {
+        ArrayList<SyncEntry> pushes = new ArrayList<SyncEntry>();
+        for (SyncEntry entry : plan.getEntries()) {
+            if (entry.localNote != null) {
+                pushes.add(entry);
+            }
+        }
+        Map<Long, JSONArray> dataByNote = loadData(pushes);
+        ArrayList<SyncEntry> deferred = new ArrayList<SyncEntry>();
+        for (SyncEntry entry : pushes) {
+            if (mCancelled) {
+                return false;
+            }
+            if (!pushEntry(entry, dataByNote.get(entry.noteId), batch, false)) {
+                deferred.add(entry);
+            }
+        }
+        for (SyncEntry entry : deferred) {
+            if (mCancelled) {
+                return false;
+            }
+            pushEntry(entry, dataByNote.get(entry.noteId), batch, true);
+        }
+
+        deferred.clear();
+        for (SyncEntry entry : plan.getEntries()) {
+            if (mCancelled) {
+                return false;
+            }
+            if (entry.localNote == null && !applyLocalEntry(entry, batch, false)) {
+                deferred.add(entry);
+            }
+        }
+        for (SyncEntry entry : deferred) {
+            if (mCancelled) {
+                return false;
+            }
+            applyLocalEntry(entry, batch, true);
+        }
+        return true;
+    }
+
+    /**
+     * 计算同步计划
+     * @param localWatermark 本地水位，修改时间晚于它的笔记参与比较
+     * @param remoteWatermark 远程水位
+     */
+    public Plan computePlan(long localWatermark, long remoteWatermark)
+            throws NetworkFailureException {
+        final Plan plan = new Plan();
+        final Map<String, Node> remoteNodes = new HashMap<String, Node>();
+        mRemote.getChangedNodes(remoteWatermark, new GTaskResponseDecoder.NodeHandler() {
+            public void onNode(Node node) {
+                if (!TextUtils.isEmpty(node.getGid())) {
+                    remoteNodes.put(node.getGid(), node);
+                }
+            }
+        });
+        plan.mScannedRemote = remoteNodes.size();
+
+        // 1. 本地有变化的笔记，远程同时有变化的交给Node.getSyncAction判断
+        Cursor c = queryChangedNotes(localWatermark);
+        try {
+            while (c.moveToNext() && !mCancelled) {
+                plan.mScannedLocal++;
+                String gid = c.getString(GTASK_ID_COLUMN);
+                Node node = TextUtils.isEmpty(gid) ? null : remoteNodes.remove(gid);
+                plan.add(planLocalRow(c, node));
+            }
+        } finally {
+            c.close();
+        }
+
+        // 2. 只有远程变化的节点，按gid分批找出对应的本地笔记
+        ArrayList<String> gids = new ArrayList<String>(remoteNodes.keySet());
+        for (int start = 0; start < gids.size() && !mCancelled; start += IN_CHUNK_SIZE) {
+            c = queryNotesByGid(gids.subList(start, Math.min(start + IN_CHUNK_SIZE, gids.size())));
+            try {
+                while (c.moveToNext()) {
+                    plan.mScannedLocal++;
+                    plan.add(planLocalRow(c, remoteNodes.remove(c.getString(GTASK_ID_COLUMN))));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        // 3. 本地没有对应笔记的远程节点
+        for (Node node : remoteNodes.values()) {
+            plan.add(planRemoteOnly(node));
+        }
+        return plan;
+    }
+
+    /**
+     * 查询本地有变化的笔记：LOCAL_MODIFIED=1或修改时间晚于本地水位
+     */
+    Cursor queryChangedNotes(long localWatermark) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, PROJECTION_NOTE,
+                NoteColumns.TYPE + "<>? AND (" + NoteColumns.LOCAL_MODIFIED + "=1 OR "
+                        + NoteColumns.MODIFIED_DATE + ">?)",
+                new String[] {
+                    String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(localWatermark)
+                }, null);
+        if (c == null) {
+            Log.e(TAG, "Query changed notes failed");
+            throw new ActionFailureException("query changed notes failed");
+        }
+        return c;
+    }
+
+    /**
+     * 按gid查询本地笔记，gids不应超过IN_CHUNK_SIZE个
+     */
+    Cursor queryNotesByGid(List<String> gids) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, PROJECTION_NOTE,
+                NoteColumns.GTASK_ID + " IN (" + placeholders(gids.size()) + ")",
+                gids.toArray(new String[gids.size()]), null);
+        if (c == null) {
+            Log.e(TAG, "Query notes by gid failed");
+            throw new ActionFailureException("query notes by gid failed");
+        }
+        return c;
+    }
+
+    /**
+     * 决定一条本地笔记的同步动作
+     * @param c 指向本地笔记的游标（PROJECTION_NOTE）
+     * @param node 远程节点，远程没有变化时为null
+     */
+    SyncEntry planLocalRow(Cursor c, Node node) {
+        long noteId = c.getLong(ID_COLUMN);
+        long version = c.getLong(VERSION_COLUMN);
+        String gid = c.getString(GTASK_ID_COLUMN);
+        boolean inTrash = c.getLong(PARENT_ID_COLUMN) == Notes.ID_TRASH_FOLER;
+        boolean localModified = c.getInt(LOCAL_MODIFIED_COLUMN) != 0;
+
+        int action;
+        if (TextUtils.isEmpty(gid)) {
+            // 从未同步过
+            action = inTrash ? Node.SYNC_ACTION_NONE : Node.SYNC_ACTION_ADD_REMOTE;
+        } else if (inTrash) {
+            action = (node != null && node.getDeleted()) ? Node.SYNC_ACTION_NONE
+                    : Node.SYNC_ACTION_DEL_REMOTE;
+        } else if (node == null) {
+            // 远程没有变化
+            action = localModified ? Node.SYNC_ACTION_UPDATE_REMOTE : Node.SYNC_ACTION_NONE;
+        } else if (node.getDeleted()) {
+            action = Node.SYNC_ACTION_DEL_LOCAL;
+        } else {
+            action = node.getSyncAction(c);
+        }
+
+        SyncEntry entry = new SyncEntry(action, noteId, version, gid, node);
+        if (isRemoteAction(action)) {
+            entry.localNote = rowToJSON(c);
+        }
+        return entry;
+    }
+
+    /**
+     * 决定本地没有对应笔记的远程节点的同步动作
+     * @return 需要新建本地笔记时返回计划项，远程已删除时返回null
+     */
+    static SyncEntry planRemoteOnly(Node node) {
+        if (node.getDeleted()) {
+            return null;
+        }
+        return new SyncEntry(Node.SYNC_ACTION_ADD_LOCAL, 0, 0, node.getGid(), node);
+    }
+
+    /**
+     * 是否需要访问远程，两边都有修改时需要上传合并结果
+     */
+    static boolean isRemoteAction(int action) {
+        return action == Node.SYNC_ACTION_ADD_REMOTE || action == Node.SYNC_ACTION_UPDATE_REMOTE
+                || action == Node.SYNC_ACTION_DEL_REMOTE
+                || action == Node.SYNC_ACTION_UPDATE_CONFLICT;
+    }
+
+    /**
+     * 把一条本地变化写到远程，写入成功后把gid和远程修改时间回写到本地
+     * 回写以计划时的版本号为条件，同步期间被用户修改过的笔记保持LOCAL_MODIFIED=1
+     * @param data 笔记的数据行，见loadData
+     * @param force 父文件夹还没有gid时是否仍然上传，此时笔记在其他设备上放在根目录
+     * @return 是否已上传，父文件夹还没有上传时返回false，调用方应在其他计划项之后以force重试
+     */
+    boolean pushEntry(SyncEntry entry, JSONArray data, OperationBatch batch, boolean force)
+            throws NetworkFailureException {
+        if (entry.action != Node.SYNC_ACTION_DEL_REMOTE && !attachParentGid(entry, force)) {
+            return false;
+        }
+        if (entry.action == Node.SYNC_ACTION_UPDATE_CONFLICT) {
+            resolveConflict(entry, data, batch);
+            return true;
+        }
+
+        Node node = mRemote.push(entry.action, buildLocalJSON(entry.localNote, data), entry.node);
+        ContentValues values = new ContentValues();
+        if (entry.action == Node.SYNC_ACTION_DEL_REMOTE) {
+            values.put(NoteColumns.GTASK_ID, "");
+            values.put(NoteColumns.SYNC_ID, 0);
+        } else {
+            if (node == null || TextUtils.isEmpty(node.getGid())) {
+                throw new ActionFailureException("remote returned no gid for note "
+                        + entry.noteId);
+            }
+            values.put(NoteColumns.GTASK_ID, node.getGid());
+            values.put(NoteColumns.SYNC_ID, node.getLastModified());
+            if (entry.localNote.optInt(NoteColumns.TYPE) == Notes.TYPE_FOLDER) {
+                // 回写还在批次中，之后上传的子笔记直接从这里取得gid
+                putFolder(entry.noteId, node.getGid());
+            }
+
+            // 上传的正文成为下次三方合并的基准
+            JSONObject text = findTextData(data);
+            if (text != null) {
+                addSyncBaseUpdate(entry, text.optLong(DataColumns.ID),
+                        text.optString(DataColumns.CONTENT), false, batch);
+            }
+        }
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+        addSyncedNoteUpdate(entry, values, batch);
+        return true;
+    }
+
+    /**
+     * 在上传的笔记内容中写入父文件夹的gid
+     * @return 是否可以上传，父文件夹还没有gid且force为false时返回false
+     */
+    private boolean attachParentGid(SyncEntry entry, boolean force) {
+        long parentId = entry.localNote.optLong(NoteColumns.PARENT_ID);
+        String parentGid = "";
+        if (parentId > 0) {
+            parentGid = getFolderGid(parentId);
+            if (TextUtils.isEmpty(parentGid)) {
+                if (!force) {
+                    return false;
+                }
+                Log.w(TAG, "Folder " + parentId + " of note " + entry.noteId + " has no gid");
+                parentGid = "";
+            }
+        }
+        try {
+            entry.localNote.put(NOTE_PARENT_GID, parentGid);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("build local json failed");
+        }
+        return true;
+    }
+
+    /**
+     * 两边都修改了同一条便签：以上次同步的正文为基准按行三方合并
+     * 远程内容已在拉取的节点中，不需要重新下载；合并结果与远程不同时上传一次，与本地不同时写回本地
+     * 不是文本便签（如通话记录）时保持原来的处理方式，以本地为准留给下次同步上传
+     */
+    private void resolveConflict(SyncEntry entry, JSONArray data, OperationBatch batch)
+            throws NetworkFailureException {
+        JSONObject remote = entry.node.getLocalJSONFromContent();
+        JSONObject localText = findTextData(data);
+        JSONObject remoteText = remote != null
+                ? findTextData(remote.optJSONArray(GTaskStringUtils.META_HEAD_DATA)) : null;
+        if (localText == null || remoteText == null) {
+            Log.w(TAG, "Conflict on note " + entry.noteId + " is not mergeable, keep local");
+            return;
+        }
+
+        ThreeWayMerge.Result merged = ThreeWayMerge.merge(
+                querySyncBase(localText.optLong(DataColumns.ID)),
+                localText.optString(DataColumns.CONTENT),
+                remoteText.optString(DataColumns.CONTENT));
+        if (merged.conflicts > 0) {
+            Log.w(TAG, "Note " + entry.noteId + " merged with " + merged.conflicts
+                    + " conflicting regions, both versions kept");
+        }
+
+        long remoteModified = entry.node.getLastModified();
+        if (merged.remoteChanged) {
+            try {
+                localText.put(DataColumns.CONTENT, merged.text);
+                entry.localNote.put(NoteColumns.SNIPPET, merged.text);
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("build merged json failed");
+            }
+            Node node = mRemote.push(Node.SYNC_ACTION_UPDATE_REMOTE,
+                    buildLocalJSON(entry.localNote, data), entry.node);
+            remoteModified = node.getLastModified();
+        }
+
+        addSyncBaseUpdate(entry, localText.optLong(DataColumns.ID), merged.text,
+                merged.localChanged, batch);
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.SYNC_ID, remoteModified);
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+        addSyncedNoteUpdate(entry, values, batch);
+    }
+
+    /**
+     * 查询文本数据的同步基准，loadData不取该列，只在合并时单独读取
+     */
+    private String querySyncBase(long dataId) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
+                new String[] { TextNote.SYNC_BASE }, null, null, null);
+        if (c == null) {
+            throw new ActionFailureException("query sync base failed");
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : "";
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 更新文本数据的同步基准，updateContent为true时同时把正文改为text
+     * 以计划时的笔记版本号为条件，同步期间被用户修改过的便签不受影响
+     */
+    private static void addSyncBaseUpdate(SyncEntry entry, long dataId, String text,
+            boolean updateContent, OperationBatch batch) {
+        if (dataId <= 0) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(TextNote.SYNC_BASE, text);
+        if (updateContent) {
+            values.put(DataColumns.CONTENT, text);
+        }
+        batch.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId))
+                .withValues(values)
+                .withSelection(SqlData.VERSION_SELECTION,
+                        SqlData.getVersionSelectionArgs(entry.noteId, entry.version))
+                .build());
+    }
+
+    /**
+     * 回写同步状态，需放在同一便签的数据更新之后，因为它会使版本号加一
+     */
+    private static void addSyncedNoteUpdate(SyncEntry entry, ContentValues values,
+            OperationBatch batch) {
+        batch.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.noteId))
+                .withValues(values)
+                .withSelection(NoteColumns.VERSION + "=?", new String[] {
+                    String.valueOf(entry.version)
+                }).build());
+    }
+
+    private static JSONObject buildLocalJSON(JSONObject note, JSONArray data) {
+        JSONObject local = new JSONObject();
+        try {
+            local.put(GTaskStringUtils.META_HEAD_NOTE, note);
+            local.put(GTaskStringUtils.META_HEAD_DATA, data != null ? data : new JSONArray());
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("build local json failed");
+        }
+        return local;
+    }
+
+    /**
+     * 找出数据行中的文本便签正文
+     */
+    private static JSONObject findTextData(JSONArray data) {
+        for (int i = 0; data != null && i < data.length(); i++) {
+            JSONObject row = data.optJSONObject(i);
+            if (row != null && DataConstants.NOTE.equals(row.optString(DataColumns.MIME_TYPE))) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把一条远程变化写到本地
+     * @param force 本地还没有对应的父文件夹时是否仍然写入，此时笔记放在根目录
+     * @return 是否已写入，父文件夹还没有同步到本地时返回false，调用方应在其他计划项之后以force重试
+     */
+    boolean applyLocalEntry(SyncEntry entry, OperationBatch batch, boolean force) {
+        switch (entry.action) {
+            case Node.SYNC_ACTION_DEL_LOCAL:
+                batch.add(ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.noteId))
+                        .withSelection(NoteColumns.VERSION + "=?", new String[] {
+                            String.valueOf(entry.version)
+                        }).build());
+                return true;
+            case Node.SYNC_ACTION_ADD_LOCAL:
+            case Node.SYNC_ACTION_UPDATE_LOCAL:
+                return writeLocalNote(entry, batch, force);
+            default:
+                // 冲突需要上传合并结果，由pushEntry处理
+                return true;
+        }
+    }
+
+    private boolean writeLocalNote(SyncEntry entry, OperationBatch batch, boolean force) {
+        JSONObject content = entry.node.getLocalJSONFromContent();
+        if (content == null) {
+            Log.e(TAG, "No local content for " + entry.gid);
+            return true;
+        }
+        try {
+            JSONObject note = content.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+            Long parentId = resolveParentId(note, batch, force);
+            if (parentId == null) {
+                return false;
+            }
+            ContentValues values = toNoteValues(note);
+            values.put(NoteColumns.PARENT_ID, parentId);
+            JSONArray data = content.optJSONArray(GTaskStringUtils.META_HEAD_DATA);
+            if (entry.action == Node.SYNC_ACTION_ADD_LOCAL) {
+                addLocalNote(entry, values, data, batch);
+            } else {
+                updateLocalNote(entry, values, data, batch);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Bad remote content for " + entry.gid + ": " + e.toString());
+        }
+        return true;
+    }
+
+    /**
+     * 把远程笔记的父文件夹转换为本地的文件夹ID
+     * @return 本地文件夹ID，父文件夹还没有同步到本地且force为false时返回null
+     */
+    private Long resolveParentId(JSONObject note, OperationBatch batch, boolean force) {
+        String gid = note.optString(NOTE_PARENT_GID);
+        if (TextUtils.isEmpty(gid)) {
+            // 系统文件夹的ID在各设备上相同，没有gid的用户文件夹无法对应，放在根目录
+            long parentId = note.optLong(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+            return parentId <= 0 ? parentId : Notes.ID_ROOT_FOLDER;
+        }
+        Long folderId = getFolderId(gid);
+        if (folderId == null && batch.size() > 0) {
+            // 文件夹可能刚刚写入，还在未提交的批次中
+            batch.flush();
+            folderId = getFolderId(gid);
+        }
+        if (folderId != null) {
+            return folderId;
+        }
+        if (!force) {
+            return null;
+        }
+        Log.w(TAG, "Folder " + gid + " not found locally, put note in root");
+        return Long.valueOf(Notes.ID_ROOT_FOLDER);
+    }
+
+    private void addLocalNote(SyncEntry entry, ContentValues values, JSONArray data,
+            OperationBatch batch) throws JSONException {
+        values.put(NoteColumns.GTASK_ID, entry.gid);
+        values.put(NoteColumns.SYNC_ID, entry.node.getLastModified());
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+
+        // 笔记和它的数据行必须在同一批次中，数据行通过回引用取得新笔记的ID
+        int dataCount = data != null ? data.length() : 0;
+        int noteIndex = batch.reserve(dataCount + 1);
+        batch.addReserved(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                .withValues(values).build());
+        for (int i = 0; i < dataCount; i++) {
+            ContentValues dataValues = toDataValues(data.getJSONObject(i));
+            dataValues.remove(DataColumns.ID);
+            dataValues.remove(DataColumns.NOTE_ID);
+            batch.addReserved(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(dataValues)
+                    .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                    .build());
+        }
+    }
+
+    /**
+     * 用远程内容更新本地笔记
+     * 远程数据行的ID来自上传它的设备，不能直接使用：按类型（附件再按序号）与本笔记已有的数据行配对，
+     * 配对上的按差异更新，没有配对的插入，本地多出的删除。
+     * 数据行经SqlDataBatch以计划时的版本号提交，删除和笔记回写在数据行之后执行且同样带版本条件，
+     * 同步期间被用户修改的笔记不会被覆盖
+     */
+    private void updateLocalNote(SyncEntry entry, ContentValues values, JSONArray data,
+            OperationBatch batch) throws JSONException {
+        values.put(NoteColumns.SYNC_ID, entry.node.getLastModified());
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+
+        List<SqlData> writes = new ArrayList<SqlData>();
+        List<ContentProviderOperation> after = new ArrayList<ContentProviderOperation>();
+        if (data != null) {
+            List<LocalDataRow> localRows = queryLocalData(entry.noteId);
+            for (int i = 0; i < data.length(); i++) {
+                JSONObject row = data.getJSONObject(i);
+                int match = findDataRow(localRows, row);
+                SqlData sqlData;
+                if (match < 0) {
+                    row.remove(DataColumns.ID);
+                    sqlData = new SqlData(mContext);
+                } else {
+                    sqlData = localRows.remove(match).data;
+                    row.put(DataColumns.ID, sqlData.getId());
+                }
+                sqlData.setContent(row);
+                writes.add(sqlData);
+            }
+            for (LocalDataRow row : localRows) {
+                after.add(ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, row.data.getId()))
+                        .withSelection(SqlData.VERSION_SELECTION,
+                                SqlData.getVersionSelectionArgs(entry.noteId, entry.version))
+                        .build());
+            }
+        }
+        after.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.noteId))
+                .withValues(values)
+                .withSelection(NoteColumns.VERSION + "=?", new String[] {
+                    String.valueOf(entry.version)
+                }).build());
+        batch.addNoteData(entry.noteId, entry.version, writes, after);
+    }
+
+    /**
+     * 查询笔记已有的数据行
+     */
+    private List<LocalDataRow> queryLocalData(long noteId) {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, SqlData.PROJECTION_DATA,
+                DataColumns.NOTE_ID + "=?", new String[] { String.valueOf(noteId) }, null);
+        if (c == null) {
+            throw new ActionFailureException("query note data failed");
+        }
+        List<LocalDataRow> rows = new ArrayList<LocalDataRow>();
+        try {
+            while (c.moveToNext()) {
+                rows.add(new LocalDataRow(new SqlData(mContext, c),
+                        c.getString(SqlData.DATA_MIME_TYPE_COLUMN),
+                        c.getLong(SqlData.DATA_CONTENT_DATA_1_COLUMN)));
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    /**
+     * 找出与远程数据行对应的本地数据行：类型相同，附件还要序号相同
+     * @return 在localRows中的下标，没有时返回-1
+     */
+    private static int findDataRow(List<LocalDataRow> localRows, JSONObject remote) {
+        String mimeType = remote.optString(DataColumns.MIME_TYPE);
+        boolean attachment = DataConstants.ATTACHMENT.equals(mimeType);
+        for (int i = 0; i < localRows.size(); i++) {
+            LocalDataRow local = localRows.get(i);
+            if (!TextUtils.equals(mimeType, local.mimeType)) {
+                continue;
+            }
+            if (!attachment || (remote.has(Attachment.ORDINAL)
+                    && remote.optLong(Attachment.ORDINAL) == local.ordinal)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 获取本地文件夹的gid，文件夹还没有上传时返回null
+     */
+    private String getFolderGid(long folderId) {
+        synchronized (mFolderGids) {
+            String gid = mFolderGids.get(folderId);
+            if (gid != null) {
+                return gid;
+            }
+            Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folderId),
+                    new String[] { NoteColumns.GTASK_ID }, null, null, null);
+            if (c == null) {
+                throw new ActionFailureException("query folder gid failed");
+            }
+            try {
+                if (c.moveToFirst() && !TextUtils.isEmpty(c.getString(0))) {
+                    gid = c.getString(0);
+                    mFolderGids.put(folderId, gid);
+                    mFolderIds.put(gid, folderId);
+                }
+            } finally {
+                c.close();
+            }
+            return gid;
+        }
+    }
+
+    /**
+     * 按gid获取本地文件夹ID，本地还没有该文件夹时返回null
+     */
+    private Long getFolderId(String gid) {
+        synchronized (mFolderGids) {
+            Long folderId = mFolderIds.get(gid);
+            if (folderId != null) {
+                return folderId;
+            }
+            Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                    NoteColumns.GTASK_ID + "=? AND " + NoteColumns.TYPE + "=?",
+                    new String[] { gid, String.valueOf(Notes.TYPE_FOLDER) }, null);
+            if (c == null) {
+                throw new ActionFailureException("query folder by gid failed");
+            }
+            try {
+                if (c.moveToFirst()) {
+                    folderId = c.getLong(0);
+                    mFolderGids.put(folderId, gid);
+                    mFolderIds.put(gid, folderId);
+                }
+            } finally {
+                c.close();
+            }
+            return folderId;
+        }
+    }
+
+    private void putFolder(long folderId, String gid) {
+        synchronized (mFolderGids) {
+            mFolderGids.put(folderId, gid);
+            mFolderIds.put(gid, folderId);
+        }
+    }
+
+    /**
+     * 一次查询取出所有待上传笔记的数据行，不包括SYNC_BASE
+     */
+    Map<Long, JSONArray> loadData(List<SyncEntry> entries) {
+        Map<Long, JSONArray> result = new HashMap<Long, JSONArray>();
+        for (int start = 0; start < entries.size(); start += IN_CHUNK_SIZE) {
+            int end = Math.min(start + IN_CHUNK_SIZE, entries.size());
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                args[i - start] = String.valueOf(entries.get(i).noteId);
+            }
+            Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, PROJECTION_DATA,
+                    DataColumns.NOTE_ID + " IN (" + placeholders(args.length) + ")", args, null);
+            if (c == null) {
+                throw new ActionFailureException("query note data failed");
+            }
+            try {
+                int noteIdColumn = c.getColumnIndexOrThrow(DataColumns.NOTE_ID);
+                while (c.moveToNext()) {
+                    long noteId = c.getLong(noteIdColumn);
+                    JSONArray array = result.get(noteId);
+                    if (array == null) {
+                        array = new JSONArray();
+                        result.put(noteId, array);
+                    }
+                    array.put(rowToJSON(c));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把游标当前行转换为以列名为键的JSON对象
+     */
+    private static JSONObject rowToJSON(Cursor c) {
+        JSONObject js = new JSONObject();
+        try {
+            for (int i = 0; i < c.getColumnCount(); i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        js.put(c.getColumnName(i), c.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        js.put(c.getColumnName(i), c.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        js.put(c.getColumnName(i), c.getString(i));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("convert row to json failed");
+        }
+        return js;
+    }
+
+    private static ContentValues toNoteValues(JSONObject js) throws JSONException {
+        ContentValues values = toValues(js);
+        for (String column : NOTE_COLUMNS_KEPT_LOCALLY) {
+            values.remove(column);
+        }
+        values.remove(NOTE_PARENT_GID);
+        return values;
+    }
+
+    /**
+     * 远程数据行转换为本地的值，文本正文同时作为下次三方合并的基准
+     */
+    private static ContentValues toDataValues(JSONObject js) throws JSONException {
+        ContentValues values = toValues(js);
+        if (DataConstants.NOTE.equals(values.getAsString(DataColumns.MIME_TYPE))) {
+            String content = values.getAsString(DataColumns.CONTENT);
+            values.put(TextNote.SYNC_BASE, content != null ? content : "");
+        }
+        return values;
+    }
+
+    private static ContentValues toValues(JSONObject js) throws JSONException {
+        ContentValues values = new ContentValues();
+        Iterator<String> keys = js.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = js.get(key);
+            if (value instanceof Integer || value instanceof Long) {
+                values.put(key, ((Number) value).longValue());
+            } else if (value instanceof Number) {
+                values.put(key, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                values.put(key, (Boolean) value ? 1 : 0);
+            } else if (value instanceof String) {
+                values.put(key, (String) value);
+            }
+        }
+        return values;
+    }
+}
@@ -27,6 +27,7 @@ import android.os.AsyncTask;
 import net.micode.notes.R;
 import net.micode.notes.ui.NotesListActivity;
 import net.micode.notes.ui.NotesPreferenceActivity;
+import net.micode.notes.ui.ReminderScheduler;
 
 /**
  * Google任务同步后台任务
@@ -148,6 +149,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
             showNotification(R.string.ticker_success,
                     mContext.getString(R.string.success_sync_account, mTaskManager.getSyncAccount()));
             NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis()); // 记录同步时间
+            ReminderScheduler.scheduleNext(mContext); // 同步可能修改了提醒时间
         } else if (result == GTaskManager.STATE_NETWORK_ERROR) {
             showNotification(R.string.ticker_fail, mContext.getString(R.string.error_sync_network));
         } else if (result == GTaskManager.STATE_INTERNAL_ERROR) {
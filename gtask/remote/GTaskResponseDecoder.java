@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * GTask远程响应的流式解码器
+ * 直接从网络输入流逐个记号读取，不构建完整的JSONObject树：
+ * 1. 在响应中查找指定名称的数组（如GTASK_JSON_LISTS、GTASK_JSON_TASKS），其余字段直接跳过
+ * 2. 数组中的每个元素由NodeFactory创建节点，通过Node.readRemoteField逐字段填充
+ * 3. 每个节点填充完成后立即交给NodeHandler处理，解码器不保留节点
+ * 内存占用只与单个节点的大小有关，与列表中的节点数量无关
+ */
+public class GTaskResponseDecoder {
+    private static final String TAG = GTaskResponseDecoder.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * 为数组中的每个元素创建节点
+     */
+    public interface NodeFactory {
+        Node create();
+    }
+
+    /**
+     * 处理解码完成的节点
+     */
+    public interface NodeHandler {
+        void onNode(Node node) throws NetworkFailureException;
+    }
+
+    private GTaskResponseDecoder() {
+    }
+
+    /**
+     * 解码响应中的节点数组
+     *
+     * @param in        响应输入流，由调用方关闭
+     * @param arrayName 节点数组的字段名，可以位于任意层级的对象中
+     * @param factory   节点工厂
+     * @param handler   节点处理器
+     * @return 解码的节点数量
+     * @throws NetworkFailureException 读取输入流失败（如连接中断）
+     * @throws ActionFailureException 响应格式错误
+     */
+    public static int readNodes(InputStream in, String arrayName, NodeFactory factory,
+            NodeHandler handler) throws NetworkFailureException {
+        JsonReader reader;
+        try {
+            reader = new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8"),
+                    BUFFER_SIZE));
+        } catch (UnsupportedEncodingException e) {
+            throw new ActionFailureException("UTF-8 not supported");
+        }
+
+        try {
+            return readObject(reader, arrayName, factory, handler);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            throw new NetworkFailureException("读取远程响应失败", e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("远程响应格式错误");
+        } catch (NumberFormatException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("远程响应格式错误");
+        }
+    }
+
+    /**
+     * 从解析器读取一个节点对象
+     *
+     * @param reader 下一个记号为对象开始的解析器
+     * @param node   待填充的节点
+     */
+    public static void readNode(JsonReader reader, Node node) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!node.readRemoteField(name, reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static int readObject(JsonReader reader, String arrayName, NodeFactory factory,
+            NodeHandler handler) throws IOException, NetworkFailureException {
+        int count = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (arrayName.equals(name) && token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Node node = factory.create();
+                    readNode(reader, node);
+                    handler.onNode(node);
+                    count++;
+                }
+                reader.endArray();
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                count += readObject(reader, arrayName, factory, handler);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.gtask.remote.DeltaSyncEngine.OperationBatch;
+import net.micode.notes.gtask.remote.DeltaSyncEngine.SyncEntry;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流水线式增量同步
+ * 把DeltaSyncEngine的同步过程拆成四个阶段，每个阶段一个线程，阶段之间用有界队列连接：
+ * 1. STAGE_FETCH：拉取远程变化的节点，节点边解码边进入队列
+ * 2. STAGE_DIFF：按gid分批与本地笔记配对，得出同步动作，远程节点读完后再处理只有本地变化的笔记
+ * 3. STAGE_APPLY_LOCAL：把远程的变化合并成批量事务写入本地
+ * 4. STAGE_PUSH_REMOTE：把本地的变化写到远程，并回写gid和同步时间
+ * 网络读写和数据库写入因此可以同时进行；队列满时上游阶段阻塞，内存占用有上限
+ * 每个阶段统计处理速度、队列长度和延迟，通过ProgressListener定期报告
+ * cancel会中断所有阶段，已提交的批次保留，水位不更新
+ */
+public class SyncPipeline {
+    private static final String TAG = SyncPipeline.class.getSimpleName();
+
+    public static final int STAGE_FETCH = 0;
+    public static final int STAGE_DIFF = 1;
+    public static final int STAGE_APPLY_LOCAL = 2;
+    public static final int STAGE_PUSH_REMOTE = 3;
+    public static final int STAGE_COUNT = 4;
+
+    // 阶段之间队列的容量
+    private static final int QUEUE_CAPACITY = 64;
+
+    // 比较阶段每次按gid查询的节点数
+    private static final int DIFF_CHUNK_SIZE = 100;
+
+    // 上传阶段每次取出并一起查询数据行的计划项数
+    private static final int PUSH_CHUNK_SIZE = 20;
+
+    // 本地写入阶段队列空闲多久后提交未满的批次
+    private static final long APPLY_IDLE_FLUSH_MS = 200;
+
+    // 两次进度报告的最小间隔
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    // 队列结束标记
+    private static final Item END = new Item(null);
+
+    /**
+     * 同步进度回调，在工作线程中调用
+     */
+    public interface ProgressListener {
+        void onProgress(SyncProgress progress);
+    }
+
+    /**
+     * 某一时刻各阶段的统计快照
+     */
+    public static class SyncProgress {
+        public final long[] processed = new long[STAGE_COUNT];     // 已处理的项数
+        public final float[] itemsPerSecond = new float[STAGE_COUNT]; // 处理速度
+        public final int[] queueDepth = new int[STAGE_COUNT];      // 输入队列中等待的项数
+        public final long[] avgLatencyMs = new long[STAGE_COUNT];  // 从入队到处理完成的平均耗时
+        public final boolean[] finished = new boolean[STAGE_COUNT];
+        public long elapsedMs;                                     // 同步已进行的时间
+    }
+
+    /**
+     * 队列中的一项，记录入队时间用于统计延迟
+     */
+    private static class Item {
+        final Object payload;
+        final long enqueuedAt;
+
+        Item(Object payload) {
+            this.payload = payload;
+            this.enqueuedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * 单个阶段的统计
+     */
+    private static class StageMetrics {
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong totalLatencyMs = new AtomicLong();
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        void record(Item item) {
+            processed.incrementAndGet();
+            totalLatencyMs.addAndGet(SystemClock.elapsedRealtime() - item.enqueuedAt);
+        }
+    }
+
+    private final DeltaSyncEngine mEngine;
+    private final ProgressListener mListener;
+    private final StageMetrics[] mMetrics = new StageMetrics[STAGE_COUNT];
+    private final BlockingQueue<Item> mDiffQueue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+    private final BlockingQueue<Item> mApplyQueue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+    private final BlockingQueue<Item> mPushQueue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+
+    private volatile boolean mCancelled;
+    private volatile Throwable mFailure;
+    private volatile ExecutorService mExecutor;
+    private long mStartedAt;
+    private long mLastProgressAt;
+
+    public SyncPipeline(DeltaSyncEngine engine, ProgressListener listener) {
+        mEngine = engine;
+        mListener = listener;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mMetrics[i] = new StageMetrics();
+        }
+    }
+
+    /**
+     * 取消同步，可以在任意线程调用
+     */
+    public void cancel() {
+        mCancelled = true;
+        ExecutorService executor = mExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 执行同步，阻塞到所有阶段结束
+     * @return 同步是否全部完成，被取消时返回false
+     * @throws NetworkFailureException 访问远程失败
+     * @throws ActionFailureException 写入本地数据失败
+     */
+    public boolean run() throws NetworkFailureException {
+        mStartedAt = SystemClock.elapsedRealtime();
+        final long syncStart = System.currentTimeMillis();
+        final long localWatermark = mEngine.getLocalWatermark();
+        final long remoteWatermark = mEngine.getRemoteWatermark();
+        long newRemoteWatermark = mEngine.getRemote().getWatermark();
+
+        // 每个阶段固定一个线程，不排队等待
+        mExecutor = new ThreadPoolExecutor(STAGE_COUNT, STAGE_COUNT, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(STAGE_COUNT));
+        if (mCancelled) {
+            mExecutor.shutdownNow();
+            return false;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        futures.add(mExecutor.submit(new Stage(STAGE_FETCH) {
+            void process() throws Exception {
+                fetch(remoteWatermark);
+            }
+        }));
+        futures.add(mExecutor.submit(new Stage(STAGE_DIFF) {
+            void process() throws Exception {
+                diff(localWatermark);
+            }
+        }));
+        futures.add(mExecutor.submit(new Stage(STAGE_APPLY_LOCAL) {
+            void process() throws Exception {
+                applyLocal();
+            }
+        }));
+        futures.add(mExecutor.submit(new Stage(STAGE_PUSH_REMOTE) {
+            void process() throws Exception {
+                pushRemote();
+            }
+        }));
+        mExecutor.shutdown();
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (CancellationException e) {
+                // 阶段在开始前被取消
+            }
+        }
+        reportProgress(true);
+
+        Throwable failure = mFailure;
+        if (failure instanceof NetworkFailureException) {
+            throw (NetworkFailureException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new ActionFailureException("sync pipeline failed: " + failure);
+        }
+        if (mCancelled) {
+            return false;
+        }
+        mEngine.saveWatermarks(syncStart, newRemoteWatermark);
+        return true;
+    }
+
+    /**
+     * 阶段的公共逻辑：记录开始结束时间，第一个失败的阶段取消整个流水线
+     */
+    private abstract class Stage implements Runnable {
+        private final int mStage;
+
+        Stage(int stage) {
+            mStage = stage;
+        }
+
+        abstract void process() throws Exception;
+
+        public void run() {
+            mMetrics[mStage].startedAt = SystemClock.elapsedRealtime();
+            try {
+                process();
+            } catch (InterruptedException e) {
+                // 由cancel中断
+            } catch (Exception e) {
+                fail(e);
+            } finally {
+                mMetrics[mStage].finishedAt = SystemClock.elapsedRealtime();
+                reportProgress(false);
+            }
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (mFailure == null && !mCancelled) {
+            Log.e(TAG, "Sync stage failed: " + e.toString());
+            mFailure = e;
+        }
+        cancel();
+    }
+
+    /**
+     * 拉取阶段：远程节点逐个进入比较队列
+     */
+    private void fetch(long remoteWatermark) throws Exception {
+        mEngine.getRemote().getChangedNodes(remoteWatermark,
+                new GTaskResponseDecoder.NodeHandler() {
+                    public void onNode(Node node) throws NetworkFailureException {
+                        if (TextUtils.isEmpty(node.getGid())) {
+                            return;
+                        }
+                        try {
+                            put(mDiffQueue, new Item(node));
+                        } catch (InterruptedException e) {
+                            throw new NetworkFailureException("sync cancelled", e);
+                        }
+                        mMetrics[STAGE_FETCH].processed.incrementAndGet();
+                        reportProgress(false);
+                    }
+                });
+        put(mDiffQueue, END);
+    }
+
+    /**
+     * 比较阶段：远程节点按gid分批与本地笔记配对，最后处理只有本地变化的笔记
+     */
+    private void diff(long localWatermark) throws Exception {
+        // 已经处理过的gid，处理只有本地变化的笔记时跳过
+        HashSet<String> handled = new HashSet<String>();
+        Map<String, Item> chunk = new HashMap<String, Item>();
+        while (true) {
+            Item item = mDiffQueue.take();
+            if (item == END) {
+                break;
+            }
+            chunk.put(((Node) item.payload).getGid(), item);
+            // 队列暂时为空时不等凑满，尽早把结果交给下游
+            if (chunk.size() >= DIFF_CHUNK_SIZE || mDiffQueue.isEmpty()) {
+                diffChunk(chunk, handled);
+            }
+        }
+        diffChunk(chunk, handled);
+
+        Cursor c = mEngine.queryChangedNotes(localWatermark);
+        try {
+            while (c.moveToNext()) {
+                checkCancelled();
+                String gid = c.getString(DeltaSyncEngine.GTASK_ID_COLUMN);
+                if (!TextUtils.isEmpty(gid) && handled.contains(gid)) {
+                    continue;
+                }
+                dispatch(mEngine.planLocalRow(c, null));
+                mMetrics[STAGE_DIFF].processed.incrementAndGet();
+            }
+        } finally {
+            c.close();
+        }
+
+        // 失败时由fail取消整个流水线，这里只处理正常结束
+        put(mApplyQueue, END);
+        put(mPushQueue, END);
+    }
+
+    private void diffChunk(Map<String, Item> chunk, HashSet<String> handled) throws Exception {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        checkCancelled();
+        Cursor c = mEngine.queryNotesByGid(new ArrayList<String>(chunk.keySet()));
+        try {
+            while (c.moveToNext()) {
+                String gid = c.getString(DeltaSyncEngine.GTASK_ID_COLUMN);
+                Item item = chunk.remove(gid);
+                if (item != null) {
+                    handled.add(gid);
+                    dispatch(mEngine.planLocalRow(c, (Node) item.payload));
+                    mMetrics[STAGE_DIFF].record(item);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (Item item : chunk.values()) {
+            Node node = (Node) item.payload;
+            handled.add(node.getGid());
+            dispatch(DeltaSyncEngine.planRemoteOnly(node));
+            mMetrics[STAGE_DIFF].record(item);
+        }
+        chunk.clear();
+        reportProgress(false);
+    }
+
+    private void dispatch(SyncEntry entry) throws InterruptedException {
+        if (entry == null || entry.action == Node.SYNC_ACTION_NONE) {
+            return;
+        }
+        put(DeltaSyncEngine.isRemoteAction(entry.action) ? mPushQueue : mApplyQueue,
+                new Item(entry));
+    }
+
+    /**
+     * 本地写入阶段：队列暂时为空或批次已满时提交
+     * 父文件夹还没有同步到本地的计划项在队列结束后处理
+     */
+    private void applyLocal() throws Exception {
+        OperationBatch batch = new OperationBatch(mEngine.getResolver());
+        ArrayList<Item> deferred = new ArrayList<Item>();
+        while (true) {
+            Item item = mApplyQueue.poll(APPLY_IDLE_FLUSH_MS, TimeUnit.MILLISECONDS);
+            checkCancelled();
+            if (item == null) {
+                batch.flush();
+                continue;
+            }
+            if (item == END) {
+                break;
+            }
+            if (!mEngine.applyLocalEntry((SyncEntry) item.payload, batch, false)) {
+                deferred.add(item);
+                continue;
+            }
+            mMetrics[STAGE_APPLY_LOCAL].record(item);
+            reportProgress(false);
+        }
+        for (Item item : deferred) {
+            checkCancelled();
+            mEngine.applyLocalEntry((SyncEntry) item.payload, batch, true);
+            mMetrics[STAGE_APPLY_LOCAL].record(item);
+            reportProgress(false);
+        }
+        batch.flush();
+    }
+
+    /**
+     * 上传阶段：每次取出若干计划项，一次查询取出它们的数据行后逐个上传
+     * 父文件夹还没有gid的计划项在队列结束后处理
+     */
+    private void pushRemote() throws Exception {
+        OperationBatch batch = new OperationBatch(mEngine.getResolver());
+        ArrayList<Item> items = new ArrayList<Item>(PUSH_CHUNK_SIZE);
+        ArrayList<SyncEntry> entries = new ArrayList<SyncEntry>(PUSH_CHUNK_SIZE);
+        ArrayList<Item> deferred = new ArrayList<Item>();
+        Map<Long, JSONArray> deferredData = new HashMap<Long, JSONArray>();
+        boolean ended = false;
+        try {
+            while (!ended) {
+                items.clear();
+                entries.clear();
+                items.add(mPushQueue.take());
+                mPushQueue.drainTo(items, PUSH_CHUNK_SIZE - 1);
+                for (Item item : items) {
+                    if (item == END) {
+                        ended = true;
+                    } else {
+                        entries.add((SyncEntry) item.payload);
+                    }
+                }
+
+                Map<Long, JSONArray> dataByNote = mEngine.loadData(entries);
+                for (Item item : items) {
+                    if (item == END) {
+                        continue;
+                    }
+                    checkCancelled();
+                    SyncEntry entry = (SyncEntry) item.payload;
+                    JSONArray data = dataByNote.get(entry.noteId);
+                    if (!mEngine.pushEntry(entry, data, batch, false)) {
+                        deferred.add(item);
+                        deferredData.put(entry.noteId, data);
+                        continue;
+                    }
+                    mMetrics[STAGE_PUSH_REMOTE].record(item);
+                    reportProgress(false);
+                }
+            }
+            for (Item item : deferred) {
+                checkCancelled();
+                SyncEntry entry = (SyncEntry) item.payload;
+                mEngine.pushEntry(entry, deferredData.get(entry.noteId), batch, true);
+                mMetrics[STAGE_PUSH_REMOTE].record(item);
+                reportProgress(false);
+            }
+        } catch (Exception e) {
+            // 已经写到远程的笔记必须回写gid，否则下次同步会重复创建
+            batch.flushAfterFailure();
+            throw e;
+        }
+        batch.flush();
+    }
+
+    private void put(BlockingQueue<Item> queue, Item item) throws InterruptedException {
+        checkCancelled();
+        queue.put(item);
+    }
+
+    private void checkCancelled() throws InterruptedException {
+        if (mCancelled || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("sync cancelled");
+        }
+    }
+
+    /**
+     * 生成统计快照并通知监听者，force为false时按PROGRESS_INTERVAL_MS限制频率
+     */
+    private void reportProgress(boolean force) {
+        if (mListener == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (!force && now - mLastProgressAt < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            mLastProgressAt = now;
+        }
+
+        SyncProgress progress = new SyncProgress();
+        progress.elapsedMs = now - mStartedAt;
+        progress.queueDepth[STAGE_FETCH] = 0;
+        progress.queueDepth[STAGE_DIFF] = mDiffQueue.size();
+        progress.queueDepth[STAGE_APPLY_LOCAL] = mApplyQueue.size();
+        progress.queueDepth[STAGE_PUSH_REMOTE] = mPushQueue.size();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            StageMetrics metrics = mMetrics[i];
+            long processed = metrics.processed.get();
+            long end = metrics.finishedAt > 0 ? metrics.finishedAt : now;
+            long duration = metrics.startedAt > 0 ? end - metrics.startedAt : 0;
+            progress.processed[i] = processed;
+            progress.itemsPerSecond[i] = duration > 0 ? processed * 1000f / duration : 0;
+            progress.avgLatencyMs[i] = processed > 0 ? metrics.totalLatencyMs.get() / processed : 0;
+            progress.finished[i] = metrics.finishedAt > 0;
+        }
+        mListener.onProgress(progress);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 便签草稿日志，每个便签一个文件，只追加写入
+ * 1. 第一行为文件头，记录数据库中已保存正文的长度和哈希值
+ * 2. 之后每行是一次正文修改，只记录变化的区间：起始位置、删除长度和插入的文本；
+ *    附件列表变化时记录完整的新列表
+ * 正文保存到数据库后删除日志。打开便签时，如果日志的文件头与数据库中的正文一致，
+ * 依次应用各行即可恢复进程被杀死前的正文；不一致说明正文已被其他途径修改（如同步），日志作废
+ */
+public class DraftJournal {
+    private static final String TAG = "DraftJournal";
+
+    private static final String DIR_NAME = "drafts";
+
+    // 文件头字段
+    private static final String HEADER_NOTE = "note";
+    private static final String HEADER_LENGTH = "length";
+    private static final String HEADER_HASH = "hash";
+
+    // 修改行字段
+    private static final String EDIT_START = "s";
+    private static final String EDIT_DELETE = "d";
+    private static final String EDIT_TEXT = "t";
+    private static final String EDIT_ATTACHMENTS = "a";
+
+    /**
+     * 从日志恢复的草稿
+     */
+    public static class Draft {
+        public final String content;
+        public final List<String> attachments;
+
+        Draft(String content, List<String> attachments) {
+            this.content = content;
+            this.attachments = attachments;
+        }
+    }
+
+    private final long mNoteId;
+    private final File mFile;
+    private Writer mWriter;
+
+    public DraftJournal(Context context, long noteId) {
+        mNoteId = noteId;
+        mFile = new File(new File(context.getFilesDir(), DIR_NAME), noteId + ".journal");
+    }
+
+    /**
+     * 追加一次修改，日志不存在时先以修改前的正文写入文件头
+     * @param oldContent 上一次记录后的正文，日志不存在时即数据库中的正文
+     * @param newContent 新的正文
+     * @param attachments 变化后的附件列表，未变化时为null
+     */
+    public void append(String oldContent, String newContent, List<String> attachments)
+            throws IOException {
+        if (mWriter == null) {
+            boolean exists = mFile.exists();
+            if (!exists && !mFile.getParentFile().isDirectory() && !mFile.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create " + mFile.getParent());
+            }
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mFile, true), "UTF-8"));
+            if (!exists) {
+                JSONObject header = new JSONObject();
+                try {
+                    header.put(HEADER_NOTE, mNoteId);
+                    header.put(HEADER_LENGTH, oldContent.length());
+                    header.put(HEADER_HASH, oldContent.hashCode());
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+                writeLine(header);
+            }
+        }
+
+        // 去掉相同的前缀和后缀，只记录中间变化的部分
+        int start = 0;
+        int oldEnd = oldContent.length();
+        int newEnd = newContent.length();
+        while (start < oldEnd && start < newEnd
+                && oldContent.charAt(start) == newContent.charAt(start)) {
+            start++;
+        }
+        while (oldEnd > start && newEnd > start
+                && oldContent.charAt(oldEnd - 1) == newContent.charAt(newEnd - 1)) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        JSONObject edit = new JSONObject();
+        try {
+            if (start < oldEnd || start < newEnd) {
+                edit.put(EDIT_START, start);
+                edit.put(EDIT_DELETE, oldEnd - start);
+                edit.put(EDIT_TEXT, newContent.substring(start, newEnd));
+            }
+            if (attachments != null) {
+                edit.put(EDIT_ATTACHMENTS, new JSONArray(attachments));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        if (edit.length() > 0) {
+            writeLine(edit);
+        }
+    }
+
+    /**
+     * 按日志恢复草稿，日志无效或损坏时删除它
+     * @param savedContent 数据库中的正文
+     * @param savedAttachments 数据库中的附件列表
+     * @return 与数据库不同的草稿，没有时为null
+     */
+    public Draft recover(String savedContent, List<String> savedAttachments) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        StringBuilder content = new StringBuilder(savedContent);
+        List<String> attachments = new ArrayList<String>(savedAttachments);
+        boolean changed = false;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String line = reader.readLine();
+            JSONObject header = line != null ? new JSONObject(line) : null;
+            if (header == null || header.optLong(HEADER_NOTE) != mNoteId
+                    || header.optInt(HEADER_LENGTH, -1) != savedContent.length()
+                    || header.optInt(HEADER_HASH) != savedContent.hashCode()) {
+                Log.w(TAG, "Draft of note " + mNoteId + " does not match saved content");
+                delete();
+                return null;
+            }
+            while ((line = reader.readLine()) != null) {
+                JSONObject edit;
+                try {
+                    edit = new JSONObject(line);
+                } catch (JSONException e) {
+                    // 最后一行可能在写入时被中断
+                    Log.w(TAG, "Truncated draft of note " + mNoteId);
+                    break;
+                }
+                if (edit.has(EDIT_START)) {
+                    int start = edit.getInt(EDIT_START);
+                    content.replace(start, start + edit.getInt(EDIT_DELETE),
+                            edit.getString(EDIT_TEXT));
+                    changed = true;
+                }
+                JSONArray paths = edit.optJSONArray(EDIT_ATTACHMENTS);
+                if (paths != null) {
+                    attachments.clear();
+                    for (int i = 0; i < paths.length(); i++) {
+                        attachments.add(paths.getString(i));
+                    }
+                    changed = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Read draft failed", e);
+            delete();
+            return null;
+        } catch (JSONException e) {
+            Log.e(TAG, "Draft destroyed: " + e.toString());
+            delete();
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, "Draft destroyed: " + e.toString());
+            delete();
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Close draft failed", e);
+                }
+            }
+        }
+        return changed ? new Draft(content.toString(), attachments) : null;
+    }
+
+    /**
+     * 正文已保存到数据库，删除日志
+     */
+    public void delete() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Close draft failed", e);
+            }
+            mWriter = null;
+        }
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Delete draft failed: " + mFile);
+        }
+    }
+
+    private void writeLine(JSONObject js) throws IOException {
+        mWriter.write(js.toString());
+        mWriter.write('\n');
+        mWriter.flush();
+    }
+}
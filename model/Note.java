@@ -27,12 +27,14 @@
  import android.util.Log;
  
  import net.micode.notes.data.Notes;
+ import net.micode.notes.data.Notes.Attachment;
  import net.micode.notes.data.Notes.CallNote;
  import net.micode.notes.data.Notes.DataColumns;
  import net.micode.notes.data.Notes.NoteColumns;
  import net.micode.notes.data.Notes.TextNote;
  
  import java.util.ArrayList;
+ import java.util.List;
  
  /**
   * 笔记数据模型类 - 处理笔记数据的CRUD操作
@@ -132,6 +134,14 @@
          mNoteData.setCallData(key, value);
      }
  
+     /**
+      * 设置附件列表，保存时替换笔记原有的全部附件
+      * @param paths 按在正文中出现的顺序排列的附件路径
+      */
+     public void setAttachments(List<String> paths) {
+         mNoteData.setAttachments(paths);
+     }
+ 
      /**
       * 检查笔记是否有本地修改
       * @return true表示有未同步的修改
@@ -156,25 +166,39 @@
              return true;
          }
  
-         /* 
+         /*
           * 理论上数据变更后应该更新LOCAL_MODIFIED和MODIFIED_DATE字段
-          * 为了数据安全，即使笔记更新失败，我们也会尝试更新笔记数据
+          * 为了数据安全，即使笔记更新失败，我们也会尝试更新笔记数据。
+          * 笔记和内容数据的修改放在同一个批量操作中，只产生一次事务和一次通知
           */
-         if (context.getContentResolver().update(
-                 ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
-                 null) == 0) {
-             Log.e(TAG, "Update note error, should not happen");
-             // 继续执行而不返回，尝试保存数据
+         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+         if (mNoteDiffValues.size() > 0) {
+             operationList.add(ContentProviderOperation.newUpdate(
+                     ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                     .withValues(mNoteDiffValues).build());
          }
+         int dataOpStart = operationList.size();
+         mNoteData.buildOperations(noteId, operationList);
          mNoteDiffValues.clear();  // 清空变更值
- 
-         // 同步笔记内容数据
-         if (mNoteData.isLocalModified()
-                 && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
+
+         ContentProviderResult[] results;
+         try {
+             results = context.getContentResolver().applyBatch(Notes.AUTHORITY, operationList);
+         } catch (RemoteException e) {
+             Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+             return false;
+         } catch (OperationApplicationException e) {
+             Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
              return false;
          }
- 
-         return true;
+
+         if (dataOpStart > 0 && (results[0] == null || results[0].count == null
+                 || results[0].count == 0)) {
+             Log.e(TAG, "Update note error, should not happen");
+         }
+
+         // 同步笔记内容数据的结果
+         return mNoteData.onOperationsApplied(noteId, results, dataOpStart);
      }
  
      /**
@@ -185,6 +209,9 @@
          private ContentValues mTextDataValues; // 文本数据变更值
          private long mCallDataId;           // 通话记录数据ID
          private ContentValues mCallDataValues; // 通话记录变更值
+         private boolean mTextInsertPending;    // 当前批次中是否包含文本数据的插入操作
+         private ArrayList<String> mAttachmentPaths; // 待保存的附件路径，null表示附件未修改
+         private int mAttachmentOpCount;        // 当前批次末尾的附件操作数量
          private static final String TAG = "NoteData";
  
          /**
@@ -201,7 +228,8 @@
           * 检查内容数据是否有本地修改
           */
          boolean isLocalModified() {
-             return mTextDataValues.size() > 0 || mCallDataValues.size() > 0;
+             return mTextDataValues.size() > 0 || mCallDataValues.size() > 0
+                     || mAttachmentPaths != null;
          }
  
          /**
@@ -245,85 +273,122 @@
          }
  
          /**
-          * 将内容数据推送到ContentResolver
-          * @param context 上下文对象
+          * 设置附件列表
+          */
+         void setAttachments(List<String> paths) {
+             mAttachmentPaths = new ArrayList<String>(paths);
+             // 同时标记笔记为已修改
+             mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+             mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+         }
+ 
+         /**
+          * 将内容数据的变更转换为批量操作，追加到operationList末尾
+          * 新数据对应插入操作，已有数据对应更新操作；文本数据在前，通话记录数据其次，附件在最后
           * @param noteId 所属笔记ID
-          * @return 操作结果URI，失败返回null
+          * @param operationList 批量操作列表
           */
-         Uri pushIntoContentResolver(Context context, long noteId) {
+         void buildOperations(long noteId, ArrayList<ContentProviderOperation> operationList) {
              // 安全检查
              if (noteId <= 0) {
                  throw new IllegalArgumentException("Wrong note id:" + noteId);
              }
- 
-             ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-             ContentProviderOperation.Builder builder = null;
- 
+
              // 处理文本数据
-             if(mTextDataValues.size() > 0) {
+             if (mTextDataValues.size() > 0) {
                  mTextDataValues.put(DataColumns.NOTE_ID, noteId);  // 设置所属笔记ID
-                 if (mTextDataId == 0) {
-                     // 新文本数据 - 执行插入操作
-                     mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                     Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                             mTextDataValues);
-                     try {
-                         // 从返回URI中获取新数据ID
-                         setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                     } catch (NumberFormatException e) {
-                         Log.e(TAG, "Insert new text data fail with noteId" + noteId);
-                         mTextDataValues.clear();
-                         return null;
-                     }
-                 } else {
-                     // 已有文本数据 - 执行更新操作
-                     builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                             Notes.CONTENT_DATA_URI, mTextDataId));
-                     builder.withValues(mTextDataValues);
-                     operationList.add(builder.build());
-                 }
+                 mTextInsertPending = (mTextDataId == 0);
+                 operationList.add(buildOperation(mTextDataId, TextNote.CONTENT_ITEM_TYPE,
+                         mTextDataValues));
                  mTextDataValues.clear();  // 清空变更值
              }
- 
+
              // 处理通话记录数据（逻辑同文本数据）
-             if(mCallDataValues.size() > 0) {
+             if (mCallDataValues.size() > 0) {
                  mCallDataValues.put(DataColumns.NOTE_ID, noteId);
-                 if (mCallDataId == 0) {
-                     mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                     Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                             mCallDataValues);
-                     try {
-                         setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                     } catch (NumberFormatException e) {
-                         Log.e(TAG, "Insert new call data fail with noteId" + noteId);
-                         mCallDataValues.clear();
-                         return null;
-                     }
-                 } else {
-                     builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                             Notes.CONTENT_DATA_URI, mCallDataId));
-                     builder.withValues(mCallDataValues);
-                     operationList.add(builder.build());
-                 }
+                 operationList.add(buildOperation(mCallDataId, CallNote.CONTENT_ITEM_TYPE,
+                         mCallDataValues));
                  mCallDataValues.clear();
              }
- 
-             // 执行批量操作（如果有）
-             if (operationList.size() > 0) {
+
+             // 处理附件：删除原有附件后按序号重新插入，与正文在同一事务中生效
+             mAttachmentOpCount = 0;
+             if (mAttachmentPaths != null) {
+                 operationList.add(ContentProviderOperation.newDelete(Notes.CONTENT_DATA_URI)
+                         .withSelection(DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE
+                                 + "=?", new String[] {
+                                     String.valueOf(noteId), Attachment.CONTENT_ITEM_TYPE
+                                 }).build());
+                 for (int i = 0; i < mAttachmentPaths.size(); i++) {
+                     operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                             .withValue(DataColumns.NOTE_ID, noteId)
+                             .withValue(DataColumns.MIME_TYPE, Attachment.CONTENT_ITEM_TYPE)
+                             .withValue(Attachment.ORDINAL, i)
+                             .withValue(Attachment.PATH, mAttachmentPaths.get(i))
+                             .build());
+                 }
+                 mAttachmentOpCount = mAttachmentPaths.size() + 1;
+                 mAttachmentPaths = null;
+             }
+         }
+
+         /**
+          * 构造单条数据的插入或更新操作
+          * @param dataId 数据ID，0表示新数据
+          */
+         private ContentProviderOperation buildOperation(long dataId, String mimeType,
+                 ContentValues values) {
+             if (dataId == 0) {
+                 // 新数据 - 执行插入操作
+                 values.put(DataColumns.MIME_TYPE, mimeType);
+                 return ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                         .withValues(values).build();
+             }
+             // 已有数据 - 执行更新操作
+             return ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                     Notes.CONTENT_DATA_URI, dataId)).withValues(values).build();
+         }
+
+         /**
+          * 根据批量操作的结果记录新插入数据的ID
+          * 结果顺序与buildOperations追加的顺序一致
+          * @param noteId 所属笔记ID
+          * @param results 批量操作结果
+          * @param index 内容数据操作在结果中的起始位置
+          * @return 内容数据是否全部保存成功
+          */
+         boolean onOperationsApplied(long noteId, ContentProviderResult[] results, int index) {
+             boolean hasText = mTextInsertPending;
+             mTextInsertPending = false;
+             // 附件操作在末尾，不需要记录ID
+             int end = results.length - mAttachmentOpCount;
+             mAttachmentOpCount = 0;
+             for (; index < end; index++) {
+                 ContentProviderResult result = results[index];
+                 if (result == null) {
+                     return false;
+                 }
+                 if (result.uri == null) {
+                     continue;  // 更新操作
+                 }
                  try {
-                     ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                             Notes.AUTHORITY, operationList);
-                     return (results == null || results.length == 0 || results[0] == null) ? null
-                             : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                 } catch (RemoteException e) {
-                     Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                     return null;
-                 } catch (OperationApplicationException e) {
-                     Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                     return null;
+                     // 从返回URI中获取新数据ID
+                     long dataId = Long.valueOf(result.uri.getPathSegments().get(1));
+                     if (hasText) {
+                         setTextDataId(dataId);
+                         hasText = false;
+                     } else {
+                         setCallDataId(dataId);
+                     }
+                 } catch (NumberFormatException e) {
+                     Log.e(TAG, "Insert new data fail with noteId" + noteId);
+                     return false;
+                 } catch (IllegalArgumentException e) {
+                     Log.e(TAG, "Insert new data fail with noteId" + noteId);
+                     return false;
                  }
              }
-             return null;
+             return true;
          }
      }
  }
\ No newline at end of file
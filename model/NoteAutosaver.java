@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import net.micode.notes.tool.ImageMarkup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 便签自动保存
+ * 1. 编辑后停顿SNAPSHOT_DELAY_MS，在界面线程取正文副本，交给后台线程
+ * 2. 后台线程把正文写入WorkingNote，并把与上次记录的差异追加到草稿日志（DraftJournal）
+ * 3. 第一次记录后最迟FOLD_DELAY_MS，或离开编辑界面时，在后台线程保存到数据库，保存成功后删除日志
+ * 进程在保存前被杀死或保存失败时，下次打开便签通过recoverDraft从日志恢复正文。
+ * 新便签还没有ID，第一次记录时直接保存以取得ID
+ * 所有便签共用一个后台线程，WorkingNote的修改方法是同步的，界面线程仍可直接修改它
+ */
+public class NoteAutosaver {
+    private static final String TAG = "NoteAutosaver";
+
+    // 停止输入后多久记录一次正文
+    private static final long SNAPSHOT_DELAY_MS = 500;
+
+    // 记录之后最迟多久保存到数据库
+    private static final long FOLD_DELAY_MS = 5000;
+
+    /**
+     * 正文的来源，由编辑界面实现
+     */
+    public interface TextSource {
+        /**
+         * 在界面线程调用
+         * @return 上次调用之后被修改的正文副本，没有修改时为null
+         */
+        CharSequence takeChangedText();
+    }
+
+    private static Handler sWorker;
+
+    private final Context mContext;
+    private final WorkingNote mNote;
+    private final TextSource mSource;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 以下字段受this保护
+    private DraftJournal mJournal;
+    private String mJournaledContent;
+    private List<String> mJournaledAttachments;
+    private boolean mFoldScheduled;
+    private boolean mDiscarded;
+
+    // saveNow时加一，之前提交、还在后台队列中的正文已经过时，不再写入WorkingNote
+    private int mSubmitGeneration;
+
+    private final Runnable mSnapshotRunnable = new Runnable() {
+        public void run() {
+            CharSequence text = mSource.takeChangedText();
+            if (text != null) {
+                submit(text);
+            }
+        }
+    };
+
+    private final Runnable mFoldRunnable = new Runnable() {
+        public void run() {
+            fold();
+        }
+    };
+
+    public NoteAutosaver(Context context, WorkingNote note, TextSource source) {
+        mContext = context.getApplicationContext();
+        mNote = note;
+        mSource = source;
+        mJournaledContent = note.getContent();
+        mJournaledAttachments = new ArrayList<String>(note.getAttachments());
+    }
+
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
+
+    /**
+     * 打开便签时调用，日志中有未保存的正文时写入WorkingNote
+     * 恢复的正文在下一次保存时写入数据库
+     * @return 是否恢复了草稿
+     */
+    public synchronized boolean recoverDraft() {
+        if (!mNote.existInDatabase()) {
+            return false;
+        }
+        DraftJournal.Draft draft = getJournal().recover(mNote.getContent(),
+                mNote.getAttachments());
+        if (draft == null) {
+            return false;
+        }
+        mNote.setWorkingText(ImageMarkup.toSpannable(draft.content, draft.attachments));
+        mJournaledContent = draft.content;
+        mJournaledAttachments = new ArrayList<String>(draft.attachments);
+        scheduleFold();
+        Log.i(TAG, "Recovered draft of note " + mNote.getNoteId());
+        return true;
+    }
+
+    /**
+     * 正文被编辑，在界面线程调用
+     */
+    public void onEdited() {
+        mMainHandler.removeCallbacks(mSnapshotRunnable);
+        mMainHandler.postDelayed(mSnapshotRunnable, SNAPSHOT_DELAY_MS);
+    }
+
+    /**
+     * 记录尚未取出的修改，并在后台保存到数据库，在界面线程调用
+     * @return 是否有需要保存的修改
+     */
+    public boolean flush() {
+        mMainHandler.removeCallbacks(mSnapshotRunnable);
+        CharSequence text = mSource.takeChangedText();
+        if (text != null) {
+            submit(text);
+        }
+        boolean pending;
+        synchronized (this) {
+            pending = text != null || mFoldScheduled || mNote.isWorthSaving();
+        }
+        getWorker().post(mFoldRunnable);
+        return pending;
+    }
+
+    /**
+     * 立即在当前线程保存，用于需要便签ID的操作
+     * 后台队列中的正文先被放弃再写入text，过时的正文不会覆盖它
+     * @param text 当前的完整正文
+     * @return WorkingNote.saveNote的结果
+     */
+    public boolean saveNow(CharSequence text) {
+        mMainHandler.removeCallbacks(mSnapshotRunnable);
+        synchronized (this) {
+            mSubmitGeneration++;
+            mNote.setWorkingText(text);
+        }
+        return fold();
+    }
+
+    /**
+     * 便签被删除，放弃等待中的保存和草稿日志
+     */
+    public void discard() {
+        mMainHandler.removeCallbacks(mSnapshotRunnable);
+        synchronized (this) {
+            mDiscarded = true;
+        }
+        getWorker().post(new Runnable() {
+            public void run() {
+                synchronized (NoteAutosaver.this) {
+                    getWorker().removeCallbacks(mFoldRunnable);
+                    mFoldScheduled = false;
+                    if (mJournal != null) {
+                        mJournal.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private void submit(final CharSequence text) {
+        final int generation;
+        synchronized (this) {
+            generation = mSubmitGeneration;
+        }
+        getWorker().post(new Runnable() {
+            public void run() {
+                journal(text, generation);
+            }
+        });
+    }
+
+    private synchronized void journal(CharSequence text, int generation) {
+        if (mDiscarded || generation != mSubmitGeneration) {
+            return;
+        }
+        mNote.setWorkingText(text);
+        if (!mNote.existInDatabase()) {
+            // 新便签先保存以取得ID，之后的修改才能记录到日志
+            fold();
+            return;
+        }
+
+        String content = mNote.getContent();
+        List<String> attachments = mNote.getAttachments();
+        boolean attachmentsChanged = !attachments.equals(mJournaledAttachments);
+        if (content.equals(mJournaledContent) && !attachmentsChanged) {
+            return;
+        }
+        try {
+            getJournal().append(mJournaledContent, content,
+                    attachmentsChanged ? attachments : null);
+        } catch (IOException e) {
+            Log.e(TAG, "Append draft failed", e);
+        }
+        mJournaledContent = content;
+        mJournaledAttachments = new ArrayList<String>(attachments);
+        scheduleFold();
+    }
+
+    private synchronized boolean fold() {
+        getWorker().removeCallbacks(mFoldRunnable);
+        mFoldScheduled = false;
+        if (mDiscarded) {
+            return false;
+        }
+        boolean worthSaving = mNote.isWorthSaving();
+        boolean saved = worthSaving && mNote.saveNote();
+        if (worthSaving && !saved) {
+            // 保存失败时保留日志，下次保存或打开便签时仍可恢复
+            Log.w(TAG, "Save note " + mNote.getNoteId() + " failed, keep draft");
+            return false;
+        }
+        if (mNote.existInDatabase()) {
+            getJournal().delete();
+        }
+        mJournaledContent = mNote.getContent();
+        mJournaledAttachments = new ArrayList<String>(mNote.getAttachments());
+        return saved;
+    }
+
+    private void scheduleFold() {
+        if (!mFoldScheduled) {
+            mFoldScheduled = true;
+            getWorker().postDelayed(mFoldRunnable, FOLD_DELAY_MS);
+        }
+    }
+
+    private DraftJournal getJournal() {
+        if (mJournal == null) {
+            mJournal = new DraftJournal(mContext, mNote.getNoteId());
+        }
+        return mJournal;
+    }
+}
@@ -20,17 +20,25 @@
  import android.content.ContentUris;
  import android.content.Context;
  import android.database.Cursor;
+ import android.os.Handler;
+ import android.os.Looper;
  import android.text.TextUtils;
  import android.util.Log;
  
+ import net.micode.notes.data.LegacyImageMarkup;
  import net.micode.notes.data.Notes;
  import net.micode.notes.data.Notes.CallNote;
  import net.micode.notes.data.Notes.DataColumns;
  import net.micode.notes.data.Notes.DataConstants;
  import net.micode.notes.data.Notes.NoteColumns;
  import net.micode.notes.data.Notes.TextNote;
+ import net.micode.notes.tool.ImageMarkup;
  import net.micode.notes.tool.ResourceParser.NoteBgResources;
  
+ import java.util.ArrayList;
+ import java.util.List;
+ import java.util.TreeMap;
+ 
  /**
   * 工作笔记类 - 处理便签的创建、加载和保存等核心功能
   */
@@ -43,6 +51,8 @@
      public String mContent;
      // 笔记模式（普通模式/清单模式）
      private int mMode;
+     // 附件路径，第n项对应正文中的第n个占位符
+     private List<String> mAttachments = new ArrayList<String>();
  
      private long mAlertDate;       // 提醒日期
      private long mModifiedDate;    // 最后修改日期
@@ -85,6 +95,8 @@
      private static final int DATA_CONTENT_COLUMN = 1;
      private static final int DATA_MIME_TYPE_COLUMN = 2;
      private static final int DATA_MODE_COLUMN = 3;
+     private static final int DATA_ORDINAL_COLUMN = 3;
+     private static final int DATA_PATH_COLUMN = 5;
  
      // 笔记表字段索引
      private static final int NOTE_PARENT_ID_COLUMN = 0;
@@ -164,6 +176,7 @@
                  }, null);
  
          if (cursor != null) {
+             TreeMap<Integer, String> attachments = new TreeMap<Integer, String>();
              if (cursor.moveToFirst()) {
                  do {
                      String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
@@ -175,18 +188,42 @@
                      } else if (DataConstants.CALL_NOTE.equals(type)) {
                          // 通话记录笔记
                          mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
+                     } else if (DataConstants.ATTACHMENT.equals(type)) {
+                         // 附件，按序号排列
+                         attachments.put(cursor.getInt(DATA_ORDINAL_COLUMN),
+                                 cursor.getString(DATA_PATH_COLUMN));
                      } else {
                          Log.d(TAG, "Wrong note type with type:" + type);
                      }
                  } while (cursor.moveToNext());
              }
              cursor.close();
+             mAttachments = new ArrayList<String>(attachments.values());
+             migrateLegacyImages();
          } else {
              Log.e(TAG, "No data with id:" + mNoteId);
              throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);
          }
      }
  
+     /**
+      * 正文中仍有旧格式的[local]图片标记时（例如从同步内容中写入的正文），
+      * 转换为占位符和附件，下次保存时写入数据库
+      */
+     private void migrateLegacyImages() {
+         if (TextUtils.isEmpty(mContent) || !mAttachments.isEmpty()) {
+             return;
+         }
+         List<String> paths = new ArrayList<String>();
+         String content = LegacyImageMarkup.migrate(mContent, paths);
+         if (!paths.isEmpty()) {
+             mContent = content;
+             mAttachments = paths;
+             mNote.setTextData(DataColumns.CONTENT, mContent);
+             mNote.setAttachments(mAttachments);
+         }
+     }
+ 
      /**
       * 创建空笔记
       */
@@ -207,11 +244,14 @@
      }
  
      /**
-      * 保存笔记
+      * 保存笔记，可以在后台线程调用
       * @return 是否保存成功
       */
-     public synchronized boolean saveNote() {
-         if (isWorthSaving()) {  // 检查是否需要保存
+     public boolean saveNote() {
+         synchronized (this) {
+             if (!isWorthSaving()) {  // 检查是否需要保存
+                 return false;
+             }
              if (!existInDatabase()) {  // 新笔记
                  if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
                      Log.e(TAG, "Create new note fail with id:" + mNoteId);
@@ -220,17 +260,26 @@
              }
  
              mNote.syncNote(mContext, mNoteId);  // 同步笔记数据到数据库
+         }
  
-             // 如果有关联的小部件，更新小部件内容
-             if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                     && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
-                     && mNoteSettingStatusListener != null) {
+         // 如果有关联的小部件，更新小部件内容
+         // 监听器会更新界面，不能在持有锁时调用，后台线程保存时交给主线程
+         if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                 && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
+                 && mNoteSettingStatusListener != null) {
+             if (Looper.myLooper() == Looper.getMainLooper()) {
                  mNoteSettingStatusListener.onWidgetChanged();
+             } else {
+                 new Handler(Looper.getMainLooper()).post(new Runnable() {
+                     public void run() {
+                         if (mNoteSettingStatusListener != null) {
+                             mNoteSettingStatusListener.onWidgetChanged();
+                         }
+                     }
+                 });
              }
-             return true;
-         } else {
-             return false;
          }
+         return true;
      }
  
      /**
@@ -243,7 +292,7 @@
      /**
       * 检查笔记是否需要保存
       */
-     private boolean isWorthSaving() {
+     synchronized boolean isWorthSaving() {
          if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
                  || (existInDatabase() && !mNote.isLocalModified())) {
              return false;
@@ -262,10 +311,13 @@
       * 设置提醒日期
       */
      public void setAlertDate(long date, boolean set) {
-         if (date != mAlertDate) {
-             mAlertDate = date;
-             mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
+         synchronized (this) {
+             if (date != mAlertDate) {
+                 mAlertDate = date;
+                 mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
+             }
          }
+         // 监听器可能同步保存笔记，不能在持有锁时调用
          if (mNoteSettingStatusListener != null) {
              mNoteSettingStatusListener.onClockAlertChanged(date, set);
          }
@@ -275,7 +327,9 @@
       * 标记删除状态
       */
      public void markDeleted(boolean mark) {
-         mIsDeleted = mark;
+         synchronized (this) {
+             mIsDeleted = mark;
+         }
          if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
                  && mWidgetType != Notes.TYPE_WIDGET_INVALIDE && mNoteSettingStatusListener != null) {
                  mNoteSettingStatusListener.onWidgetChanged();
@@ -287,11 +341,13 @@
       */
      public void setBgColorId(int id) {
          if (id != mBgColorId) {
-             mBgColorId = id;
+             synchronized (this) {
+                 mBgColorId = id;
+                 mNote.setNoteValue(NoteColumns.BG_COLOR_ID, String.valueOf(id));
+             }
              if (mNoteSettingStatusListener != null) {
                  mNoteSettingStatusListener.onBackgroundColorChanged();
              }
-             mNote.setNoteValue(NoteColumns.BG_COLOR_ID, String.valueOf(id));
          }
      }
  
@@ -303,15 +359,17 @@
              if (mNoteSettingStatusListener != null) {
                  mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
              }
-             mMode = mode;
-             mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+             synchronized (this) {
+                 mMode = mode;
+                 mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+             }
          }
      }
  
      /**
       * 设置小部件类型
       */
-     public void setWidgetType(int type) {
+     public synchronized void setWidgetType(int type) {
          if (type != mWidgetType) {
              mWidgetType = type;
              mNote.setNoteValue(NoteColumns.WIDGET_TYPE, String.valueOf(mWidgetType));
@@ -321,7 +379,7 @@
      /**
       * 设置小部件ID
       */
-     public void setWidgetId(int id) {
+     public synchronized void setWidgetId(int id) {
          if (id != mWidgetId) {
              mWidgetId = id;
              mNote.setNoteValue(NoteColumns.WIDGET_ID, String.valueOf(mWidgetId));
@@ -330,18 +388,26 @@
  
      /**
       * 设置笔记内容
+      * 带附件标记的文本按标记收集附件；纯文本中的占位符按顺序对应现有附件
+      * 自动保存在后台线程调用，修改笔记数据的方法都与saveNote同步
       */
-     public void setWorkingText(String text) {
-         if (!TextUtils.equals(mContent, text)) {
-             mContent = text;
+     public synchronized void setWorkingText(CharSequence text) {
+         List<String> paths = new ArrayList<String>();
+         String content = ImageMarkup.extract(text, mAttachments, paths);
+         if (!TextUtils.equals(mContent, content)) {
+             mContent = content;
              mNote.setTextData(DataColumns.CONTENT, mContent);
          }
+         if (!mAttachments.equals(paths)) {
+             mAttachments = paths;
+             mNote.setAttachments(mAttachments);
+         }
      }
  
      /**
       * 转换为通话记录笔记
       */
-     public void convertToCallNote(String phoneNumber, long callDate) {
+     public synchronized void convertToCallNote(String phoneNumber, long callDate) {
          mNote.setCallData(CallNote.CALL_DATE, String.valueOf(callDate));
          mNote.setCallData(CallNote.PHONE_NUMBER, phoneNumber);
          mNote.setNoteValue(NoteColumns.PARENT_ID, String.valueOf(Notes.ID_CALL_RECORD_FOLDER));
@@ -357,6 +423,13 @@
          return mContent;
      }
  
+     /**
+      * 获取附件路径，第n项对应正文中的第n个占位符
+      */
+     public List<String> getAttachments() {
+         return mAttachments;
+     }
+ 
      public long getAlertDate() {
          return mAlertDate;
      }
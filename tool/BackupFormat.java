@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 便签数据备份文件格式
+ * 文件整体用gzip压缩，内容为每行一个JSON对象（JSON Lines）：
+ * 1. 第一行为文件头，记录格式名称、格式版本和创建时间
+ * 2. 之后每行是笔记表或数据表的一行，RECORD字段区分类型，其余字段为列名和列值
+ * 3. 文件夹在其中的便签之前，数据项在其所属的便签之后
+ * 行中保留原始的ID、gtask_id和version，恢复时由NotesProvider重新分配ID并修正父子关系。
+ * 附件数据只记录文件路径，不包含图片文件本身
+ * 增量备份（版本2起）使用同样的格式，文件头的BASE字段为其基于的完整备份文件名，
+ * 正文先是被删除笔记的ID，然后是变化的笔记及其全部数据项
+ */
+public class BackupFormat {
+    // 格式名称和当前版本，新版本只能增加字段，读取时忽略不认识的字段
+    public static final String FORMAT_NAME = "micode_notes_backup";
+    public static final int FORMAT_VERSION = 2;
+
+    // 行类型字段及其取值
+    private static final String RECORD = "record";
+    private static final String RECORD_HEADER = "header";
+    private static final String RECORD_NOTE = "note";
+    private static final String RECORD_DATA = "data";
+    private static final String RECORD_DELETED = "deleted";
+
+    // 文件头字段
+    private static final String HEADER_FORMAT = "format";
+    private static final String HEADER_VERSION = "version";
+    private static final String HEADER_CREATED = "created";
+    private static final String HEADER_BASE = "base";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 备份的笔记表列
+    public static final String[] NOTE_COLUMNS = new String[] {
+            NoteColumns.ID,
+            NoteColumns.PARENT_ID,
+            NoteColumns.ALERTED_DATE,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.CREATED_DATE,
+            NoteColumns.HAS_ATTACHMENT,
+            NoteColumns.MODIFIED_DATE,
+            NoteColumns.SNIPPET,
+            NoteColumns.TYPE,
+            NoteColumns.SYNC_ID,
+            NoteColumns.LOCAL_MODIFIED,
+            NoteColumns.ORIGIN_PARENT_ID,
+            NoteColumns.GTASK_ID,
+            NoteColumns.VERSION
+    };
+
+    // 备份的数据表列
+    public static final String[] DATA_COLUMNS = new String[] {
+            DataColumns.ID,
+            DataColumns.MIME_TYPE,
+            DataColumns.NOTE_ID,
+            DataColumns.CREATED_DATE,
+            DataColumns.MODIFIED_DATE,
+            DataColumns.CONTENT,
+            DataColumns.DATA1,
+            DataColumns.DATA2,
+            DataColumns.DATA3,
+            DataColumns.DATA4,
+            DataColumns.DATA5
+    };
+
+    /**
+     * 读取备份文件时按顺序接收每一行
+     */
+    public interface RowHandler {
+        void onNote(ContentValues values);
+
+        void onData(ContentValues values);
+
+        /**
+         * 笔记被删除，只出现在增量备份中
+         * @param noteId 笔记在备份中的ID
+         */
+        void onDeleted(long noteId);
+    }
+
+    private BackupFormat() {
+    }
+
+    /**
+     * 备份文件写入器，创建时写入文件头
+     */
+    public static class Writer {
+        private final BufferedWriter mWriter;
+        private int mNoteCount;
+        private int mDataCount;
+
+        public Writer(OutputStream out) throws IOException {
+            this(out, null);
+        }
+
+        /**
+         * @param base 增量备份基于的完整备份文件名，完整备份为null
+         */
+        public Writer(OutputStream out, String base) throws IOException {
+            mWriter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out,
+                    BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
+            JSONObject header = new JSONObject();
+            try {
+                header.put(RECORD, RECORD_HEADER);
+                header.put(HEADER_FORMAT, FORMAT_NAME);
+                header.put(HEADER_VERSION, FORMAT_VERSION);
+                header.put(HEADER_CREATED, System.currentTimeMillis());
+                if (base != null) {
+                    header.put(HEADER_BASE, base);
+                }
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            writeLine(header);
+        }
+
+        /**
+         * 写入笔记表游标的当前行，游标列名应取自NOTE_COLUMNS
+         */
+        public void writeNote(Cursor cursor) throws IOException {
+            writeLine(rowToJSON(RECORD_NOTE, cursor));
+            mNoteCount++;
+        }
+
+        /**
+         * 写入数据表游标的当前行，游标列名应取自DATA_COLUMNS
+         */
+        public void writeData(Cursor cursor) throws IOException {
+            writeLine(rowToJSON(RECORD_DATA, cursor));
+            mDataCount++;
+        }
+
+        /**
+         * 写入被删除的笔记ID，应在所有笔记行之前写入
+         */
+        public void writeDeleted(long noteId) throws IOException {
+            JSONObject js = new JSONObject();
+            try {
+                js.put(RECORD, RECORD_DELETED);
+                js.put(NoteColumns.ID, noteId);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            writeLine(js);
+        }
+
+        public int getNoteCount() {
+            return mNoteCount;
+        }
+
+        public int getDataCount() {
+            return mDataCount;
+        }
+
+        /**
+         * 结束压缩流并关闭文件
+         */
+        public void close() throws IOException {
+            mWriter.close();
+        }
+
+        private void writeLine(JSONObject js) throws IOException {
+            mWriter.write(js.toString());
+            mWriter.write('\n');
+        }
+    }
+
+    /**
+     * 读取备份文件，依次把每一行交给handler
+     * @param in 备份文件输入流，由调用方关闭
+     * @return 文件的格式版本
+     * @throws IllegalArgumentException 不是备份文件、版本过新或内容损坏
+     */
+    public static int read(InputStream in, RowHandler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(in, BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
+        try {
+            JSONObject header = new JSONObject(readRequiredLine(reader));
+            if (!RECORD_HEADER.equals(header.optString(RECORD))
+                    || !FORMAT_NAME.equals(header.optString(HEADER_FORMAT))) {
+                throw new IllegalArgumentException("Not a notes backup file");
+            }
+            int version = header.getInt(HEADER_VERSION);
+            if (version > FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported backup version:" + version);
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                JSONObject js = new JSONObject(line);
+                String record = js.optString(RECORD);
+                if (RECORD_NOTE.equals(record)) {
+                    handler.onNote(toValues(js, NOTE_COLUMNS));
+                } else if (RECORD_DATA.equals(record)) {
+                    handler.onData(toValues(js, DATA_COLUMNS));
+                } else if (RECORD_DELETED.equals(record)) {
+                    handler.onDeleted(js.getLong(NoteColumns.ID));
+                }
+                // 不认识的行类型来自更新的格式，跳过
+            }
+            return version;
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Corrupted backup file", e);
+        }
+    }
+
+    private static String readRequiredLine(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IllegalArgumentException("Empty backup file");
+        }
+        return line;
+    }
+
+    private static JSONObject rowToJSON(String record, Cursor cursor) {
+        JSONObject js = new JSONObject();
+        try {
+            js.put(RECORD, record);
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                String name = cursor.getColumnName(i);
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        js.put(name, cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        js.put(name, cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        js.put(name, cursor.getString(i));
+                        break;
+                    case Cursor.FIELD_TYPE_NULL:
+                        js.put(name, JSONObject.NULL);
+                        break;
+                    default:
+                        // 表中没有二进制列
+                        break;
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return js;
+    }
+
+    /**
+     * 只取出已知的列，文件中多余的字段被忽略
+     */
+    private static ContentValues toValues(JSONObject js, String[] columns) {
+        ContentValues values = new ContentValues();
+        for (String column : columns) {
+            if (!js.has(column)) {
+                continue;
+            }
+            Object value = js.opt(column);
+            if (value == null || value == JSONObject.NULL) {
+                values.putNull(column);
+            } else if (value instanceof Double || value instanceof Float) {
+                values.put(column, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                values.put(column, ((Number) value).longValue());
+            } else {
+                values.put(column, value.toString());
+            }
+        }
+        return values;
+    }
+}
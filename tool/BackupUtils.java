@@ -18,6 +18,9 @@
 
  import android.content.Context;
  import android.database.Cursor;
+ import android.database.SQLException;
+ import android.net.Uri;
+ import android.os.Bundle;
  import android.os.Environment;
  import android.text.TextUtils;
  import android.text.format.DateFormat;
@@ -25,15 +28,18 @@
  
  import net.micode.notes.R;
  import net.micode.notes.data.Notes;
+ import net.micode.notes.data.Notes.Attachment;
  import net.micode.notes.data.Notes.DataColumns;
  import net.micode.notes.data.Notes.DataConstants;
  import net.micode.notes.data.Notes.NoteColumns;
+ import net.micode.notes.ui.ReminderScheduler;
  
+ import java.io.BufferedWriter;
  import java.io.File;
- import java.io.FileNotFoundException;
  import java.io.FileOutputStream;
  import java.io.IOException;
- import java.io.PrintStream;
+ import java.io.OutputStreamWriter;
+ import java.io.Writer;
  
  /**
   * 备份工具类 - 处理便签数据的导出和恢复功能
@@ -64,14 +70,33 @@
      public static final int STATE_DATA_DESTROIED            = 2; // 数据损坏
      public static final int STATE_SYSTEM_ERROR              = 3; // 系统错误
      public static final int STATE_SUCCESS                   = 4; // 操作成功
+     public static final int STATE_CANCELLED                 = 5; // 操作被取消
  
+     /**
+      * 导出进度监听器，在导出线程中回调
+      */
+     public interface ExportListener {
+         /**
+          * @param processed 已处理的行数（文件夹、便签的每个数据项各为一行）
+          * @param total 总行数
+          */
+         void onExportProgress(int processed, int total);
+     }
+ 
+     // 增量备份目录名，位于导出目录下
+     private static final String INCREMENTAL_DIR_NAME = "incremental";
+ 
+     private Context mContext;
      private TextExport mTextExport; // 文本导出处理器
+     private DataBackup mDataBackup; // 数据备份处理器
  
      /**
       * 私有构造函数
       */
      private BackupUtils(Context context) {
+         mContext = context;
          mTextExport = new TextExport(context);
+         mDataBackup = new DataBackup(context);
      }
  
      /**
@@ -86,7 +111,116 @@
       * @return 操作状态码
       */
      public int exportToText() {
-         return mTextExport.exportToText();
+         return mTextExport.exportToText(null);
+     }
+ 
+     /**
+      * 导出便签到文本文件，并报告进度
+      * @param listener 进度监听器，可以为null
+      * @return 操作状态码，被cancelExport取消时为STATE_CANCELLED
+      */
+     public int exportToText(ExportListener listener) {
+         return mTextExport.exportToText(listener);
+     }
+ 
+     /**
+      * 取消正在进行的文本导出，未写完的文件会被删除
+      */
+     public void cancelExport() {
+         mTextExport.cancel();
+     }
+ 
+     /**
+      * 把所有便签和数据项备份到文件，格式见BackupFormat
+      * 目前界面上没有备份和恢复的入口，只供其他模块调用
+      * @return 操作状态码
+      */
+     public int backupToFile() {
+         return mDataBackup.backup();
+     }
+ 
+     /**
+      * 从备份文件恢复便签，恢复的便签追加到现有便签中
+      * 与backupToFile相同，目前界面上没有入口
+      * @param path 备份文件路径
+      * @return 操作状态码
+      */
+     public int restoreFromFile(String path) {
+         return onRestored(mDataBackup.restore(path));
+     }
+ 
+     /**
+      * 增量备份，只写出上次备份后变化和删除的便签，必要时自动生成新的完整备份
+      * 备份链保存在导出目录的incremental子目录中，详见IncrementalBackup
+      * @return 操作状态码
+      */
+     public int backupIncremental() {
+         if (!externalStorageAvailable()) {
+             Log.d(TAG, "Media was not mounted");
+             return STATE_SD_CARD_UNMOUONTED;
+         }
+         try {
+             getIncrementalBackup().backup();
+             return STATE_SUCCESS;
+         } catch (IOException e) {
+             Log.e(TAG, "incremental backup failed", e);
+             return STATE_SYSTEM_ERROR;
+         }
+     }
+ 
+     /**
+      * 按增量备份链恢复便签，恢复的便签追加到现有便签中
+      * @return 操作状态码
+      */
+     public int restoreIncremental() {
+         if (!externalStorageAvailable()) {
+             Log.d(TAG, "Media was not mounted");
+             return STATE_SD_CARD_UNMOUONTED;
+         }
+         Bundle stats;
+         try {
+             stats = getIncrementalBackup().restore();
+         } catch (IOException e) {
+             Log.e(TAG, "no incremental backup: " + e.toString());
+             return STATE_BACKUP_FILE_NOT_EXIST;
+         } catch (IllegalArgumentException e) {
+             Log.e(TAG, "backup file destroyed: " + e.toString());
+             return STATE_DATA_DESTROIED;
+         } catch (SQLException e) {
+             Log.e(TAG, "restore backup failed: " + e.toString());
+             return STATE_SYSTEM_ERROR;
+         }
+         return onRestored(stats != null ? STATE_SUCCESS : STATE_SYSTEM_ERROR);
+     }
+ 
+     /**
+      * 恢复的便签可能带有提醒，成功后重新注册下一个提醒
+      */
+     private int onRestored(int state) {
+         if (state == STATE_SUCCESS) {
+             ReminderScheduler.scheduleNext(mContext);
+         }
+         return state;
+     }
+ 
+     private IncrementalBackup getIncrementalBackup() {
+         File dir = new File(Environment.getExternalStorageDirectory()
+                 + mContext.getString(R.string.file_path), INCREMENTAL_DIR_NAME);
+         return new IncrementalBackup(mContext.getContentResolver(), dir);
+     }
+ 
+     /**
+      * 获取备份文件名
+      */
+     public String getBackupFileName() {
+         return mDataBackup.mFileName;
+     }
+ 
+     /**
+      * 获取备份文件目录
+      */
+     public String getBackupFileDir() {
+         return mDataBackup.mFileDirectory;
      }
  
      /**
@@ -105,34 +239,18 @@
  
      /**
       * 文本导出内部类 - 处理便签数据到文本文件的转换
+      * 通过Notes.CONTENT_EXPORT_URI一次查询取回所有文件夹、便签和数据项，
+      * 按顺序写入带缓冲的输出流，耗时只与写出的数据量有关，与便签数量无关
       */
      private static class TextExport {
-         // 笔记查询字段
-         private static final String[] NOTE_PROJECTION = {
-                 NoteColumns.ID,
-                 NoteColumns.MODIFIED_DATE,
-                 NoteColumns.SNIPPET,
-                 NoteColumns.TYPE
-         };
- 
-         private static final int NOTE_COLUMN_ID = 0;
-         private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
-         private static final int NOTE_COLUMN_SNIPPET = 2;
- 
-         // 数据查询字段
-         private static final String[] DATA_PROJECTION = {
-                 DataColumns.CONTENT,
-                 DataColumns.MIME_TYPE,
-                 DataColumns.DATA1,
-                 DataColumns.DATA2,
-                 DataColumns.DATA3,
-                 DataColumns.DATA4,
-         };
- 
-         private static final int DATA_COLUMN_CONTENT = 0;
-         private static final int DATA_COLUMN_MIME_TYPE = 1;
-         private static final int DATA_COLUMN_CALL_DATE = 2;
-         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+         // 输出缓冲区大小
+         private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+ 
+         // 每处理多少行通知一次进度
+         private static final int PROGRESS_INTERVAL = 256;
+ 
+         // 便签之间的分隔符
+         private static final String NOTE_SEPARATOR = "\r\n";
  
          // 文本格式定义
          private final String [] TEXT_FORMAT;
@@ -143,6 +261,7 @@
          private Context mContext;
          private String mFileName;      // 导出文件名
          private String mFileDirectory; // 导出目录
+         private volatile boolean mCancelled; // 是否已请求取消
  
          /**
           * 构造函数
@@ -163,179 +282,173 @@
          }
  
          /**
-          * 导出指定文件夹下的所有便签
-          * @param folderId 文件夹ID
-          * @param ps 输出流
+          * 执行导出操作
+          * @param listener 进度监听器，可以为null
+          * @return 操作状态码
           */
-         private void exportFolderToText(String folderId, PrintStream ps) {
-             // 查询该文件夹下的所有便签
-             Cursor notesCursor = mContext.getContentResolver().query(
-                     Notes.CONTENT_NOTE_URI,
-                     NOTE_PROJECTION, 
-                     NoteColumns.PARENT_ID + "=?", 
-                     new String[] { folderId }, 
-                     null);
- 
-             if (notesCursor != null) {
-                 if (notesCursor.moveToFirst()) {
-                     do {
-                         // 输出便签修改日期
-                         ps.println(String.format(getFormat(FORMAT_NOTE_DATE), 
-                                 DateFormat.format(
-                                     mContext.getString(R.string.format_datetime_mdhm),
-                                     notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                         
-                         // 导出该便签内容
-                         String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                         exportNoteToText(noteId, ps);
-                     } while (notesCursor.moveToNext());
-                 }
-                 notesCursor.close();
+         public int exportToText(ExportListener listener) {
+             mCancelled = false;
+             // 检查存储状态
+             if (!externalStorageAvailable()) {
+                 Log.d(TAG, "Media was not mounted");
+                 return STATE_SD_CARD_UNMOUONTED;
              }
-         }
  
-         /**
-          * 导出单个便签内容
-          * @param noteId 便签ID
-          * @param ps 输出流
-          */
-         private void exportNoteToText(String noteId, PrintStream ps) {
-             // 查询该便签的所有数据项
-             Cursor dataCursor = mContext.getContentResolver().query(
-                     Notes.CONTENT_DATA_URI,
-                     DATA_PROJECTION, 
-                     DataColumns.NOTE_ID + "=?", 
-                     new String[] { noteId }, 
-                     null);
- 
-             if (dataCursor != null) {
-                 if (dataCursor.moveToFirst()) {
-                     do {
-                         String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                         if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                             // 处理通话记录类型便签
-                             String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                             long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                             String location = dataCursor.getString(DATA_COLUMN_CONTENT);
- 
-                             // 输出电话号码
-                             if (!TextUtils.isEmpty(phoneNumber)) {
-                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                         phoneNumber));
-                             }
-                             // 输出通话日期
-                             ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), 
-                                     DateFormat.format(
-                                         mContext.getString(R.string.format_datetime_mdhm),
-                                         callDate)));
-                             // 输出通话位置
-                             if (!TextUtils.isEmpty(location)) {
-                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                         location));
-                             }
-                         } else if (DataConstants.NOTE.equals(mimeType)) {
-                             // 处理普通文本便签
-                             String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                             if (!TextUtils.isEmpty(content)) {
-                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                         content));
-                             }
-                         }
-                     } while (dataCursor.moveToNext());
-                 }
-                 dataCursor.close();
+             // 获取输出文件
+             File file = getExportToTextFile();
+             if (file == null) {
+                 Log.e(TAG, "get export file error");
+                 return STATE_SYSTEM_ERROR;
              }
-             
-             // 输出便签分隔符
+ 
+             Cursor cursor = mContext.getContentResolver().query(
+                     Notes.CONTENT_EXPORT_URI, null, null, null, null);
+             if (cursor == null) {
+                 Log.e(TAG, "query notes to export failed");
+                 return STATE_SYSTEM_ERROR;
+             }
+ 
+             Writer writer = null;
+             int state = STATE_SYSTEM_ERROR;
              try {
-                 ps.write(new byte[] {
-                         Character.LINE_SEPARATOR, Character.LETTER_NUMBER
-                 });
+                 writer = new BufferedWriter(new OutputStreamWriter(
+                         new FileOutputStream(file), "UTF-8"), WRITE_BUFFER_SIZE);
+                 state = writeRows(cursor, writer, listener);
              } catch (IOException e) {
-                 Log.e(TAG, e.toString());
+                 Log.e(TAG, "export to text failed", e);
+             } finally {
+                 cursor.close();
+                 if (writer != null) {
+                     try {
+                         writer.close();
+                     } catch (IOException e) {
+                         Log.e(TAG, e.toString());
+                         state = STATE_SYSTEM_ERROR;
+                     }
+                 }
              }
+ 
+             // 取消或失败时不保留不完整的文件
+             if (state != STATE_SUCCESS && !file.delete()) {
+                 Log.w(TAG, "delete incomplete export file failed: " + file);
+             }
+             return state;
          }
  
          /**
-          * 执行导出操作
-          * @return 操作状态码
+          * 请求取消正在进行的导出，导出线程在处理下一行时返回STATE_CANCELLED
           */
-         public int exportToText() {
-             // 检查存储状态
-             if (!externalStorageAvailable()) {
-                 Log.d(TAG, "Media was not mounted");
-                 return STATE_SD_CARD_UNMOUONTED;
-             }
+         public void cancel() {
+             mCancelled = true;
+         }
  
-             // 获取输出流
-             PrintStream ps = getExportToTextPrintStream();
-             if (ps == null) {
-                 Log.e(TAG, "get print stream error");
-                 return STATE_SYSTEM_ERROR;
-             }
-             
-             // 导出所有文件夹及其便签
-             Cursor folderCursor = mContext.getContentResolver().query(
-                     Notes.CONTENT_NOTE_URI,
-                     NOTE_PROJECTION,
-                     "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
-                             + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
-                             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, 
-                     null, null);
- 
-             if (folderCursor != null) {
-                 if (folderCursor.moveToFirst()) {
-                     do {
-                         // 输出文件夹名称
-                         String folderName = "";
-                         if(folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                             folderName = mContext.getString(R.string.call_record_folder_name);
-                         } else {
-                             folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
-                         }
-                         if (!TextUtils.isEmpty(folderName)) {
-                             ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
+         /**
+          * 把导出查询的结果逐行写出
+          * 文件夹行输出文件夹名称，便签的第一行输出修改日期，之后每行输出一个数据项，
+          * 便签结束时输出分隔符
+          */
+         private int writeRows(Cursor cursor, Writer writer, ExportListener listener)
+                 throws IOException {
+             int idColumn = cursor.getColumnIndexOrThrow(NoteColumns.ID);
+             int typeColumn = cursor.getColumnIndexOrThrow(NoteColumns.TYPE);
+             int snippetColumn = cursor.getColumnIndexOrThrow(NoteColumns.SNIPPET);
+             int modifiedColumn = cursor.getColumnIndexOrThrow(NoteColumns.MODIFIED_DATE);
+             int contentColumn = cursor.getColumnIndexOrThrow(DataColumns.CONTENT);
+             int mimeTypeColumn = cursor.getColumnIndexOrThrow(DataColumns.MIME_TYPE);
+             int callDateColumn = cursor.getColumnIndexOrThrow(DataColumns.DATA1);
+             int phoneNumberColumn = cursor.getColumnIndexOrThrow(DataColumns.DATA3);
+ 
+             String dateFormat = mContext.getString(R.string.format_datetime_mdhm);
+             String callRecordFolderName = mContext.getString(R.string.call_record_folder_name);
+             int total = cursor.getCount();
+             int processed = 0;
+             long currentNoteId = 0;
+             boolean inNote = false;
+ 
+             while (cursor.moveToNext()) {
+                 if (mCancelled) {
+                     Log.d(TAG, "export cancelled after " + processed + " rows");
+                     return STATE_CANCELLED;
+                 }
+ 
+                 long id = cursor.getLong(idColumn);
+                 if (cursor.getInt(typeColumn) != Notes.TYPE_NOTE) {
+                     // 文件夹行，结束上一个便签并输出文件夹名称
+                     if (inNote) {
+                         writer.write(NOTE_SEPARATOR);
+                         inNote = false;
+                     }
+                     String folderName = id == Notes.ID_CALL_RECORD_FOLDER
+                             ? callRecordFolderName : cursor.getString(snippetColumn);
+                     if (!TextUtils.isEmpty(folderName)) {
+                         writeLine(writer, String.format(getFormat(FORMAT_FOLDER_NAME),
+                                 folderName));
+                     }
+                 } else {
+                     if (!inNote || id != currentNoteId) {
+                         // 新的便签，结束上一个便签并输出修改日期
+                         if (inNote) {
+                             writer.write(NOTE_SEPARATOR);
                          }
-                         // 导出该文件夹下的便签
-                         String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                         exportFolderToText(folderId, ps);
-                     } while (folderCursor.moveToNext());
+                         writeLine(writer, String.format(getFormat(FORMAT_NOTE_DATE),
+                                 DateFormat.format(dateFormat, cursor.getLong(modifiedColumn))));
+                         currentNoteId = id;
+                         inNote = true;
+                     }
+                     writeData(writer, cursor.getString(mimeTypeColumn),
+                             cursor.getString(contentColumn), cursor.getLong(callDateColumn),
+                             cursor.getString(phoneNumberColumn), dateFormat);
                  }
-                 folderCursor.close();
+ 
+                 processed++;
+                 if (listener != null && processed % PROGRESS_INTERVAL == 0) {
+                     listener.onExportProgress(processed, total);
+                 }
+             }
+             if (inNote) {
+                 writer.write(NOTE_SEPARATOR);
              }
+             if (listener != null) {
+                 listener.onExportProgress(processed, total);
+             }
+             return STATE_SUCCESS;
+         }
  
-             // 导出根目录下的便签
-             Cursor noteCursor = mContext.getContentResolver().query(
-                     Notes.CONTENT_NOTE_URI,
-                     NOTE_PROJECTION,
-                     NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                             + "=0", 
-                     null, null);
- 
-             if (noteCursor != null) {
-                 if (noteCursor.moveToFirst()) {
-                     do {
-                         ps.println(String.format(getFormat(FORMAT_NOTE_DATE), 
-                                 DateFormat.format(
-                                     mContext.getString(R.string.format_datetime_mdhm),
-                                     noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                         // 导出该便签内容
-                         String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                         exportNoteToText(noteId, ps);
-                     } while (noteCursor.moveToNext());
+         /**
+          * 输出一个数据项，没有数据项的便签mimeType为null
+          */
+         private void writeData(Writer writer, String mimeType, String content, long callDate,
+                 String phoneNumber, String dateFormat) throws IOException {
+             if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                 // 处理通话记录类型便签：电话号码、通话日期、通话位置
+                 if (!TextUtils.isEmpty(phoneNumber)) {
+                     writeLine(writer, String.format(getFormat(FORMAT_NOTE_CONTENT), phoneNumber));
+                 }
+                 writeLine(writer, String.format(getFormat(FORMAT_NOTE_CONTENT),
+                         DateFormat.format(dateFormat, callDate)));
+                 if (!TextUtils.isEmpty(content)) {
+                     writeLine(writer, String.format(getFormat(FORMAT_NOTE_CONTENT), content));
+                 }
+             } else if (DataConstants.NOTE.equals(mimeType)) {
+                 // 处理普通文本便签，附件单独保存，去掉正文中的占位符
+                 if (content != null) {
+                     content = content.replace(Attachment.PLACEHOLDER, "");
+                 }
+                 if (!TextUtils.isEmpty(content)) {
+                     writeLine(writer, String.format(getFormat(FORMAT_NOTE_CONTENT), content));
                  }
-                 noteCursor.close();
              }
-             ps.close();
+         }
  
-             return STATE_SUCCESS;
+         private static void writeLine(Writer writer, String line) throws IOException {
+             writer.write(line);
+             writer.write('\n');
          }
  
          /**
-          * 获取导出文件的输出流
+          * 生成导出文件并记录文件信息
           */
-         private PrintStream getExportToTextPrintStream() {
-             // 生成导出文件
+         private File getExportToTextFile() {
              File file = generateFileMountedOnSDcard(
                      mContext, 
                      R.string.file_path,
@@ -345,20 +458,139 @@
                  return null;
              }
              
-             // 记录文件信息
              mFileName = file.getName();
              mFileDirectory = mContext.getString(R.string.file_path);
-             
-             // 创建输出流
-             PrintStream ps = null;
+             return file;
+         }
+     }
+ 
+     /**
+      * 数据备份内部类 - 把笔记表和数据表的原始行写入备份文件，并通过NotesProvider恢复
+      * 备份只需两次查询，恢复在NotesProvider中一个事务内完成
+      */
+     private static class DataBackup {
+         // 备份文件名格式，参数为日期
+         private static final String FILE_NAME_FORMAT = "notes_%s.mnb";
+ 
+         private Context mContext;
+         private String mFileName;      // 备份文件名
+         private String mFileDirectory; // 备份目录
+ 
+         public DataBackup(Context context) {
+             mContext = context;
+             mFileName = "";
+             mFileDirectory = "";
+         }
+ 
+         /**
+          * 执行备份
+          * @return 操作状态码
+          */
+         public int backup() {
+             if (!externalStorageAvailable()) {
+                 Log.d(TAG, "Media was not mounted");
+                 return STATE_SD_CARD_UNMOUONTED;
+             }
+ 
+             File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                     String.format(FILE_NAME_FORMAT, DateFormat.format(
+                             mContext.getString(R.string.format_date_ymd),
+                             System.currentTimeMillis())));
+             if (file == null) {
+                 Log.e(TAG, "create backup file failed");
+                 return STATE_SYSTEM_ERROR;
+             }
+             mFileName = file.getName();
+             mFileDirectory = mContext.getString(R.string.file_path);
+ 
+             BackupFormat.Writer writer = null;
+             boolean success = false;
              try {
-                 FileOutputStream fos = new FileOutputStream(file);
-                 ps = new PrintStream(fos);
-             } catch (FileNotFoundException e) {
-                 e.printStackTrace();
-                 return null;
+                 writer = new BackupFormat.Writer(new FileOutputStream(file));
+                 // 文件夹在前，保证恢复时父文件夹先于其中的便签插入
+                 if (writeRows(writer, Notes.CONTENT_NOTE_URI, BackupFormat.NOTE_COLUMNS,
+                         NoteColumns.ID + ">0",
+                         NoteColumns.TYPE + " DESC," + NoteColumns.ID, true)
+                         && writeRows(writer, Notes.CONTENT_DATA_URI, BackupFormat.DATA_COLUMNS,
+                         null, DataColumns.NOTE_ID + "," + DataColumns.ID, false)) {
+                     writer.close();
+                     writer = null;
+                     success = true;
+                     Log.d(TAG, "backup finished: " + file);
+                 }
+             } catch (IOException e) {
+                 Log.e(TAG, "write backup failed", e);
+             } finally {
+                 if (writer != null) {
+                     try {
+                         writer.close();
+                     } catch (IOException e) {
+                         Log.e(TAG, e.toString());
+                     }
+                 }
+             }
+ 
+             if (!success && !file.delete()) {
+                 Log.w(TAG, "delete incomplete backup file failed: " + file);
+             }
+             return success ? STATE_SUCCESS : STATE_SYSTEM_ERROR;
+         }
+ 
+         /**
+          * 把一张表的查询结果逐行写入备份
+          * @return 查询失败时返回false
+          */
+         private boolean writeRows(BackupFormat.Writer writer, Uri uri, String[] projection,
+                 String selection, String sortOrder, boolean notes) throws IOException {
+             Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
+                     null, sortOrder);
+             if (cursor == null) {
+                 Log.e(TAG, "query " + uri + " failed");
+                 return false;
+             }
+             try {
+                 while (cursor.moveToNext()) {
+                     if (notes) {
+                         writer.writeNote(cursor);
+                     } else {
+                         writer.writeData(cursor);
+                     }
+                 }
+             } finally {
+                 cursor.close();
+             }
+             return true;
+         }
+ 
+         /**
+          * 执行恢复
+          * @param path 备份文件路径
+          * @return 操作状态码
+          */
+         public int restore(String path) {
+             if (TextUtils.isEmpty(path) || !new File(path).isFile()) {
+                 Log.e(TAG, "backup file not exist: " + path);
+                 return STATE_BACKUP_FILE_NOT_EXIST;
+             }
+ 
+             Bundle stats;
+             try {
+                 stats = mContext.getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                         Notes.METHOD_RESTORE_BACKUP, path, null);
+             } catch (IllegalArgumentException e) {
+                 Log.e(TAG, "backup file destroyed: " + e.toString());
+                 return STATE_DATA_DESTROIED;
+             } catch (SQLException e) {
+                 Log.e(TAG, "restore backup failed: " + e.toString());
+                 return STATE_SYSTEM_ERROR;
+             }
+             if (stats == null) {
+                 return STATE_SYSTEM_ERROR;
              }
-             return ps;
+             Log.d(TAG, "restored " + stats.getInt(Notes.RESTORE_STAT_NOTES) + " notes, "
+                     + stats.getInt(Notes.RESTORE_STAT_DATA) + " data, skipped "
+                     + stats.getInt(Notes.RESTORE_STAT_SKIPPED));
+             return STATE_SUCCESS;
          }
      }
  
@@ -371,18 +603,30 @@
       */
      private static File generateFileMountedOnSDcard(Context context, 
              int filePathResId, int fileNameFormatResId) {
+         // 构建完整文件名(含日期)
+         return generateFileMountedOnSDcard(context, filePathResId, context.getString(
+                 fileNameFormatResId,
+                 DateFormat.format(
+                     context.getString(R.string.format_date_ymd),
+                     System.currentTimeMillis())));
+     }
+ 
+     /**
+      * 在SD卡上创建指定文件名的文件
+      * @param context 上下文
+      * @param filePathResId 文件路径资源ID
+      * @param fileName 文件名
+      * @return 创建的文件对象
+      */
+     private static File generateFileMountedOnSDcard(Context context, 
+             int filePathResId, String fileName) {
          // 构建文件路径
          StringBuilder sb = new StringBuilder();
          sb.append(Environment.getExternalStorageDirectory());
          sb.append(context.getString(filePathResId));
          File filedir = new File(sb.toString());
          
-         // 构建完整文件名(含日期)
-         sb.append(context.getString(
-                 fileNameFormatResId,
-                 DateFormat.format(
-                     context.getString(R.string.format_date_ymd),
-                     System.currentTimeMillis())));
+         sb.append(fileName);
          File file = new File(sb.toString());
  
          try {
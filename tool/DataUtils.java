@@ -32,6 +32,8 @@
  import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
  
  import java.util.ArrayList;
+ import java.util.Collection;
+ import java.util.HashMap;
  import java.util.HashSet;
  
  /**
@@ -308,6 +310,45 @@
          return ""; // 默认返回空字符串
      }
  
+     /**
+      * 批量获取通话记录便签的电话号码，只产生一次查询
+      * @param resolver ContentResolver对象
+      * @param noteIds 便签ID集合
+      * @return 便签ID到电话号码的映射，没有通话数据的便签不在结果中
+      */
+     public static HashMap<Long, String> getCallNumbersByNoteIds(ContentResolver resolver,
+             Collection<Long> noteIds) {
+         HashMap<Long, String> numbers = new HashMap<Long, String>();
+         if (noteIds == null || noteIds.size() == 0) {
+             return numbers;
+         }
+
+         StringBuilder selection = new StringBuilder();
+         selection.append(CallNote.MIME_TYPE).append("=? AND ").append(CallNote.NOTE_ID).append(" IN (");
+         boolean first = true;
+         for (Long id : noteIds) {
+             selection.append(first ? "" : ",").append(id.longValue());
+             first = false;
+         }
+         selection.append(")");
+
+         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
+                 new String [] { CallNote.NOTE_ID, CallNote.PHONE_NUMBER },
+                 selection.toString(),
+                 new String [] { CallNote.CONTENT_ITEM_TYPE },
+                 null);
+         if (cursor != null) {
+             try {
+                 while (cursor.moveToNext()) {
+                     numbers.put(cursor.getLong(0), cursor.getString(1));
+                 }
+             } finally {
+                 cursor.close();
+             }
+         }
+         return numbers;
+     }
+
      /**
       * 根据电话号码和通话日期获取便签ID
       * @param resolver ContentResolver对象
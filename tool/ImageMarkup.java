@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.Annotation;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import net.micode.notes.data.Notes.Attachment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 便签正文中图片附件的标记工具
+ * 图片单独保存为附件数据，正文中只保留一个Attachment.PLACEHOLDER字符，第n个占位符对应第n个附件。
+ * 编辑时占位符上挂一个Annotation标记记录图片路径，文字被增删、复制或拆分时路径跟随占位符移动；
+ * 保存时按占位符的顺序重新收集附件路径。
+ * 旧版本 [local]图片路径[/local] 格式的正文由data.LegacyImageMarkup转换
+ */
+public class ImageMarkup {
+    // 占位符上Annotation标记的键
+    private static final String ANNOTATION_KEY = "attachment";
+
+    private static final char PLACEHOLDER = Attachment.PLACEHOLDER.charAt(0);
+
+    /**
+     * 一个图片在正文中的位置
+     */
+    public static class Token {
+        public final int start;   // 起始位置
+        public final int end;     // 结束位置
+        public final String path; // 图片路径
+        final Object span;        // 占位符上的标记
+
+        Token(int start, int end, String path, Object span) {
+            this.start = start;
+            this.end = end;
+            this.path = path;
+            this.span = span;
+        }
+    }
+
+    /**
+     * 构造一个新附件的占位文本，可直接插入编辑框
+     */
+    public static Spannable build(String path) {
+        SpannableString text = new SpannableString(Attachment.PLACEHOLDER);
+        text.setSpan(new Annotation(ANNOTATION_KEY, path), 0, 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return text;
+    }
+
+    /**
+     * 为正文中的占位符挂上附件路径
+     * @param content 数据库中的正文
+     * @param paths 按序号排列的附件路径，多余的占位符不挂标记（保存时会被丢弃）
+     */
+    public static Spannable toSpannable(CharSequence content, List<String> paths) {
+        SpannableStringBuilder text = new SpannableStringBuilder(content == null ? "" : content);
+        int ordinal = 0;
+        for (int i = 0; i < text.length() && ordinal < paths.size(); i++) {
+            if (text.charAt(i) == PLACEHOLDER) {
+                text.setSpan(new Annotation(ANNOTATION_KEY, paths.get(ordinal++)), i, i + 1,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * 从编辑中的正文收集附件，返回可以保存的正文
+     * 带标记的文本按标记取路径，没有对应附件的占位符被删除；
+     * 纯文本（例如清单模式拼接出的字符串）按顺序对应fallback中的路径
+     * @param text 编辑中的正文
+     * @param fallback 纯文本时按序号使用的附件路径
+     * @param outPaths 输出，按出现顺序排列的附件路径
+     * @return 正文
+     */
+    public static String extract(CharSequence text, List<String> fallback, List<String> outPaths) {
+        if (text == null) {
+            return "";
+        }
+        Spanned spanned = (text instanceof Spanned) ? (Spanned) text : null;
+        StringBuilder sb = null;
+        int ordinal = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != PLACEHOLDER) {
+                if (sb != null) {
+                    sb.append(text.charAt(i));
+                }
+                continue;
+            }
+            String path = null;
+            if (spanned != null) {
+                path = getPath(spanned, i);
+            } else if (ordinal < fallback.size()) {
+                path = fallback.get(ordinal);
+            }
+            ordinal++;
+            if (path != null) {
+                outPaths.add(path);
+                if (sb != null) {
+                    sb.append(PLACEHOLDER);
+                }
+            } else if (sb == null) {
+                // 第一次遇到无效的占位符时才开始复制
+                sb = new StringBuilder(text.length());
+                sb.append(text, 0, i);
+            }
+        }
+        return sb != null ? sb.toString() : text.toString();
+    }
+
+    private static String getPath(Spanned text, int index) {
+        Annotation[] spans = text.getSpans(index, index + 1, Annotation.class);
+        for (Annotation span : spans) {
+            if (ANNOTATION_KEY.equals(span.getKey()) && text.getSpanStart(span) == index) {
+                return span.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 找出编辑中的正文里的全部图片
+     * @return 按出现顺序排列的图片位置
+     */
+    public static List<Token> parse(Spanned text) {
+        List<Token> tokens = new ArrayList<Token>();
+        Annotation[] spans = text.getSpans(0, text.length(), Annotation.class);
+        for (Annotation span : spans) {
+            if (ANNOTATION_KEY.equals(span.getKey())) {
+                int start = text.getSpanStart(span);
+                tokens.add(new Token(start, text.getSpanEnd(span), span.getValue(), span));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 获取图片当前的起始位置（用于异步解码完成后重新定位）
+     * @return 起始位置，图片已被删除时返回-1
+     */
+    public static int locate(Spanned text, Token token) {
+        return text.getSpanStart(token.span);
+    }
+}
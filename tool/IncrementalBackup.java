@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DeletedNoteColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量备份
+ * 备份目录中保存一个完整备份和基于它的若干增量备份，manifest记录备份链和水位：
+ * 1. 变更序号水位：上次备份开始时笔记表中最大的change_seq。变更序号由数据库触发器在每次写入笔记
+ *    或其数据项时递增，与修改时间无关，同步写入的远程旧时间、移动文件夹等操作同样会被记录
+ * 2. 删除水位：上次备份开始的时间，此后删除的笔记从deleted_note表中取得
+ * 每次增量备份只写出变更序号大于水位的笔记及其全部数据项，以及水位之后删除的笔记ID，
+ * 没有任何变化时不写文件。增量备份达到MAX_DELTAS个或总大小超过完整备份的一半时，
+ * 下一次备份重新生成完整备份并删除旧的备份链（压缩）。
+ * 备份期间被修改的笔记会在下一次增量备份中再写出一次，恢复时后写的覆盖先写的
+ */
+public class IncrementalBackup {
+    private static final String TAG = "IncrementalBackup";
+
+    private static final String MANIFEST_NAME = "manifest.json";
+    private static final String FULL_FILE_FORMAT = "full_%d.mnb";
+    private static final String DELTA_FILE_FORMAT = "delta_%d.mnb";
+
+    // 触发压缩的增量备份数
+    private static final int MAX_DELTAS = 7;
+
+    // manifest中没有变更序号水位（旧版本生成的备份链）
+    private static final long NO_WATERMARK = -1;
+
+    // 查询变化笔记的数据项时每条IN语句的最大ID数
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // manifest字段
+    private static final String MANIFEST_BASE = "base";
+    private static final String MANIFEST_DELTAS = "deltas";
+    private static final String MANIFEST_CHANGE_WATERMARK = "change_watermark";
+    private static final String MANIFEST_DELETED_WATERMARK = "deleted_watermark";
+
+    private final ContentResolver mResolver;
+    private final File mDirectory;
+
+    /**
+     * 备份链的状态
+     */
+    private static class Manifest {
+        String base;
+        List<String> deltas = new ArrayList<String>();
+        long changeWatermark;
+        long deletedWatermark;
+    }
+
+    /**
+     * @param resolver 内容解析器
+     * @param directory 备份目录，不存在时自动创建
+     */
+    public IncrementalBackup(ContentResolver resolver, File directory) {
+        mResolver = resolver;
+        mDirectory = directory;
+    }
+
+    /**
+     * 执行一次备份，没有可用的备份链或需要压缩时生成完整备份，否则生成增量备份
+     * @return 本次写出的文件，没有变化时为null
+     * @throws IOException 写入失败，备份链保持不变
+     */
+    public File backup() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create backup directory " + mDirectory);
+        }
+        Manifest manifest = readManifest();
+        if (manifest == null || manifest.changeWatermark == NO_WATERMARK
+                || needsCompaction(manifest)) {
+            return writeFull(manifest);
+        }
+        return writeDelta(manifest);
+    }
+
+    /**
+     * 按备份链恢复便签：先恢复完整备份，再依次应用增量备份，整个过程在一个事务中完成
+     * @return NotesProvider返回的恢复统计，读取失败时为null
+     * @throws IOException 没有备份链
+     * @throws IllegalArgumentException 备份文件损坏
+     */
+    public Bundle restore() throws IOException {
+        Manifest manifest = readManifest();
+        if (manifest == null) {
+            throw new IOException("No backup chain in " + mDirectory);
+        }
+        String[] deltas = new String[manifest.deltas.size()];
+        for (int i = 0; i < deltas.length; i++) {
+            deltas[i] = new File(mDirectory, manifest.deltas.get(i)).getPath();
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArray(Notes.RESTORE_EXTRA_DELTAS, deltas);
+        return mResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_RESTORE_BACKUP,
+                new File(mDirectory, manifest.base).getPath(), extras);
+    }
+
+    private boolean needsCompaction(Manifest manifest) {
+        if (manifest.deltas.size() >= MAX_DELTAS) {
+            return true;
+        }
+        long deltaBytes = 0;
+        for (String delta : manifest.deltas) {
+            deltaBytes += new File(mDirectory, delta).length();
+        }
+        return deltaBytes > new File(mDirectory, manifest.base).length() / 2;
+    }
+
+    /**
+     * 生成完整备份，成功后删除旧的备份链，并清理已被完整备份覆盖的删除记录
+     */
+    private File writeFull(Manifest old) throws IOException {
+        long start = System.currentTimeMillis();
+        long changeWatermark = queryMaxChangeSeq();
+        File file = new File(mDirectory, String.format(FULL_FILE_FORMAT, start));
+
+        BackupFormat.Writer writer = new BackupFormat.Writer(new FileOutputStream(file));
+        boolean success = false;
+        try {
+            writeNotes(writer, NoteColumns.ID + ">0", null);
+            writeData(writer, null, null, DataColumns.NOTE_ID + "," + DataColumns.ID);
+            writer.close();
+            success = true;
+        } finally {
+            finishFile(writer, file, success);
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.base = file.getName();
+        manifest.changeWatermark = changeWatermark;
+        manifest.deletedWatermark = start;
+        writeManifest(manifest);
+
+        if (old != null) {
+            deleteFile(old.base);
+            for (String delta : old.deltas) {
+                deleteFile(delta);
+            }
+        }
+        mResolver.delete(Notes.CONTENT_DELETED_NOTE_URI, DeletedNoteColumns.DELETED_DATE + "<?",
+                new String[] { String.valueOf(start) });
+        Log.d(TAG, "full backup " + file.getName() + ": " + writer.getNoteCount() + " notes, "
+                + (System.currentTimeMillis() - start) + "ms");
+        return file;
+    }
+
+    /**
+     * 生成增量备份，没有变化时不写文件
+     */
+    private File writeDelta(Manifest manifest) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Long> deleted = queryDeletedIds(manifest.deletedWatermark);
+
+        // 先确认是否有变化，避免无变化时也创建文件
+        long changeWatermark = queryMaxChangeSeq();
+        if (deleted.isEmpty() && changeWatermark <= manifest.changeWatermark) {
+            Log.d(TAG, "nothing changed since last backup");
+            return null;
+        }
+        String selection = NoteColumns.ID + ">0 AND " + NoteColumns.CHANGE_SEQ + ">?";
+        String[] selectionArgs = new String[] { String.valueOf(manifest.changeWatermark) };
+
+        File file = new File(mDirectory, String.format(DELTA_FILE_FORMAT, start));
+        BackupFormat.Writer writer = new BackupFormat.Writer(new FileOutputStream(file),
+                manifest.base);
+        boolean success = false;
+        try {
+            for (long id : deleted) {
+                writer.writeDeleted(id);
+            }
+            List<Long> noteIds = writeNotes(writer, selection, selectionArgs);
+            for (int i = 0; i < noteIds.size(); i += IN_CHUNK_SIZE) {
+                List<Long> chunk = noteIds.subList(i, Math.min(i + IN_CHUNK_SIZE, noteIds.size()));
+                writeData(writer, DataColumns.NOTE_ID + " IN (" + joinIds(chunk) + ")", null,
+                        DataColumns.NOTE_ID + "," + DataColumns.ID);
+            }
+            writer.close();
+            success = true;
+        } finally {
+            finishFile(writer, file, success);
+        }
+
+        manifest.deltas.add(file.getName());
+        manifest.changeWatermark = Math.max(manifest.changeWatermark, changeWatermark);
+        manifest.deletedWatermark = start;
+        writeManifest(manifest);
+        Log.d(TAG, "delta backup " + file.getName() + ": " + deleted.size() + " deleted, "
+                + writer.getNoteCount() + " changed, "
+                + (System.currentTimeMillis() - start) + "ms");
+        return file;
+    }
+
+    /**
+     * 写出满足条件的笔记，文件夹在前
+     * @return 写出的笔记ID
+     */
+    private List<Long> writeNotes(BackupFormat.Writer writer, String selection,
+            String[] selectionArgs) throws IOException {
+        List<Long> noteIds = new ArrayList<Long>();
+        Cursor c = query(Notes.CONTENT_NOTE_URI, BackupFormat.NOTE_COLUMNS, selection,
+                selectionArgs, NoteColumns.TYPE + " DESC," + NoteColumns.ID);
+        try {
+            int idColumn = c.getColumnIndexOrThrow(NoteColumns.ID);
+            while (c.moveToNext()) {
+                writer.writeNote(c);
+                noteIds.add(c.getLong(idColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return noteIds;
+    }
+
+    private void writeData(BackupFormat.Writer writer, String selection, String[] selectionArgs,
+            String sortOrder) throws IOException {
+        Cursor c = query(Notes.CONTENT_DATA_URI, BackupFormat.DATA_COLUMNS, selection,
+                selectionArgs, sortOrder);
+        try {
+            while (c.moveToNext()) {
+                writer.writeData(c);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 在写出笔记之前取得水位，备份期间被修改的笔记序号更大，会在下一次增量备份中写出
+     */
+    private long queryMaxChangeSeq() throws IOException {
+        Cursor c = query(Notes.CONTENT_NOTE_URI,
+                new String[] { "IFNULL(MAX(" + NoteColumns.CHANGE_SEQ + "),0)" }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private List<Long> queryDeletedIds(long since) throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor c = query(Notes.CONTENT_DELETED_NOTE_URI,
+                new String[] { DeletedNoteColumns.NOTE_ID },
+                DeletedNoteColumns.DELETED_DATE + ">=?", new String[] { String.valueOf(since) },
+                null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) throws IOException {
+        Cursor c = mResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        if (c == null) {
+            throw new IOException("Query " + uri + " failed");
+        }
+        return c;
+    }
+
+    /**
+     * 写入失败时关闭并删除不完整的文件
+     */
+    private static void finishFile(BackupFormat.Writer writer, File file, boolean success) {
+        if (success) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "delete incomplete backup failed: " + file);
+        }
+    }
+
+    private void deleteFile(String name) {
+        File file = new File(mDirectory, name);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete old backup failed: " + file);
+        }
+    }
+
+    private static String joinIds(List<Long> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 读取manifest，不存在、损坏或完整备份文件丢失时返回null
+     */
+    private Manifest readManifest() {
+        File file = new File(mDirectory, MANIFEST_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            JSONObject js = new JSONObject(new String(bytes, 0, offset, "UTF-8"));
+
+            Manifest manifest = new Manifest();
+            manifest.base = js.getString(MANIFEST_BASE);
+            JSONArray deltas = js.getJSONArray(MANIFEST_DELTAS);
+            for (int i = 0; i < deltas.length(); i++) {
+                manifest.deltas.add(deltas.getString(i));
+            }
+            // 旧版本按修改时间记录水位，无法转换，备份链仍可恢复，下一次备份重新生成完整备份
+            manifest.changeWatermark = js.optLong(MANIFEST_CHANGE_WATERMARK, NO_WATERMARK);
+            manifest.deletedWatermark = js.getLong(MANIFEST_DELETED_WATERMARK);
+
+            if (!new File(mDirectory, manifest.base).isFile()) {
+                Log.w(TAG, "base backup missing: " + manifest.base);
+                return null;
+            }
+            for (String delta : manifest.deltas) {
+                if (!new File(mDirectory, delta).isFile()) {
+                    Log.w(TAG, "delta backup missing: " + delta);
+                    return null;
+                }
+            }
+            return manifest;
+        } catch (IOException e) {
+            Log.e(TAG, "read manifest failed", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "manifest corrupted", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 先写临时文件再改名，写入中断时保留原来的manifest
+     */
+    private void writeManifest(Manifest manifest) throws IOException {
+        JSONObject js = new JSONObject();
+        try {
+            js.put(MANIFEST_BASE, manifest.base);
+            js.put(MANIFEST_DELTAS, new JSONArray(manifest.deltas));
+            js.put(MANIFEST_CHANGE_WATERMARK, manifest.changeWatermark);
+            js.put(MANIFEST_DELETED_WATERMARK, manifest.deletedWatermark);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+
+        File tmp = new File(mDirectory, MANIFEST_NAME + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(js.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(mDirectory, MANIFEST_NAME))) {
+            throw new IOException("Cannot replace " + MANIFEST_NAME);
+        }
+    }
+}
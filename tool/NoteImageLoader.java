@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 便签图片的加载工具
+ * 按显示尺寸解码图片，避免把整张相机照片留在内存中：
+ * 1. 内存LRU缓存，键为图片路径和目标尺寸，容量按字节计算
+ * 2. 磁盘缩略图缓存，重新打开便签时直接读取已缩放的缩略图
+ * 3. 两级缓存都未命中时，先读取图片尺寸，再用inSampleSize按目标尺寸解码
+ * load会访问磁盘，只能在后台线程调用
+ */
+public class NoteImageLoader {
+    private static final String TAG = "NoteImageLoader";
+
+    // 磁盘缩略图缓存目录
+    private static final String THUMBNAIL_DIR = "thumbnails";
+
+    // 磁盘缩略图缓存的容量上限
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    // 内存缓存占可用堆内存的比例
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+
+    private static final int THUMBNAIL_QUALITY = 90;
+
+    private static NoteImageLoader sInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mThumbnailDir;
+    private long mDiskCacheBytes = -1; // 磁盘缓存当前大小，-1表示尚未统计
+
+    public static synchronized NoteImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NoteImageLoader(Context context) {
+        int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        mThumbnailDir = new File(context.getCacheDir(), THUMBNAIL_DIR);
+    }
+
+    private static String getMemoryKey(String path, int width, int height) {
+        return path + "#" + width + "x" + height;
+    }
+
+    /**
+     * 从内存缓存获取图片，可以在UI线程调用
+     * @return 缓存的图片，未命中时返回null
+     */
+    public Bitmap getCached(String path, int width, int height) {
+        return mMemoryCache.get(getMemoryKey(path, width, height));
+    }
+
+    /**
+     * 加载图片，按内存缓存、磁盘缩略图、原图的顺序查找
+     * @param path 图片文件路径
+     * @param width 目标宽度
+     * @param height 目标高度
+     * @return 不大于目标尺寸两倍的图片，文件不存在或解码失败时返回null
+     */
+    public Bitmap load(String path, int width, int height) {
+        String key = getMemoryKey(path, width, height);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        File source = new File(path);
+        if (!source.isFile()) {
+            Log.w(TAG, "Image not exist: " + path);
+            return null;
+        }
+
+        // 缩略图文件名包含原图的修改时间和大小，原图被替换后自然失效
+        File thumbnail = new File(mThumbnailDir, hash(key + "#" + source.lastModified()
+                + "#" + source.length()));
+        if (thumbnail.isFile()) {
+            bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                thumbnail.setLastModified(System.currentTimeMillis());
+            }
+        }
+
+        if (bitmap == null) {
+            bitmap = decodeSampled(path, width, height);
+            if (bitmap == null) {
+                return null;
+            }
+            saveThumbnail(thumbnail, bitmap);
+        }
+
+        mMemoryCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 按目标尺寸解码图片
+     * 先只解码尺寸，再取使宽和高都小于目标尺寸两倍的最小的2的幂作为inSampleSize
+     */
+    private static Bitmap decodeSampled(String path, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Decode image bounds failed: " + path);
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                width, height);
+        options.inJustDecodeBounds = false;
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory when decoding " + path);
+            return null;
+        }
+    }
+
+    static int calculateInSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        // 任一边仍不小于目标的两倍就继续减半，细长的图片按较长的一边缩小，不会按原尺寸解码
+        while (srcWidth / (inSampleSize * 2) >= reqWidth
+                || srcHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * 把缩略图写入磁盘缓存，超过容量上限时删除最久未使用的缩略图
+     */
+    private synchronized void saveThumbnail(File thumbnail, Bitmap bitmap) {
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            Log.e(TAG, "Create thumbnail dir failed");
+            return;
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(thumbnail));
+            bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+                    : Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Save thumbnail failed: " + e.toString());
+            thumbnail.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Close thumbnail failed: " + e.toString());
+                }
+            }
+        }
+
+        if (mDiskCacheBytes < 0) {
+            mDiskCacheBytes = 0;
+            File[] files = mThumbnailDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mDiskCacheBytes += file.length();
+                }
+            }
+        } else {
+            mDiskCacheBytes += thumbnail.length();
+        }
+        if (mDiskCacheBytes > MAX_DISK_CACHE_BYTES) {
+            trimDiskCache();
+        }
+    }
+
+    /**
+     * 删除最久未使用的缩略图，直到磁盘缓存降到上限的一半
+     */
+    private void trimDiskCache() {
+        File[] files = mThumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (mDiskCacheBytes <= MAX_DISK_CACHE_BYTES / 2) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mDiskCacheBytes -= length;
+            }
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes());
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+}
@@ -24,14 +24,9 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Intent;
-import android.media.AudioManager;
-// 处理闹钟的声音播放
-import android.media.MediaPlayer;
-import android.media.RingtoneManager;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.PowerManager;
-import android.provider.Settings;
+import android.os.SystemClock;
 import android.view.Window;
 import android.view.WindowManager;
 
@@ -39,16 +34,13 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.tool.DataUtils;
 
-import java.io.IOException;
-
 
 // 该类用于处理闹钟提醒活动
 public class AlarmAlertActivity extends Activity implements OnClickListener, OnDismissListener {
     private long mNoteId;
     private String mSnippet;
-    private static final int SNIPPET_PREW_MAX_LEN = 60;
-// 处理闹钟的声音播放
-    MediaPlayer mPlayer;
+// 处理闹钟的声音播放，播放器由流水线持有并复用
+    private AlarmAlertPipeline mPipeline;
 
 
     @Override
@@ -76,23 +68,32 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
 
         try {
             mNoteId = Long.valueOf(intent.getData().getPathSegments().get(1));
-            mSnippet = DataUtils.getSnippetById(this.getContentResolver(), mNoteId);
-            mSnippet = mSnippet.length() > SNIPPET_PREW_MAX_LEN ? mSnippet.substring(0,
-                    SNIPPET_PREW_MAX_LEN) + getResources().getString(R.string.notelist_string_info)
-                    : mSnippet;
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
             return;
         }
 
-// 处理闹钟的声音播放
-        mPlayer = new MediaPlayer();
-        if (DataUtils.visibleInNoteDatabase(getContentResolver(), mNoteId, Notes.TYPE_NOTE)) {
-            showActionDialog();
-            playAlarmSound();
-        } else {
-            finish();
+        // 摘要通常已由AlarmReceiver在后台预取；没有时（旧的Intent）在此查询
+        mSnippet = intent.getStringExtra(AlarmAlertPipeline.EXTRA_SNIPPET);
+        if (mSnippet == null) {
+            try {
+                if (!DataUtils.visibleInNoteDatabase(getContentResolver(), mNoteId, Notes.TYPE_NOTE)) {
+                    finish();
+                    return;
+                }
+                mSnippet = AlarmAlertPipeline.formatSnippet(this,
+                        DataUtils.getSnippetById(getContentResolver(), mNoteId));
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                return;
+            }
         }
+
+// 处理闹钟的声音播放
+        mPipeline = AlarmAlertPipeline.getInstance(this);
+        showActionDialog();
+        mPipeline.play(mNoteId, intent.getLongExtra(AlarmAlertPipeline.EXTRA_FIRED_AT,
+                SystemClock.elapsedRealtime()));
     }
 
 
@@ -102,37 +103,6 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
     }
 
 
-    /**
-     * 播放系统默认闹钟音
-     */
-    private void playAlarmSound() {
-        // 获取系统默认闹钟铃声URI
-        Uri url = RingtoneManager.getActualDefaultRingtoneUri(this, RingtoneManager.TYPE_ALARM);
-
-        // 检查静音模式设置
-        int silentModeStreams = Settings.System.getInt(getContentResolver(),
-                Settings.System.MODE_RINGER_STREAMS_AFFECTED, 0);
-
-        // 根据设置决定音频流类型
-
-        if ((silentModeStreams & (1 << AudioManager.STREAM_ALARM)) != 0) {
-            mPlayer.setAudioStreamType(silentModeStreams);
-        } else {
-            mPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
-        }
-
-        
-        // 准备并播放音频
-        try {
-            mPlayer.setDataSource(this, url);
-            mPlayer.prepare();
-            mPlayer.setLooping(true); // 设置循环播放
-            mPlayer.start();
-        } catch (Exception e) {
-            e.printStackTrace(); // 捕获各种媒体播放异常
-        }
-    }
-
     /**
      * 显示提醒操作对话框
      */
@@ -181,13 +151,11 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
 
 
     /**
-     * 停止铃声播放并释放资源
+     * 停止铃声播放
      */
     private void stopAlarmSound() {
-        if (mPlayer != null) {
-            mPlayer.stop();
-            mPlayer.release(); // 重要：必须释放媒体资源
-            mPlayer = null;
+        if (mPipeline != null) {
+            mPipeline.stop(mNoteId); // 播放器保留给下次提醒复用
         }
     }
 }
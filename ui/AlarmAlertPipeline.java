@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.tool.DataUtils;
+
+/**
+ * 提醒展示流水线
+ * 1. 闹钟广播到达后持有短时唤醒锁，在后台线程读取便签摘要并异步准备铃声
+ * 2. 摘要通过Intent交给AlarmAlertActivity，界面线程不再查询数据库
+ * 3. 所有提醒共用一个MediaPlayer，准备完成且界面请求播放后立即开始
+ * 4. 记录从广播到达到铃声开始的耗时，保存在偏好设置中
+ * 播放器只在内部线程中访问，其回调也在该线程执行
+ */
+public class AlarmAlertPipeline {
+    private static final String TAG = "AlarmAlertPipeline";
+
+    // 交给提醒界面的摘要和广播到达时间（elapsedRealtime）
+    public static final String EXTRA_SNIPPET = "net.micode.notes.extra.ALERT_SNIPPET";
+    public static final String EXTRA_FIRED_AT = "net.micode.notes.extra.ALERT_FIRED_AT";
+
+    private static final int SNIPPET_PREW_MAX_LEN = 60;
+
+    // 唤醒锁最长持有时间，铃声开始或停止时提前释放
+    private static final long WAKE_LOCK_TIMEOUT_MS = 10 * 1000;
+
+    // 延迟统计的偏好设置键
+    private static final String PREFERENCE_LAST_LATENCY = "pref_alert_last_latency";
+    private static final String PREFERENCE_LATENCY_TOTAL = "pref_alert_latency_total";
+    private static final String PREFERENCE_LATENCY_COUNT = "pref_alert_latency_count";
+
+    // 播放器状态
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+    private static final int STATE_STARTED = 3;
+
+    private static AlarmAlertPipeline sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+
+    // 以下字段只在mHandler线程访问
+    private MediaPlayer mPlayer;
+    private int mState = STATE_IDLE;
+    private boolean mStartRequested;
+    private long mNoteId;
+    private long mFiredAt;
+
+    public static synchronized AlarmAlertPipeline getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlarmAlertPipeline(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AlarmAlertPipeline(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * 闹钟广播到达，在后台预取摘要、开始准备铃声并启动提醒界面
+     * @param noteId 触发的便签ID
+     * @param firedAt 广播到达的时间（elapsedRealtime）
+     * @param onHandedOff 提醒界面启动或放弃后在后台线程执行，可为null
+     */
+    public void onAlarmFired(final long noteId, final long firedAt, final Runnable onHandedOff) {
+        mWakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+        mHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    if (!DataUtils.visibleInNoteDatabase(mContext.getContentResolver(), noteId,
+                            Notes.TYPE_NOTE)) {
+                        Log.d(TAG, "Alert note " + noteId + " is gone");
+                        mWakeLock.release();
+                        return;
+                    }
+                    String snippet = formatSnippet(mContext, DataUtils.getSnippetById(
+                            mContext.getContentResolver(), noteId));
+                    prepare(noteId, firedAt);
+
+                    Intent intent = new Intent(Intent.ACTION_VIEW,
+                            ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+                    intent.setClass(mContext, AlarmAlertActivity.class);
+                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    intent.putExtra(EXTRA_SNIPPET, snippet);
+                    intent.putExtra(EXTRA_FIRED_AT, firedAt);
+                    mContext.startActivity(intent);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Prefetch alert failed: " + e.toString());
+                    mWakeLock.release();
+                } finally {
+                    if (onHandedOff != null) {
+                        onHandedOff.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 提醒界面显示后请求播放，铃声准备完成时立即开始
+     * 没有预先准备的铃声（例如界面由旧的Intent启动）时在此开始准备
+     */
+    public void play(final long noteId, final long firedAt) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mState == STATE_IDLE || mNoteId != noteId) {
+                    prepare(noteId, firedAt);
+                }
+                mStartRequested = true;
+                if (mState == STATE_PREPARED) {
+                    start();
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止铃声，播放器保留以便下次提醒复用
+     * 只有当前播放的是该便签的铃声时才停止，避免关闭旧提醒时打断新提醒
+     */
+    public void stop(final long noteId) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mNoteId != noteId || mPlayer == null) {
+                    return;
+                }
+                mPlayer.reset();
+                mState = STATE_IDLE;
+                mStartRequested = false;
+                mWakeLock.release();
+            }
+        });
+    }
+
+    /**
+     * 截取用于提醒对话框的摘要
+     */
+    public static String formatSnippet(Context context, String snippet) {
+        return snippet.length() > SNIPPET_PREW_MAX_LEN ? snippet.substring(0,
+                SNIPPET_PREW_MAX_LEN) + context.getString(R.string.notelist_string_info)
+                : snippet;
+    }
+
+    /**
+     * @return 最近一次提醒从广播到达到铃声开始的耗时（毫秒），没有记录时为-1
+     */
+    public static long getLastLatencyMs(Context context) {
+        return getPreferences(context).getLong(PREFERENCE_LAST_LATENCY, -1);
+    }
+
+    /**
+     * @return 所有提醒从广播到达到铃声开始的平均耗时（毫秒），没有记录时为-1
+     */
+    public static long getAverageLatencyMs(Context context) {
+        SharedPreferences sp = getPreferences(context);
+        long count = sp.getLong(PREFERENCE_LATENCY_COUNT, 0);
+        return count > 0 ? sp.getLong(PREFERENCE_LATENCY_TOTAL, 0) / count : -1;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    private void prepare(long noteId, long firedAt) {
+        if (mPlayer == null) {
+            mPlayer = new MediaPlayer();
+            mPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                public void onPrepared(MediaPlayer mp) {
+                    mState = STATE_PREPARED;
+                    if (mStartRequested) {
+                        start();
+                    }
+                }
+            });
+            mPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+                public boolean onError(MediaPlayer mp, int what, int extra) {
+                    Log.e(TAG, "Alarm sound error: " + what + "," + extra);
+                    mp.reset();
+                    mState = STATE_IDLE;
+                    mWakeLock.release();
+                    return true;
+                }
+            });
+        } else {
+            mPlayer.reset();
+        }
+        mNoteId = noteId;
+        mFiredAt = firedAt;
+        mStartRequested = false;
+
+        // 获取系统默认闹钟铃声URI
+        Uri url = RingtoneManager.getActualDefaultRingtoneUri(mContext, RingtoneManager.TYPE_ALARM);
+
+        // 根据静音模式设置决定音频流类型
+        int silentModeStreams = Settings.System.getInt(mContext.getContentResolver(),
+                Settings.System.MODE_RINGER_STREAMS_AFFECTED, 0);
+        if ((silentModeStreams & (1 << AudioManager.STREAM_ALARM)) != 0) {
+            mPlayer.setAudioStreamType(silentModeStreams);
+        } else {
+            mPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
+        }
+
+        try {
+            mPlayer.setDataSource(mContext, url);
+            mPlayer.setLooping(true);
+            mPlayer.prepareAsync();
+            mState = STATE_PREPARING;
+        } catch (Exception e) {
+            Log.e(TAG, "Prepare alarm sound failed", e);
+            mPlayer.reset();
+            mState = STATE_IDLE;
+        }
+    }
+
+    private void start() {
+        mPlayer.start();
+        mState = STATE_STARTED;
+        mStartRequested = false;
+        mWakeLock.release();
+
+        long latency = SystemClock.elapsedRealtime() - mFiredAt;
+        Log.i(TAG, "Alarm sound started " + latency + "ms after fired");
+        SharedPreferences sp = getPreferences(mContext);
+        sp.edit().putLong(PREFERENCE_LAST_LATENCY, latency)
+                .putLong(PREFERENCE_LATENCY_TOTAL, sp.getLong(PREFERENCE_LATENCY_TOTAL, 0) + latency)
+                .putLong(PREFERENCE_LATENCY_COUNT, sp.getLong(PREFERENCE_LATENCY_COUNT, 0) + 1)
+                .apply();
+    }
+}
@@ -1,25 +1,64 @@
 /*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
 
+import android.content.BroadcastReceiver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
  * 闹钟触发广播接收器 - 处理实际提醒时间的到达事件
  * 
- * 功能：当预设的提醒时间到达时，启动AlarmAlertActivity展示提醒界面
+ * 功能：当预设的提醒时间到达时，交给AlarmAlertPipeline预取内容并启动提醒界面，并注册下一个提醒
  */
 public class AlarmReceiver extends BroadcastReceiver {
     
     /**
      * 广播接收回调方法
      * @param context 应用上下文
-     * @param intent  携带便签数据的Intent（包含Content://net.micode.notes/note/[id]格式的URI）
+     * @param intent  ReminderScheduler注册的闹钟Intent，携带便签ID和提醒时间；
+     *                旧版本注册的闹钟携带Content://net.micode.notes/note/[id]格式的URI
      */
     @Override
-    public void onReceive(Context context, Intent intent) {
-        // 将目标Activity改为AlarmAlertActivity
-        intent.setClass(context, AlarmAlertActivity.class);
-        
-        // 添加NEW_TASK标志（因为从广播接收器启动Activity需要新任务栈）
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        
-        // 启动提醒界面Activity
-        context.startActivity(intent);
+    public void onReceive(final Context context, Intent intent) {
+        long firedAt = SystemClock.elapsedRealtime();
+        final long noteId;
+        final long alertDate;
+        if (ReminderScheduler.ACTION_REMINDER.equals(intent.getAction())) {
+            noteId = intent.getLongExtra(ReminderScheduler.EXTRA_NOTE_ID, 0);
+            alertDate = intent.getLongExtra(ReminderScheduler.EXTRA_ALERT_DATE, 0);
+        } else if (intent.getData() != null) {
+            noteId = ContentUris.parseId(intent.getData());
+            alertDate = 0;
+        } else {
+            return;
+        }
+
+        // 预取在后台线程完成，之后注册下一个提醒（同一时间的其他便签会紧接着触发）并结束广播
+        final PendingResult result = goAsync();
+        AlarmAlertPipeline.getInstance(context).onAlarmFired(noteId, firedAt, new Runnable() {
+            public void run() {
+                if (alertDate > 0) {
+                    ReminderScheduler.scheduleAfter(context, alertDate, noteId);
+                }
+                result.finish();
+            }
+        });
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import net.micode.notes.data.Contact;
+import net.micode.notes.tool.DataUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 通话记录便签的号码和联系人姓名的批量解析器
+ * 列表绑定时只读取已解析的结果，未解析的便签ID先登记下来；
+ * 同一帧内登记的ID合并成一次后台任务：一次data表查询取号码，一次联系人查询取姓名，
+ * 完成后通过OnResolvedListener通知列表刷新。通讯录变化时联系人缓存代数改变，已解析的结果会重新解析
+ */
+public class CallRecordResolver {
+    // 最多缓存的解析结果数量
+    private static final int MAX_ENTRIES = 512;
+
+    /**
+     * 解析结果
+     */
+    public static class Entry {
+        public final String phoneNumber; // 电话号码
+        public final String name;        // 联系人姓名，没有联系人时为电话号码
+        final int generation;            // 解析时联系人缓存的代数
+
+        Entry(String phoneNumber, String name, int generation) {
+            this.phoneNumber = phoneNumber;
+            this.name = name;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * 解析完成的回调，在UI线程调用
+     */
+    public interface OnResolvedListener {
+        void onCallRecordsResolved();
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final LruCache<Long, Entry> mEntries = new LruCache<Long, Entry>(MAX_ENTRIES);
+    private HashSet<Long> mPending = new HashSet<Long>();   // 等待解析的便签ID
+    private final HashSet<Long> mInFlight = new HashSet<Long>(); // 正在解析的便签ID
+    private boolean mBatchScheduled;
+    private OnResolvedListener mListener;
+
+    private final Runnable mBatchRunnable = new Runnable() {
+        public void run() {
+            mBatchScheduled = false;
+            startBatch();
+        }
+    };
+
+    public CallRecordResolver(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler();
+    }
+
+    public void setOnResolvedListener(OnResolvedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 获取便签的解析结果，只能在UI线程调用
+     * @param noteId 通话记录便签ID
+     * @return 已解析时返回结果，否则返回null并登记到下一批解析中
+     */
+    public Entry get(long noteId) {
+        Entry entry = mEntries.get(noteId);
+        // 通讯录变化后旧结果仍然先显示，同时重新解析
+        boolean stale = (entry == null || entry.generation != Contact.getCacheGeneration());
+        if (stale && !mInFlight.contains(noteId) && mPending.add(noteId)
+                && !mBatchScheduled) {
+            // 延后到当前布局结束再发起查询，让同一屏的所有行合并成一批
+            mBatchScheduled = true;
+            mHandler.post(mBatchRunnable);
+        }
+        return entry;
+    }
+
+    private void startBatch() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final HashSet<Long> ids = mPending;
+        mPending = new HashSet<Long>();
+        mInFlight.addAll(ids);
+
+        new AsyncTask<Void, Void, HashMap<Long, Entry>>() {
+            protected HashMap<Long, Entry> doInBackground(Void... unused) {
+                int generation = Contact.getCacheGeneration();
+                HashMap<Long, String> numbers = DataUtils.getCallNumbersByNoteIds(
+                        mContext.getContentResolver(), ids);
+                HashMap<String, String> names = Contact.getContacts(mContext, numbers.values());
+
+                HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+                for (Long id : ids) {
+                    String number = numbers.get(id);
+                    if (number == null) {
+                        number = "";
+                    }
+                    String name = names.get(number);
+                    if (TextUtils.isEmpty(name)) {
+                        name = number;
+                    }
+                    entries.put(id, new Entry(number, name, generation));
+                }
+                return entries;
+            }
+
+            protected void onPostExecute(HashMap<Long, Entry> entries) {
+                mInFlight.removeAll(ids);
+                for (Long id : entries.keySet()) {
+                    mEntries.put(id, entries.get(id));
+                }
+                if (mListener != null) {
+                    mListener.onCallRecordsResolved();
+                }
+            }
+        }.execute();
+    }
+}
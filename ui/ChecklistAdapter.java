@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.graphics.Paint;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+
+import net.micode.notes.R;
+import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
+import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
+
+import java.util.Arrays;
+
+/**
+ * 清单模式的列表适配器
+ * 清单项保存在内存模型中，ListView只为可见的行创建视图并回收复用，
+ * 行的索引在绑定时设置，插入和删除不需要逐个修改其后的行。
+ * 模型使用间隙缓冲区：编辑集中在光标附近，插入和删除均摊O(1)，按位置读取O(1)
+ * 模型同时维护清单的序列化文本（每个非空项一行，前缀为勾选标记），间隙处的文本偏移随间隙移动，
+ * 增删和修改只改动对应的行；连续输入同一行时只记录该行，取文本时才写入，
+ * 因此保存大清单的代价与编辑量成正比，而不是与清单长度成正比
+ */
+public class ChecklistAdapter extends BaseAdapter {
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 一个清单项
+     */
+    public static class Item {
+        public CharSequence text;
+        public boolean checked;
+
+        // 该项在序列化文本中的行长度，空项不输出，为0
+        int length;
+
+        // 写入序列化文本时是否计入了勾选数；checked可能在写入之前被修改，不能用它判断
+        boolean counted;
+
+        public Item(CharSequence text, boolean checked) {
+            this.text = text;
+            this.checked = checked;
+        }
+    }
+
+    private final Context mContext;
+    private final OnTextViewChangeListener mListener;
+    private int mFontSizeId;
+
+    // 间隙缓冲区，[mGapStart, mGapEnd)为空闲位置
+    private Item[] mItems = new Item[MIN_CAPACITY];
+    private int mGapStart = 0;
+    private int mGapEnd = MIN_CAPACITY;
+
+    // 序列化文本，间隙之前的项占[0, mGapOffset)
+    private final SpannableStringBuilder mText = new SpannableStringBuilder();
+    private int mGapOffset;
+
+    // 已修改但还没有写入序列化文本的项，-1表示没有
+    private int mPendingPosition = -1;
+
+    // 非空且已勾选的项数
+    private int mCheckedCount;
+
+    // 上次取文本后是否有修改
+    private boolean mDirty;
+    private Runnable mOnChangeListener;
+
+    // 下次绑定时需要获得焦点的行及其光标位置
+    private int mFocusPosition = -1;
+    private int mFocusSelection;
+
+    private class RowHolder implements TextWatcher, OnCheckedChangeListener {
+        NoteEditText edit;
+        CheckBox checkBox;
+        int position;
+        boolean binding;
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (!binding && position < getCount()) {
+                // 编辑框回收复用后s会变成其他行的内容，保存副本
+                getItem(position).text = new SpannableStringBuilder(s);
+                onItemChanged(position);
+            }
+        }
+
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            setStrikeThrough(edit, isChecked);
+            if (!binding && position < getCount()) {
+                getItem(position).checked = isChecked;
+                onItemChanged(position);
+            }
+        }
+    }
+
+    public ChecklistAdapter(Context context, OnTextViewChangeListener listener) {
+        mContext = context;
+        mListener = listener;
+    }
+
+    /**
+     * 替换全部清单项
+     * @param focusPosition 需要获得焦点的行，光标放在行末；-1表示不改变焦点
+     */
+    public void setItems(Item[] items, int focusPosition) {
+        int capacity = Math.max(MIN_CAPACITY, items.length * 2);
+        mItems = new Item[capacity];
+        System.arraycopy(items, 0, mItems, 0, items.length);
+        mGapStart = items.length;
+        mGapEnd = capacity;
+
+        mText.clear();
+        mCheckedCount = 0;
+        for (Item item : items) {
+            item.length = appendLine(mText, item);
+        }
+        mGapOffset = mText.length();
+        mPendingPosition = -1;
+        mDirty = true;
+        if (focusPosition >= 0) {
+            requestFocus(focusPosition, Integer.MAX_VALUE);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 设置清单被用户修改时的回调，用于自动保存
+     */
+    public void setOnChangeListener(Runnable listener) {
+        mOnChangeListener = listener;
+    }
+
+    public void setFontSizeId(int fontSizeId) {
+        mFontSizeId = fontSizeId;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 在position处插入一项并让它获得焦点，光标放在行首
+     */
+    public void insert(int position, Item item) {
+        if (position < 0 || position > getCount()) {
+            throw new IndexOutOfBoundsException("Insert " + position + " of " + getCount());
+        }
+        if (mGapStart == mGapEnd) {
+            grow();
+        }
+        flushPending();
+        moveGap(position);
+        mItems[mGapStart++] = item;
+        SpannableStringBuilder line = new SpannableStringBuilder();
+        item.length = appendLine(line, item);
+        mText.insert(mGapOffset, line);
+        mGapOffset += item.length;
+        markDirty();
+        requestFocus(position, 0);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 删除position处的项
+     */
+    public Item remove(int position) {
+        if (position < 0 || position >= getCount()) {
+            throw new IndexOutOfBoundsException("Remove " + position + " of " + getCount());
+        }
+        flushPending();
+        moveGap(position);
+        Item item = mItems[mGapEnd];
+        mItems[mGapEnd++] = null;
+        mText.delete(mGapOffset, mGapOffset + item.length);
+        uncountChecked(item);
+        markDirty();
+        notifyDataSetChanged();
+        return item;
+    }
+
+    /**
+     * 修改position处的文本
+     */
+    public void setText(int position, CharSequence text) {
+        getItem(position).text = text;
+        onItemChanged(position);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 取出序列化的清单文本
+     * @return 返回的文本随之后的编辑变化，调用方需要时应自行复制
+     */
+    public CharSequence getText() {
+        flushPending();
+        mDirty = false;
+        return mText;
+    }
+
+    /**
+     * @return 上次getText之后清单是否被修改
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * @return 是否有非空的已勾选项
+     */
+    public boolean hasChecked() {
+        flushPending();
+        return mCheckedCount > 0;
+    }
+
+    /**
+     * 下次绑定position时让它获得焦点
+     * @param selection 光标位置，超过文本长度时放在行末
+     */
+    public void requestFocus(int position, int selection) {
+        mFocusPosition = position;
+        mFocusSelection = selection;
+    }
+
+    public int getCount() {
+        return mItems.length - (mGapEnd - mGapStart);
+    }
+
+    public Item getItem(int position) {
+        return position < mGapStart ? mItems[position] : mItems[position + mGapEnd - mGapStart];
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        RowHolder holder;
+        if (convertView == null) {
+            convertView = LayoutInflater.from(mContext).inflate(R.layout.note_edit_list_item,
+                    parent, false);
+            holder = new RowHolder();
+            holder.edit = (NoteEditText) convertView.findViewById(R.id.et_edit_text);
+            holder.checkBox = (CheckBox) convertView.findViewById(R.id.cb_edit_item);
+            holder.edit.setOnTextViewChangeListener(mListener);
+            holder.edit.addTextChangedListener(holder);
+            holder.checkBox.setOnCheckedChangeListener(holder);
+            convertView.setTag(holder);
+        } else {
+            holder = (RowHolder) convertView.getTag();
+        }
+
+        Item item = getItem(position);
+        boolean focus = position == mFocusPosition;
+        holder.binding = true;
+        holder.position = position;
+        holder.edit.setIndex(position);
+        holder.edit.setTextAppearance(mContext,
+                TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+        holder.checkBox.setChecked(item.checked);
+        setStrikeThrough(holder.edit, item.checked);
+        holder.edit.setText(item.text);
+        holder.checkBox.setVisibility(focus || !TextUtils.isEmpty(item.text)
+                ? View.VISIBLE : View.GONE);
+        holder.binding = false;
+
+        if (focus) {
+            mFocusPosition = -1;
+            holder.edit.requestFocus();
+            holder.edit.setSelection(Math.min(mFocusSelection, holder.edit.length()));
+        }
+        return convertView;
+    }
+
+    /**
+     * 记录一项被修改，连续修改同一项时只在取文本或修改其他项时写入一次
+     */
+    private void onItemChanged(int position) {
+        if (mPendingPosition != position) {
+            flushPending();
+            mPendingPosition = position;
+        }
+        markDirty();
+    }
+
+    private void markDirty() {
+        mDirty = true;
+        if (mOnChangeListener != null) {
+            mOnChangeListener.run();
+        }
+    }
+
+    /**
+     * 把待写入的项重新序列化并替换它在文本中的行
+     */
+    private void flushPending() {
+        int position = mPendingPosition;
+        mPendingPosition = -1;
+        if (position < 0 || position >= getCount()) {
+            return;
+        }
+        moveGap(position);
+        Item item = mItems[mGapEnd];
+        uncountChecked(item);
+        SpannableStringBuilder line = new SpannableStringBuilder();
+        int length = appendLine(line, item);
+        mText.replace(mGapOffset, mGapOffset + item.length, line);
+        item.length = length;
+    }
+
+    /**
+     * 把一项的行追加到sb并计入勾选数
+     * @return 追加的长度
+     */
+    private int appendLine(SpannableStringBuilder sb, Item item) {
+        item.counted = false;
+        if (TextUtils.isEmpty(item.text)) {
+            return 0;
+        }
+        int start = sb.length();
+        sb.append(item.checked ? NoteEditActivity.TAG_CHECKED : NoteEditActivity.TAG_UNCHECKED)
+                .append(" ").append(item.text).append("\n");
+        if (item.checked) {
+            mCheckedCount++;
+            item.counted = true;
+        }
+        return sb.length() - start;
+    }
+
+    /**
+     * 从勾选数中去掉该项上次写入时的计数
+     */
+    private void uncountChecked(Item item) {
+        if (item.counted) {
+            mCheckedCount--;
+            item.counted = false;
+        }
+    }
+
+    private static void setStrikeThrough(NoteEditText edit, boolean checked) {
+        if (checked) {
+            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+        } else {
+            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+        }
+    }
+
+    /**
+     * 把间隙移动到position处并同步文本偏移，代价与移动距离成正比
+     */
+    private void moveGap(int position) {
+        if (position < mGapStart) {
+            int count = mGapStart - position;
+            int newGapEnd = mGapEnd - count;
+            System.arraycopy(mItems, position, mItems, newGapEnd, count);
+            Arrays.fill(mItems, position, Math.min(mGapStart, newGapEnd), null);
+            for (int i = newGapEnd; i < mGapEnd; i++) {
+                mGapOffset -= mItems[i].length;
+            }
+            mGapStart = position;
+            mGapEnd = newGapEnd;
+        } else if (position > mGapStart) {
+            int count = position - mGapStart;
+            System.arraycopy(mItems, mGapEnd, mItems, mGapStart, count);
+            Arrays.fill(mItems, Math.max(mGapEnd, position), mGapEnd + count, null);
+            for (int i = mGapStart; i < position; i++) {
+                mGapOffset += mItems[i].length;
+            }
+            mGapStart = position;
+            mGapEnd += count;
+        }
+    }
+
+    private void grow() {
+        int tail = mItems.length - mGapEnd;
+        Item[] items = new Item[mItems.length * 2];
+        System.arraycopy(mItems, 0, items, 0, mGapStart);
+        System.arraycopy(mItems, mGapEnd, items, items.length - tail, tail);
+        mGapEnd = items.length - tail;
+        mItems = items;
+    }
+}
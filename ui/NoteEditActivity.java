@@ -18,26 +18,20 @@
 package net.micode.notes.ui;
 
 import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.AlertDialog;
-import android.app.PendingIntent;
 import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -47,43 +41,47 @@ import android.provider.MediaStore;
 import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.ImageSpan;
 import android.util.Log;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Button;
-import android.widget.CheckBox;
-import android.widget.CompoundButton;
-import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.Attachment;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.NoteAutosaver;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.ImageMarkup;
+import net.micode.notes.tool.NoteImageLoader;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
 import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
+import net.micode.notes.widget.WidgetUpdater;
 
-import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -92,7 +90,7 @@ import java.util.regex.Pattern;
 
 
 public class NoteEditActivity extends Activity implements OnClickListener,
-        NoteSettingChangedListener, OnTextViewChangeListener {
+        NoteSettingChangedListener, OnTextViewChangeListener, NoteAutosaver.TextSource {
     private class HeadViewHolder {
         public TextView tvModified;
 
@@ -153,6 +151,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private WorkingNote mWorkingNote;
 
+    private NoteAutosaver mAutosaver;
+
+    // 上次自动保存取正文之后编辑框是否被修改
+    private boolean mEditorChanged;
+
     private SharedPreferences mSharedPrefs;
     private int mFontSizeId;
 
@@ -163,13 +166,18 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     public static final String TAG_CHECKED = String.valueOf('\u221A');
     public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
 
-    private LinearLayout mEditTextList;
+    private ListView mEditTextList;
+
+    private ChecklistAdapter mChecklistAdapter;
 
     private String mUserQuery;
     private Pattern mPattern;
 
     private final int PHOTO_REQUEST = 1;//请求码
 
+    // 每次转换图片时加一，之前的转换中迟到的解码结果被丢弃
+    private int mImageGeneration;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -295,6 +303,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return false;
         }
         mWorkingNote.setOnSettingStatusChangedListener(this);
+        mAutosaver = new NoteAutosaver(this, mWorkingNote, this);
+        mAutosaver.recoverDraft();
         return true;
     }
 
@@ -307,9 +317,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private void initNoteScreen() {
         mNoteEditor.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mWorkingNote.getContent());
+            switchToListMode(getEditableContent());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            mNoteEditor.setText(getHighlightQueryResult(getEditableContent(), mUserQuery));
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
@@ -345,44 +355,70 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         };
     }
 
-    //路径字符串格式 转换为 图片image格式
+    //附件占位符 转换为 图片image格式：一次遍历找出所有占位符，通过NoteImageLoader按显示尺寸加载，
+    //内存缓存中已有的图片直接显示，其余在后台线程解码（或读取缩略图缓存）；
+    //占位符留在编辑框中，图片以ImageSpan覆盖在它上面，不需要删除和重新插入文本
     private void convertToImage() {
-        NoteEditText noteEditText = (NoteEditText) findViewById(R.id.note_edit_view); //获取当前的edit
-        Editable editable = noteEditText.getText();//1.获取text
-        String noteText = editable.toString(); //2.将note内容转换为字符串
-        int length = editable.length(); //内容的长度
-        //3.截取img片段 [local]+uri+[local]，提取uri
-        for(int i = 0; i < length; i++) {
-            for(int j = i; j < length; j++) {
-                String img_fragment = noteText.substring(i, j+1); //img_fragment：关于图片路径的片段
-                if(img_fragment.length() > 15 && img_fragment.endsWith("[/local]") && img_fragment.startsWith("[local]")){
-                    int limit = 7;  //[local]为7个字符
-                    //[local][/local]共15个字符，剩下的为真正的path长度
-                    int len = img_fragment.length()-15;
-                    //从[local]之后的len个字符就是path
-                    String path = img_fragment.substring(limit,limit+len);//获取到了图片路径
-                    Bitmap bitmap = null;
-                    Log.d(TAG, "图片的路径是："+path);
+        final Editable editable = mNoteEditor.getText();
+        final int generation = ++mImageGeneration;
+        final NoteImageLoader loader = NoteImageLoader.getInstance(this);
+        final int width = getImageTargetWidth();
+        final int height = getResources().getDisplayMetrics().heightPixels;
+        for (final ImageMarkup.Token token : ImageMarkup.parse(editable)) {
+            if (editable.getSpans(token.start, token.end, ImageSpan.class).length > 0) {
+                continue; // 已经显示为图片
+            }
+            Bitmap cached = loader.getCached(token.path, width, height);
+            if (cached != null) {
+                attachImageSpan(generation, token, cached);
+                continue;
+            }
+            new AsyncTask<Void, Void, Bitmap>() {
+                @Override
+                protected Bitmap doInBackground(Void... unused) {
                     try {
-                        bitmap = BitmapFactory.decodeFile(path);//将图片路径解码为图片格式
+                        return loader.load(token.path, width, height); //按显示尺寸解码图片
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        Log.e(TAG, "Decode image failed: " + token.path, e);
+                        return null;
                     }
-                    if(bitmap!=null){  //若图片存在
-                        Log.d(TAG, "图片不为null");
-                        ImageSpan imageSpan = new ImageSpan(NoteEditActivity.this, bitmap);
-                        //4.创建一个SpannableString对象，以便插入用ImageSpan对象封装的图像
-                        String ss = "[local]" + path + "[/local]";
-                        SpannableString spannableString = new SpannableString(ss);
-                        //5.将指定的标记对象附加到文本的开始...结束范围
-                        spannableString.setSpan(imageSpan, 0, ss.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        Log.d(TAG, "Create spannable string success!");
-                        Editable edit_text = noteEditText.getEditableText();
-                        edit_text.delete(i,i+len+15); //6.删掉图片路径的文字
-                        edit_text.insert(i, spannableString); //7.在路径的起始位置插入图片
+                }
+
+                @Override
+                protected void onPostExecute(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        attachImageSpan(generation, token, bitmap);
                     }
                 }
-            }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    //图片最宽与编辑框的内容区域一致，第一次布局之前编辑框还没有宽度，使用屏幕宽度
+    private int getImageTargetWidth() {
+        int width = mNoteEditor.getWidth() - mNoteEditor.getPaddingLeft()
+                - mNoteEditor.getPaddingRight();
+        if (width <= 0) {
+            width = getResources().getDisplayMetrics().widthPixels;
+        }
+        return width;
+    }
+
+    //把解码后的图片覆盖在占位符上：解码期间正文可能被修改，通过占位符的span重新定位，
+    //属于之前一次加载的结果直接丢弃
+    private void attachImageSpan(int generation, ImageMarkup.Token token, Bitmap bitmap) {
+        if (generation != mImageGeneration || isFinishing()) {
+            return;
+        }
+        Editable editable = mNoteEditor.getText();
+        int start = ImageMarkup.locate(editable, token);
+        if (start < 0) {
+            return; // 图片已被删除
+        }
+        int end = start + (token.end - token.start);
+        if (editable.getSpans(start, end, ImageSpan.class).length == 0) {
+            editable.setSpan(new ImageSpan(NoteEditActivity.this, bitmap), start, end,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
     }
 
@@ -469,14 +505,57 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mEditTextList = (ListView) findViewById(R.id.note_edit_list);
+        mEditTextList.setItemsCanFocus(true);
+        mEditTextList.setDescendantFocusability(ViewGroup.FOCUS_AFTER_DESCENDANTS);
+        mChecklistAdapter = new ChecklistAdapter(this, this);
+        mChecklistAdapter.setFontSizeId(mFontSizeId);
+        mEditTextList.setAdapter(mChecklistAdapter);
+
+        mNoteEditor.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                mEditorChanged = true;
+                onNoteEdited();
+            }
+        });
+        mChecklistAdapter.setOnChangeListener(new Runnable() {
+            public void run() {
+                onNoteEdited();
+            }
+        });
+    }
+
+    private void onNoteEdited() {
+        if (mAutosaver != null) {
+            mAutosaver.onEdited();
+        }
+    }
+
+    public CharSequence takeChangedText() {
+        if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
+            return mChecklistAdapter.isDirty()
+                    ? new SpannableStringBuilder(mChecklistAdapter.getText()) : null;
+        }
+        if (!mEditorChanged) {
+            return null;
+        }
+        mEditorChanged = false;
+        return new SpannableStringBuilder(mNoteEditor.getText());
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        if(saveNote()) {
-            Log.d(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+        // 数据库写入在自动保存线程进行，期间进程被杀死时由草稿日志恢复
+        if (mAutosaver.flush()) {
+            setResult(RESULT_OK);
+            Log.d(TAG, "Note data was queued for saving");
         }
         clearSettingState();
     }
@@ -496,7 +575,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mWorkingNote.getWidgetId()
         });
 
-        sendBroadcast(intent);
+        // 连续保存时合并为一次更新，内容没有变化的小部件不会重绘
+        WidgetUpdater.getInstance(this).requestUpdate(mWorkingNote.getWidgetId(),
+                mWorkingNote.getWidgetType());
         setResult(RESULT_OK, intent);
     }
 
@@ -517,8 +598,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                mChecklistAdapter.setFontSizeId(mFontSizeId);
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -533,7 +613,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return;
         }
 
-        saveNote();
+        if (mAutosaver.flush()) {
+            setResult(RESULT_OK);
+        }
         super.onBackPressed();
     }
 
@@ -611,7 +693,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 break;
             case R.id.menu_share:
                 getWorkingText();
-                sendTo(this, mWorkingNote.getContent());
+                sendTo(this, mWorkingNote.getContent().replace(Attachment.PLACEHOLDER, ""));
                 break;
             case R.id.menu_send_to_desktop:
                 sendToDesktop();
@@ -677,6 +759,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             }
         }
         mWorkingNote.markDeleted(true);
+        mAutosaver.discard();
     }
 
     private boolean isSyncMode() {
@@ -685,23 +768,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     public void onClockAlertChanged(long date, boolean set) {
         /**
-         * User could set clock to an unsaved note, so before setting the
-         * alert clock, we should save the note first
+         * The scheduler arms the next due alert from the database, so the
+         * note is saved first, even when it already exists
          */
-        if (!mWorkingNote.existInDatabase()) {
-            saveNote();
-        }
+        saveNote();
         if (mWorkingNote.getNoteId() > 0) {
-            Intent intent = new Intent(this, AlarmReceiver.class);
-            intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mWorkingNote.getNoteId()));
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
-            AlarmManager alarmManager = ((AlarmManager) getSystemService(ALARM_SERVICE));
             showAlertHeader();
-            if(!set) {
-                alarmManager.cancel(pendingIntent);
-            } else {
-                alarmManager.set(AlarmManager.RTC_WAKEUP, date, pendingIntent);
-            }
+            ReminderScheduler.cancelLegacyAlarm(this, mWorkingNote.getNoteId());
+            ReminderScheduler.scheduleNext(this);
         } else {
             /**
              * There is the condition that user has input nothing (the note is
@@ -717,69 +791,59 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         updateWidget();
     }
 
-    public void onEditTextDelete(int index, String text) {
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
+    public void onEditTextDelete(int index, CharSequence text) {
+        if (mChecklistAdapter.getCount() == 1) {
             return;
         }
 
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
-        }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
+        mChecklistAdapter.remove(index);
+        int position = index == 0 ? 0 : index - 1;
+        CharSequence previous = mChecklistAdapter.getItem(position).text;
+        mChecklistAdapter.setText(position, new SpannableStringBuilder(previous).append(text));
+        mChecklistAdapter.requestFocus(position, previous.length());
     }
 
-    public void onEditTextEnter(int index, String text) {
+    public void onEditTextEnter(int index, CharSequence text) {
         /**
          * Should not happen, check for debug
          */
-        if(index > mEditTextList.getChildCount()) {
+        if(index > mChecklistAdapter.getCount()) {
             Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
+            return;
         }
 
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
-        }
+        mChecklistAdapter.insert(index, new ChecklistAdapter.Item(text, false));
     }
 
-    private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
+    private void switchToListMode(CharSequence text) {
+        ArrayList<ChecklistAdapter.Item> items = new ArrayList<ChecklistAdapter.Item>();
+        int start = 0;
+        // 逐行切分，保留每行中附件的span
+        while (start <= text.length()) {
+            int end = TextUtils.indexOf(text, '\n', start);
+            if (end < 0) {
+                end = text.length();
             }
+            if (end > start) {
+                items.add(getListItem(text.subSequence(start, end)));
+            }
+            start = end + 1;
         }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
+        items.add(new ChecklistAdapter.Item("", false));
+        mChecklistAdapter.setItems(items.toArray(new ChecklistAdapter.Item[items.size()]),
+                items.size() - 1);
+        mEditTextList.setSelection(items.size() - 1);
 
         mNoteEditor.setVisibility(View.GONE);
         mEditTextList.setVisibility(View.VISIBLE);
     }
 
-    private Spannable getHighlightQueryResult(String fullText, String userQuery) {
+    //便签正文，每个附件占位符都带有图片路径的span
+    private Spannable getEditableContent() {
+        return ImageMarkup.toSpannable(mWorkingNote.getContent(), mWorkingNote.getAttachments());
+    }
+
+    private Spannable getHighlightQueryResult(CharSequence fullText, String userQuery) {
         SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
         if (!TextUtils.isEmpty(userQuery)) {
             mPattern = Pattern.compile(userQuery);
@@ -796,57 +860,47 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         return spannable;
     }
 
-    private View getListItem(String item, int index) {
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-                }
-            }
-        });
-
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
+    private ChecklistAdapter.Item getListItem(CharSequence item) {
+        boolean checked = false;
+        String str = item.toString();
+        if (str.startsWith(TAG_CHECKED)) {
+            checked = true;
+            item = trim(item, TAG_CHECKED.length());
+        } else if (str.startsWith(TAG_UNCHECKED)) {
+            item = trim(item, TAG_UNCHECKED.length());
         }
+        return new ChecklistAdapter.Item(getHighlightQueryResult(item, mUserQuery), checked);
+    }
 
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+    //与对start之后的文本调用String.trim()相同，但保留span
+    private static CharSequence trim(CharSequence text, int start) {
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return text.subSequence(start, end);
     }
 
     public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
-            Log.e(TAG, "Wrong index, should not happen");
+        // 只有屏幕上的行有视图，其余的行在滚动进来时绑定
+        View view = mEditTextList.getChildAt(index - mEditTextList.getFirstVisiblePosition());
+        if (view == null) {
             return;
         }
-        if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
-        } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
-        }
+        view.findViewById(R.id.cb_edit_item).setVisibility(hasText ? View.VISIBLE : View.GONE);
     }
 
     public void onCheckListModeChanged(int oldMode, int newMode) {
         if (newMode == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mNoteEditor.getText().toString());
+            switchToListMode(mNoteEditor.getText());
         } else {
             if (!getWorkingText()) {
                 mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ", ""));
             }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            mNoteEditor.setText(getHighlightQueryResult(getEditableContent(), mUserQuery));
             mEditTextList.setVisibility(View.GONE);
             mNoteEditor.setVisibility(View.VISIBLE);
             convertToImage(); //退出清单模式，应该将有图片的地方显示出来
@@ -854,31 +908,26 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     private boolean getWorkingText() {
-        boolean hasChecked = false;
+        mWorkingNote.setWorkingText(getEditingText());
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
-                }
-            }
-            mWorkingNote.setWorkingText(sb.toString());
-        } else {
-            mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
+            return mChecklistAdapter.hasChecked();
         }
-        return hasChecked;
+        return false;
+    }
+
+    /**
+     * 编辑界面上的完整正文
+     * 清单模式下每次都取适配器的文本，不能依赖isDirty：自动保存取副本时已经清除了修改标记
+     */
+    private CharSequence getEditingText() {
+        if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
+            return mChecklistAdapter.getText();
+        }
+        return mNoteEditor.getText();
     }
 
     private boolean saveNote() {
-        getWorkingText();
-        boolean saved = mWorkingNote.saveNote();
+        boolean saved = mAutosaver.saveNow(getEditingText());
         if (saved) {
             /**
              * There are two modes from List view to edit view, open one note,
@@ -930,6 +979,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private String makeShortcutIconTitle(String content) {
         content = content.replace(TAG_CHECKED, "");
         content = content.replace(TAG_UNCHECKED, "");
+        content = content.replace(Attachment.PLACEHOLDER, "");
         return content.length() > SHORTCUT_ICON_TITLE_MAX_LEN ? content.substring(0,
                 SHORTCUT_ICON_TITLE_MAX_LEN) : content;
     }
@@ -946,49 +996,26 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     //重写onActivityResult()来处理返回的数据
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
         super.onActivityResult(requestCode, resultCode, intent);
-        ContentResolver resolver = getContentResolver();
         switch (requestCode) {
             case PHOTO_REQUEST:
-                Uri originalUri = intent.getData(); //1.获得图片的真实路径
-                Bitmap bitmap = null;
-                try {
-                    bitmap = BitmapFactory.decodeStream(resolver.openInputStream(originalUri));//2.解码图片
-                } catch (FileNotFoundException e) {
-                    Log.d(TAG, "onActivityResult: get file_exception");
-                    e.printStackTrace();
+                if (resultCode != RESULT_OK || intent == null) {
+                    break;
                 }
-
-                if(bitmap != null){
-                    //3.根据Bitmap对象创建ImageSpan对象
-                    Log.d(TAG, "onActivityResult: bitmap is not null");
-                    ImageSpan imageSpan = new ImageSpan(NoteEditActivity.this, bitmap);
-                    String path = getPath(this,originalUri);
-                    //4.使用[local][/local]将path括起来，用于之后方便识别图片路径在note中的位置
-                    String img_fragment= "[local]" + path + "[/local]";
-                    //创建一个SpannableString对象，以便插入用ImageSpan对象封装的图像
-                    SpannableString spannableString = new SpannableString(img_fragment);
-                    spannableString.setSpan(imageSpan, 0, img_fragment.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    //5.将选择的图片追加到EditText中光标所在位置
-                    NoteEditText e = (NoteEditText) findViewById(R.id.note_edit_view);
-                    int index = e.getSelectionStart(); //获取光标所在位置
-                    Log.d(TAG, "Index是: " + index);
-                    Editable edit_text = e.getEditableText();
-                    edit_text.insert(index, spannableString); //将图片插入到光标所在位置
-
-                    mWorkingNote.mContent = e.getText().toString();
-                    //6.把改动提交到数据库中,两个数据库表都要改的
-                    ContentResolver contentResolver = getContentResolver();
-                    ContentValues contentValues = new ContentValues();
-                    final long id = mWorkingNote.getNoteId();
-                    contentValues.put("snippet",mWorkingNote.mContent);
-                    contentResolver.update(Uri.parse("content://micode_notes/note"), contentValues,"_id=?",new String[]{""+id});
-                    ContentValues contentValues1 = new ContentValues();
-                    contentValues1.put("content",mWorkingNote.mContent);
-                    contentResolver.update(Uri.parse("content://micode_notes/data"), contentValues1,"mime_type=? and note_id=?", new String[]{"vnd.android.cursor.item/text_note",""+id});
-
-                }else{
+                Uri originalUri = intent.getData(); //1.获得图片的真实路径
+                String path = getPath(this, originalUri);
+                if (TextUtils.isEmpty(path)) {
                     Toast.makeText(NoteEditActivity.this, "获取图片失败", Toast.LENGTH_SHORT).show();
+                    break;
                 }
+                //2.图片作为附件保存，正文中只插入一个带路径标记的占位符
+                //3.将占位符插入到EditText中光标所在位置，图片由convertToImage按显示尺寸在后台解码后显示，
+                //  附件随便签一起保存
+                NoteEditText e = (NoteEditText) findViewById(R.id.note_edit_view);
+                int index = Math.max(e.getSelectionStart(), 0); //获取光标所在位置
+                Log.d(TAG, "Index是: " + index);
+                Editable edit_text = e.getEditableText();
+                edit_text.insert(index, ImageMarkup.build(path));
+                convertToImage();
                 break;
             default:
                 break;
@@ -456,14 +456,14 @@
           * @param index 当前编辑框索引
           * @param text 当前编辑框文本内容
           */
-         void onEditTextDelete(int index, String text);
+         void onEditTextDelete(int index, CharSequence text);
  
          /**
           * 当按下回车键时添加新编辑框
           * @param index 新编辑框的索引位置
           * @param text 要放入新编辑框的文本内容
           */
-         void onEditTextEnter(int index, String text);
+         void onEditTextEnter(int index, CharSequence text);
  
          /**
           * 当文本变化时显示或隐藏选项
@@ -591,7 +591,7 @@
                  if (mOnTextViewChangeListener != null) {
                      // 如果在文本开头删除且不是第一个编辑框，则删除当前编辑框
                      if (0 == mSelectionStartBeforeDelete && mIndex != 0) {
-                         mOnTextViewChangeListener.onEditTextDelete(mIndex, getText().toString());
+                         mOnTextViewChangeListener.onEditTextDelete(mIndex, getText());
                          return true;
                      }
                  } else {
@@ -602,7 +602,7 @@
                  if (mOnTextViewChangeListener != null) {
                      // 将光标后的文本拆分到新编辑框中
                      int selectionStart = getSelectionStart();
-                     String text = getText().subSequence(selectionStart, length()).toString();
+                     CharSequence text = getText().subSequence(selectionStart, length());
                      setText(getText().subSequence(0, selectionStart));
                      mOnTextViewChangeListener.onEditTextEnter(mIndex + 1, text);
                  } else {
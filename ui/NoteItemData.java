@@ -47,16 +47,16 @@
      };
  
      // 列索引常量定义
-     private static final int ID_COLUMN                    = 0;
+     static final int ID_COLUMN                    = 0;
      private static final int ALERTED_DATE_COLUMN          = 1;
      private static final int BG_COLOR_ID_COLUMN           = 2;
      private static final int CREATED_DATE_COLUMN          = 3;
      private static final int HAS_ATTACHMENT_COLUMN        = 4;
-     private static final int MODIFIED_DATE_COLUMN         = 5;
+     static final int MODIFIED_DATE_COLUMN         = 5;
      private static final int NOTES_COUNT_COLUMN           = 6;
      private static final int PARENT_ID_COLUMN             = 7;
      private static final int SNIPPET_COLUMN               = 8;
-     private static final int TYPE_COLUMN                  = 9;
+     static final int TYPE_COLUMN                  = 9;
      private static final int WIDGET_ID_COLUMN             = 10;
      private static final int WIDGET_TYPE_COLUMN           = 11;
  
@@ -85,10 +85,21 @@
  
      /**
       * 构造函数，从Cursor初始化便签数据
+      * 通话记录的号码和联系人姓名会同步查询，列表绑定时应使用带解析器的构造函数
       * @param context 上下文对象
       * @param cursor 数据库查询结果游标
       */
      public NoteItemData(Context context, Cursor cursor) {
+         this(context, cursor, null);
+     }
+
+     /**
+      * 构造函数，从Cursor初始化便签数据
+      * @param context 上下文对象
+      * @param cursor 数据库查询结果游标
+      * @param resolver 通话记录解析器，不为null时只读取已解析的号码和姓名，未解析的留空等待回调刷新
+      */
+     public NoteItemData(Context context, Cursor cursor, CallRecordResolver resolver) {
          // 从Cursor读取基本数据
 
          mId = cursor.getLong(ID_COLUMN);
@@ -114,7 +125,14 @@
 
          // 初始化通话记录相关数据
          mPhoneNumber = "";
-         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
+         if (mParentId == Notes.ID_CALL_RECORD_FOLDER && resolver != null) {
+             // 使用批量解析的结果，尚未解析时先显示空白
+             CallRecordResolver.Entry entry = resolver.get(mId);
+             if (entry != null) {
+                 mPhoneNumber = entry.phoneNumber;
+                 mName = entry.name;
+             }
+         } else if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
              // 如果是通话记录文件夹下的便签，获取电话号码
              mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
              if (!TextUtils.isEmpty(mPhoneNumber)) {
@@ -238,7 +256,26 @@
      }
  
      public long getFolderId() {
-
+         return mParentId;
+     }
+ 
+     public int getType() {
+         return mType;
+     }
+ 
+     public int getWidgetType() {
+         return mWidgetType;
+     }
+ 
+     public int getWidgetId() {
+         return mWidgetId;
+     }
+ 
+     public String getSnippet() {
+         return mSnippet;
+     }
+ 
+     public boolean hasAlert() {
          return (mAlertDate > 0);
      }
  
@@ -20,6 +20,7 @@
  import android.app.Activity;
  import android.app.AlertDialog;
  import android.app.Dialog;
+ import android.app.ProgressDialog;
  import android.appwidget.AppWidgetManager;
  import android.content.AsyncQueryHandler;
  import android.content.ContentResolver;
@@ -72,6 +73,7 @@
  import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
  import net.micode.notes.widget.NoteWidgetProvider_2x;
  import net.micode.notes.widget.NoteWidgetProvider_4x;
+ import net.micode.notes.widget.WidgetUpdater;
  
  import java.io.BufferedReader;
  import java.io.IOException;
@@ -84,7 +86,6 @@
   */
  public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
      // 异步查询Token常量
-     private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;  // 文件夹便签列表查询
      private static final int FOLDER_LIST_QUERY_TOKEN      = 1;  // 文件夹列表查询
  
      // 上下文菜单项ID
@@ -106,6 +107,7 @@
      private ListEditState mState;                      // 当前列表状态
      private BackgroundQueryHandler mBackgroundQueryHandler; // 后台查询处理器
      private NotesListAdapter mNotesListAdapter;        // 便签列表适配器
+     private PagedNotesCursor mPendingListCursor;       // 正在加载的便签列表游标
      private ListView mNotesListView;                   // 便签列表视图
      private Button mAddNewNote;                        // 添加新便签按钮
      private boolean mDispatch;                         // 是否分发触摸事件标志
@@ -416,10 +418,31 @@
      private void startAsyncNotesListQuery() {
          String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                  : NORMAL_SELECTION;
-         mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                 Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
+         final PagedNotesCursor cursor = new PagedNotesCursor(mContentResolver, selection,
+                 new String[] {
                      String.valueOf(mCurrentFolderId)
-                 }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                 });
+         // 只查询总数和第一页，其余页在滚动时按需加载
+         mPendingListCursor = cursor;
+         new AsyncTask<Void, Void, Void>() {
+             @Override
+             protected Void doInBackground(Void... unused) {
+                 cursor.load();
+                 return null;
+             }
+
+             @Override
+             protected void onPostExecute(Void unused) {
+                 if (mPendingListCursor != cursor) {
+                     // 查询期间已经切换了文件夹，丢弃过期的结果
+                     cursor.close();
+                     return;
+                 }
+                 mPendingListCursor = null;
+                 cursor.setNotificationUri(mContentResolver, Notes.CONTENT_NOTE_URI);
+                 mNotesListAdapter.changeCursor(cursor); // 更新便签列表适配器
+             }
+         }.execute();
      }
  
      /**
@@ -433,9 +456,6 @@
          @Override
          protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
              switch (token) {
-                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                     mNotesListAdapter.changeCursor(cursor); // 更新便签列表适配器
-                     break;
                  case FOLDER_LIST_QUERY_TOKEN:
                      if (cursor != null && cursor.getCount() > 0) {
                          showFolderListMenu(cursor); // 显示文件夹选择菜单
@@ -749,7 +769,8 @@
              appWidgetId
          });
  
-         sendBroadcast(intent);
+         // 批量删除或移动时的多次更新合并为一次查询
+         WidgetUpdater.getInstance(this).requestUpdate(appWidgetId, appWidgetType);
          setResult(RESULT_OK, intent);
      }
  
@@ -876,18 +897,46 @@
  
      /**
       * 导出便签到文本文件
+      * 导出期间显示进度对话框，取消对话框时停止导出并删除未写完的文件
       */
      private void exportNoteToText() {
          final BackupUtils backup = BackupUtils.getInstance(NotesListActivity.this);
-         new AsyncTask<Void, Void, Integer>() {
+         final ProgressDialog progressDialog = new ProgressDialog(NotesListActivity.this);
+         progressDialog.setTitle(R.string.menu_export_text);
+         progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+         progressDialog.setCancelable(true);
+         progressDialog.setCanceledOnTouchOutside(false);
+
+         final AsyncTask<Void, Integer, Integer> exportTask = new AsyncTask<Void, Integer, Integer>() {
              @Override
              protected Integer doInBackground(Void... unused) {
-                 return backup.exportToText(); // 执行导出
+                 if (isCancelled()) {
+                     return BackupUtils.STATE_CANCELLED; // 导出开始前已经取消
+                 }
+                 // 执行导出，进度交给UI线程更新对话框
+                 return backup.exportToText(new BackupUtils.ExportListener() {
+                     public void onExportProgress(int processed, int total) {
+                         if (isCancelled()) {
+                             // exportToText开始时会清除取消标记，这里再请求一次
+                             backup.cancelExport();
+                         }
+                         publishProgress(processed, total);
+                     }
+                 });
              }
- 
+
+             @Override
+             protected void onProgressUpdate(Integer... progress) {
+                 progressDialog.setMax(progress[1]);
+                 progressDialog.setProgress(progress[0]);
+             }
+
              @Override
              protected void onPostExecute(Integer result) {
-                 // 处理导出结果
+                 if (progressDialog.isShowing()) {
+                     progressDialog.dismiss();
+                 }
+                 // 处理导出结果，被取消时不再提示
                  if (result == BackupUtils.STATE_SD_CARD_UNMOUONTED) {
                      AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
                      builder.setTitle(NotesListActivity.this
@@ -915,9 +964,24 @@
                      builder.show();
                  }
              }
-         }.execute();
+         };
+
+         progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+             public void onCancel(DialogInterface dialog) {
+                 exportTask.cancel(false);
+                 backup.cancelExport(); // 导出线程在下一行返回STATE_CANCELLED
+             }
+         });
+         progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                 getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                     public void onClick(DialogInterface dialog, int which) {
+                         dialog.cancel();
+                     }
+                 });
+         progressDialog.show();
+         exportTask.execute();
      }
- 
+
      /**
       * 检查是否处于同步模式
       * @return true表示同步模式
@@ -940,6 +1004,10 @@
       */
      private class OnListItemClickListener implements OnItemClickListener {
          public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+             if (PagedNotesCursor.isPlaceholder(id)) {
+                 // 所在页尚未加载，等加载完成后再响应
+                 return;
+             }
              if (view instanceof NotesListItem) {
                  NoteItemData item = ((NotesListItem) view).getItemData();
                  if (mNotesListAdapter.isInChoiceMode()) {
@@ -1001,6 +1069,9 @@
      }
  
      public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+         if (PagedNotesCursor.isPlaceholder(id)) {
+             return true;
+         }
          if (view instanceof NotesListItem) {
              mFocusNoteDataItem = ((NotesListItem) view).getItemData();
              if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
@@ -40,6 +40,7 @@
      private HashMap<Integer, Boolean> mSelectedIndex; // 存储选中项的位置
      private int mNotesCount; // 笔记总数
      private boolean mChoiceMode; // 是否处于选择模式
+     private CallRecordResolver mCallRecordResolver; // 通话记录号码和联系人的批量解析器
  
      // 定义应用小部件属性类
      public static class AppWidgetAttribute {
@@ -56,6 +57,12 @@
          mSelectedIndex = new HashMap<Integer, Boolean>();
          mContext = context;
          mNotesCount = 0;
+         mCallRecordResolver = new CallRecordResolver(context);
+         mCallRecordResolver.setOnResolvedListener(new CallRecordResolver.OnResolvedListener() {
+             public void onCallRecordsResolved() {
+                 notifyDataSetChanged(); // 姓名解析完成后刷新可见项
+             }
+         });
      }
  
      /**
@@ -73,7 +80,7 @@
      public void bindView(View view, Context context, Cursor cursor) {
          if (view instanceof NotesListItem) {
              // 创建笔记项数据对象
-             NoteItemData itemData = new NoteItemData(context, cursor);
+             NoteItemData itemData = new NoteItemData(context, cursor, mCallRecordResolver);
              // 绑定数据到笔记列表项视图
              ((NotesListItem) view).bind(context, itemData, mChoiceMode,
                      isSelectedItem(cursor.getPosition()));
@@ -112,6 +119,15 @@
       */
      public void selectAll(boolean checked) {
          Cursor cursor = getCursor();
+         if (cursor instanceof PagedNotesCursor) {
+             // 分页游标中便签总是排在文件夹之后，不需要逐行加载判断类型
+             int count = getCount();
+             for (int i = count - ((PagedNotesCursor) cursor).getNoteCount(); i < count; i++) {
+                 mSelectedIndex.put(i, checked);
+             }
+             notifyDataSetChanged();
+             return;
+         }
          // 遍历所有项
          for (int i = 0; i < getCount(); i++) {
              if (cursor.moveToPosition(i)) {
@@ -155,7 +171,7 @@
                  Cursor c = (Cursor) getItem(position);
                  if (c != null) {
                      AppWidgetAttribute widget = new AppWidgetAttribute();
-                     NoteItemData item = new NoteItemData(mContext, c);
+                     NoteItemData item = new NoteItemData(mContext, c, mCallRecordResolver);
 
                      widget.widgetId = item.getWidgetId(); // 获取小部件ID
                      widget.widgetType = item.getWidgetType(); // 获取小部件类型
@@ -232,6 +248,12 @@
       */
      private void calcNotesCount() {
          mNotesCount = 0;
+         Cursor cursor = getCursor();
+         if (cursor instanceof PagedNotesCursor) {
+             // 分页游标在加载时已经统计过便签数量，避免为计数加载所有页
+             mNotesCount = ((PagedNotesCursor) cursor).getNoteCount();
+             return;
+         }
          // 遍历所有项
          for (int i = 0; i < getCount(); i++) {
              Cursor c = (Cursor) getItem(i);
@@ -46,6 +46,7 @@
  import net.micode.notes.R;
  import net.micode.notes.data.Notes;
  import net.micode.notes.data.Notes.NoteColumns;
+ import net.micode.notes.gtask.remote.DeltaSyncEngine;
  import net.micode.notes.gtask.remote.GTaskSyncService;
  
  /**
@@ -333,8 +334,9 @@
              }
              editor.commit();
  
-             // 重置最后同步时间
+             // 重置最后同步时间和增量同步水位
              setLastSyncTime(this, 0);
+             DeltaSyncEngine.resetWatermark(this);
  
              // 清除本地GTask相关信息
              new Thread(new Runnable() {
@@ -365,6 +367,7 @@
              editor.remove(PREFERENCE_LAST_SYNC_TIME);
          }
          editor.commit();
+         DeltaSyncEngine.resetWatermark(this);
  
          // 清除本地GTask相关信息
          new Thread(new Runnable() {
@@ -405,7 +408,7 @@
                  Context.MODE_PRIVATE);
          return settings.getLong(PREFERENCE_LAST_SYNC_TIME, 0);
      }
- 
+
      /**
       * 同步服务广播接收器
       */
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分页加载的便签列表游标
+ * 按(type, modified_date, _id)倒序做键集分页，每页单独查询，不依赖CursorWindow装下整个文件夹：
+ * 1. 首次加载只查询总数和第一页，首屏时间与文件夹大小无关
+ * 2. 滚动接近页尾时在后台预取相邻页
+ * 3. 内存中最多保留MAX_CACHED_PAGES页，被淘汰的页再次访问时按记录的锚点重新查询
+ * UI线程从不查询数据库：访问尚未加载的页时返回占位行并在后台加载，加载完成后通知适配器重新绑定；
+ * requery同样在后台重新计数，完成前继续显示旧的数据。
+ * 对CursorAdapter来说它就是一个普通的Cursor，列与NoteItemData.PROJECTION一致
+ */
+public class PagedNotesCursor extends AbstractCursor {
+    private static final String TAG = "PagedNotesCursor";
+
+    // 每页的行数
+    public static final int PAGE_SIZE = 50;
+
+    // 内存中最多保留的页数
+    private static final int MAX_CACHED_PAGES = 8;
+
+    // 距离页边界多少行时开始预取相邻页
+    private static final int PREFETCH_DISTANCE = 15;
+
+    private static final String SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    // 键集分页条件：排在锚点行之后的行
+    private static final String KEYSET_SELECTION = " AND (" + NoteColumns.TYPE + "<? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<?))))";
+
+    private static final String[] COUNT_PROJECTION = new String[] {
+        "COUNT(*)",
+        "SUM(CASE WHEN " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " THEN 1 ELSE 0 END)"
+    };
+
+    // 锚点中各字段的位置
+    private static final int ANCHOR_TYPE = 0;
+    private static final int ANCHOR_MODIFIED_DATE = 1;
+    private static final int ANCHOR_ID = 2;
+
+    // 所有列表共用的预取线程
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    // 占位行的ID，真实的便签和文件夹不会出现在列表中的这个ID上
+    public static final long PLACEHOLDER_ID = 0;
+
+    // 页尚未加载或数据已变化时返回的占位行，字段都是NoteItemData可以直接使用的默认值
+    private static final Object[] PLACEHOLDER_ROW = createPlaceholderRow();
+
+    private final ContentResolver mResolver;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    // 以下字段受this保护
+    private int mCount;
+    private int mNoteCount;
+    // 页号 -> 行数据，按访问顺序淘汰
+    private final LinkedHashMap<Integer, Object[][]> mPages =
+            new LinkedHashMap<Integer, Object[][]>(MAX_CACHED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+    // 第k项是第k页最后一行的键，加载第k+1页时作为锚点；页被淘汰后锚点仍然保留
+    private final ArrayList<long[]> mAnchors = new ArrayList<long[]>();
+    // 正在预取的页号，避免重复提交
+    private final ArrayList<Integer> mPrefetching = new ArrayList<Integer>();
+    // 每次重新计数后加一，丢弃按旧数据加载完成的页
+    private int mGeneration;
+
+    // 当前行，只在调用线程（UI线程）访问
+    private Object[] mRow = PLACEHOLDER_ROW;
+    // 是否返回过占位行，页加载完成后只在这种情况下通知适配器
+    private volatile boolean mPlaceholderShown;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 构造函数不做任何查询，需要在后台线程调用load后再交给适配器
+     * @param resolver 内容解析器
+     * @param selection 列表的查询条件
+     * @param selectionArgs 条件参数
+     */
+    public PagedNotesCursor(ContentResolver resolver, String selection, String[] selectionArgs) {
+        mResolver = resolver;
+        mSelection = "(" + selection + ")";
+        mSelectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+    }
+
+    /**
+     * 查询总数并加载第一页，会访问数据库，不要在UI线程调用
+     */
+    public void load() {
+        int[] counts = queryCounts();
+        Object[][] firstPage = counts[0] > 0 ? queryPage(null) : null;
+        reset(counts, firstPage);
+    }
+
+    /**
+     * 查询总数和便签数
+     */
+    private int[] queryCounts() {
+        int[] counts = new int[2];
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, COUNT_PROJECTION, mSelection,
+                mSelectionArgs, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    counts[0] = c.getInt(0);
+                    counts[1] = c.getInt(1);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 用新的计数和第一页替换缓存，之前开始的页加载结果作废
+     */
+    private synchronized void reset(int[] counts, Object[][] firstPage) {
+        mGeneration++;
+        mPages.clear();
+        mAnchors.clear();
+        mCount = counts[0];
+        mNoteCount = counts[1];
+        if (firstPage != null) {
+            cachePage(0, firstPage);
+        }
+    }
+
+    /**
+     * 判断列表项是否为尚未加载的占位行，占位行不能打开也不能选中
+     * @param id 列表项的ID
+     */
+    public static boolean isPlaceholder(long id) {
+        return id == PLACEHOLDER_ID;
+    }
+
+    /**
+     * 获取普通便签（非文件夹）的数量
+     * 由于排序时文件夹在前，便签总是位于列表末尾的getNoteCount()行
+     */
+    public synchronized int getNoteCount() {
+        return mNoteCount;
+    }
+
+    @Override
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return NoteItemData.PROJECTION;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int page = newPosition / PAGE_SIZE;
+        int offset = newPosition % PAGE_SIZE;
+        Object[][] rows;
+        synchronized (this) {
+            rows = mPages.get(page);
+        }
+        if (rows == null) {
+            // 页尚未加载，先显示占位行，加载完成后适配器会重新绑定
+            prefetch(page);
+            mRow = PLACEHOLDER_ROW;
+            mPlaceholderShown = true;
+        } else {
+            // 数据在计数之后发生了变化时页可能不满，内容观察者随后会触发requery，这里先返回占位行
+            mRow = offset < rows.length ? rows[offset] : PLACEHOLDER_ROW;
+        }
+
+        if (offset >= PAGE_SIZE - PREFETCH_DISTANCE) {
+            prefetch(page + 1);
+        } else if (offset < PREFETCH_DISTANCE && page > 0) {
+            prefetch(page - 1);
+        }
+        return true;
+    }
+
+    /**
+     * 获取指定页，没有缓存时同步加载，只在后台线程调用
+     * 加载第k页需要第k-1页的锚点，锚点缺失时从已知的最后一个锚点开始依次加载
+     */
+    private Object[][] getPage(int page) {
+        synchronized (this) {
+            Object[][] rows = mPages.get(page);
+            if (rows != null) {
+                return rows;
+            }
+        }
+
+        int start;
+        synchronized (this) {
+            start = Math.min(page, mAnchors.size());
+        }
+        Object[][] rows = null;
+        for (int p = start; p <= page; p++) {
+            rows = loadPage(p);
+            if (p < page && (rows == null || rows.length < PAGE_SIZE)) {
+                return null;  // 目标页之前已经到达末尾
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 查询并缓存第page页，调用时第page-1页的锚点必须已经存在
+     */
+    private Object[][] loadPage(int page) {
+        long[] anchor = null;
+        int generation;
+        synchronized (this) {
+            if (page > mAnchors.size()) {
+                return null;
+            }
+            if (page > 0) {
+                anchor = mAnchors.get(page - 1);
+            }
+            generation = mGeneration;
+        }
+
+        Object[][] rows = queryPage(anchor);
+        if (rows == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // 加载期间数据已重新计数，锚点和页号都可能已经失效
+                return null;
+            }
+            cachePage(page, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * 缓存一页并记录它的锚点，调用方需持有this锁
+     */
+    private void cachePage(int page, Object[][] rows) {
+        mPages.put(page, rows);
+        if (rows.length > 0 && page == mAnchors.size()) {
+            Object[] last = rows[rows.length - 1];
+            mAnchors.add(new long[] {
+                toLong(last[NoteItemData.TYPE_COLUMN]),
+                toLong(last[NoteItemData.MODIFIED_DATE_COLUMN]),
+                toLong(last[NoteItemData.ID_COLUMN])
+            });
+        }
+    }
+
+    /**
+     * 查询锚点之后的一页，anchor为null时查询第一页
+     */
+    private Object[][] queryPage(long[] anchor) {
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+        if (anchor != null) {
+            selection = mSelection + KEYSET_SELECTION;
+            selectionArgs = new String[mSelectionArgs.length + 5];
+            System.arraycopy(mSelectionArgs, 0, selectionArgs, 0, mSelectionArgs.length);
+            int i = mSelectionArgs.length;
+            selectionArgs[i++] = String.valueOf(anchor[ANCHOR_TYPE]);
+            selectionArgs[i++] = String.valueOf(anchor[ANCHOR_TYPE]);
+            selectionArgs[i++] = String.valueOf(anchor[ANCHOR_MODIFIED_DATE]);
+            selectionArgs[i++] = String.valueOf(anchor[ANCHOR_MODIFIED_DATE]);
+            selectionArgs[i] = String.valueOf(anchor[ANCHOR_ID]);
+        }
+
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                .build();
+        Cursor c = mResolver.query(uri, NoteItemData.PROJECTION, selection, selectionArgs,
+                SORT_ORDER);
+        if (c == null) {
+            Log.e(TAG, "Query page failed");
+            return null;
+        }
+
+        Object[][] rows;
+        try {
+            rows = new Object[c.getCount()][];
+            int columnCount = c.getColumnCount();
+            for (int r = 0; c.moveToNext(); r++) {
+                Object[] row = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = c.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = c.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = c.getString(i);
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                rows[r] = row;
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    /**
+     * 在后台线程加载相邻页
+     */
+    private void prefetch(final int page) {
+        synchronized (this) {
+            if (page < 0 || page * PAGE_SIZE >= mCount || mPages.containsKey(page)
+                    || mPrefetching.contains(page)) {
+                return;
+            }
+            mPrefetching.add(page);
+        }
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                boolean loaded = false;
+                try {
+                    if (!isClosed()) {
+                        loaded = getPage(page) != null;
+                    }
+                } finally {
+                    synchronized (PagedNotesCursor.this) {
+                        mPrefetching.remove(Integer.valueOf(page));
+                    }
+                }
+                if (loaded && mPlaceholderShown) {
+                    notifyRowsChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * 数据发生变化时在后台重新计数并加载第一页，完成后在UI线程替换缓存并通知适配器
+     * 与原先的全量requery相比，这里只做计数查询和一页查询，且不阻塞UI线程。
+     * 行数只在UI线程改变，ListView不会看到未经通知的行数变化
+     */
+    @Override
+    public boolean requery() {
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                if (isClosed()) {
+                    return;
+                }
+                final int[] counts = queryCounts();
+                final Object[][] firstPage = counts[0] > 0 ? queryPage(null) : null;
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (!isClosed()) {
+                            reset(counts, firstPage);
+                            invalidateRows();
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 在UI线程通知适配器有页加载完成
+     */
+    private void notifyRowsChanged() {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                if (!isClosed()) {
+                    invalidateRows();
+                }
+            }
+        });
+    }
+
+    /**
+     * 让当前行失效并通知适配器重新绑定，只在UI线程调用
+     */
+    private void invalidateRows() {
+        // moveToPosition到相同位置时不会调用onMove，先让当前行失效
+        mPos = -1;
+        mRow = PLACEHOLDER_ROW;
+        mPlaceholderShown = false;
+        super.requery();
+    }
+
+    private static Object[] createPlaceholderRow() {
+        Object[] row = new Object[NoteItemData.PROJECTION.length];
+        for (int i = 0; i < row.length; i++) {
+            String column = NoteItemData.PROJECTION[i];
+            if (NoteColumns.SNIPPET.equals(column)) {
+                row[i] = "";
+            } else if (NoteColumns.WIDGET_TYPE.equals(column)) {
+                row[i] = Long.valueOf(Notes.TYPE_WIDGET_INVALIDE);
+            } else if (NoteColumns.ID.equals(column)) {
+                row[i] = Long.valueOf(PLACEHOLDER_ID);
+            } else {
+                row[i] = Long.valueOf(0);
+            }
+        }
+        return row;
+    }
+
+    private Object getValue(int column) {
+        checkPosition();
+        return mRow[column];
+    }
+
+    private static long toLong(Object value) {
+        return (value instanceof Number) ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = getValue(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) toLong(getValue(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) toLong(getValue(column));
+    }
+
+    @Override
+    public long getLong(int column) {
+        return toLong(getValue(column));
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = getValue(column);
+        return (value instanceof Number) ? ((Number) value).doubleValue() : 0;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getValue(column) == null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = getValue(column);
+        if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Double) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (value instanceof Long) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (this) {
+            mPages.clear();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+/**
+ * 便签提醒调度
+ * 系统中始终只注册一个闹钟，指向下一个到期的便签提醒：
+ * 1. 闹钟触发后调用scheduleAfter，记下刚触发的提醒，并从它之后继续查找，同一时间的多个提醒依次触发
+ * 2. 开机、提醒时间被修改、同步或恢复备份后调用scheduleNext，从上次触发的提醒之后查找，
+ *    关机期间或设置时已经过期、还没有提醒过的便签会立即触发
+ * 查找使用(alert_date, type)索引并只取第一行，开机时不再为每个便签注册闹钟
+ */
+public class ReminderScheduler {
+    private static final String TAG = "ReminderScheduler";
+
+    // 闹钟广播的Action，所有提醒共用同一个PendingIntent
+    public static final String ACTION_REMINDER = "net.micode.notes.action.REMINDER";
+
+    // 触发的便签ID和提醒时间
+    public static final String EXTRA_NOTE_ID = "net.micode.notes.extra.NOTE_ID";
+    public static final String EXTRA_ALERT_DATE = "net.micode.notes.extra.ALERT_DATE";
+
+    private static final int REQUEST_CODE = 0;
+
+    // 上次触发的提醒时间和便签ID，scheduleNext从它之后查找
+    private static final String PREFERENCE_LAST_ALERT_DATE = "pref_reminder_last_alert_date";
+    private static final String PREFERENCE_LAST_NOTE_ID = "pref_reminder_last_note_id";
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.ALERTED_DATE
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_ALERTED_DATE = 1;
+
+    // 普通便签且不在回收站中
+    private static final String SELECTION_VISIBLE = " AND " + NoteColumns.TYPE + "="
+            + Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+
+    private static final String SORT_ORDER = NoteColumns.ALERTED_DATE + " ASC,"
+            + NoteColumns.ID + " ASC";
+
+    private ReminderScheduler() {
+    }
+
+    /**
+     * 注册上次触发的提醒之后最早的提醒，包括已经过期但还没有提醒过的，
+     * 没有待触发的提醒时取消已注册的闹钟
+     */
+    public static void scheduleNext(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(PREFERENCE_LAST_ALERT_DATE)) {
+            // 第一次调度（如从旧版本升级），此前到期的提醒已由旧版本注册的闹钟处理，
+            // 之后到期的改由这里注册的闹钟触发，旧版本的闹钟需要取消，否则会重复提醒
+            long now = System.currentTimeMillis();
+            cancelLegacyAlarms(context, now);
+            preferences.edit()
+                    .putLong(PREFERENCE_LAST_ALERT_DATE, now)
+                    .putLong(PREFERENCE_LAST_NOTE_ID, 0)
+                    .commit();
+        }
+        schedule(context, preferences.getLong(PREFERENCE_LAST_ALERT_DATE, 0),
+                preferences.getLong(PREFERENCE_LAST_NOTE_ID, 0));
+    }
+
+    /**
+     * 记下刚触发的提醒，并注册排在(alertDate, noteId)之后的下一个提醒
+     * 与刚触发的提醒时间相同、ID更大的便签会立即触发
+     * @param alertDate 刚触发的提醒时间
+     * @param noteId 刚触发的便签ID
+     */
+    public static void scheduleAfter(Context context, long alertDate, long noteId) {
+        getPreferences(context).edit()
+                .putLong(PREFERENCE_LAST_ALERT_DATE, alertDate)
+                .putLong(PREFERENCE_LAST_NOTE_ID, noteId)
+                .commit();
+        schedule(context, alertDate, noteId);
+    }
+
+    /**
+     * 取消旧版本为单个便签注册的闹钟（Intent带便签URI），修改或清除提醒后它不应再按原时间触发
+     */
+    public static void cancelLegacyAlarm(Context context, long noteId) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /**
+     * 取消旧版本为提醒时间晚于now的便签注册的闹钟
+     */
+    private static void cancelLegacyAlarms(Context context, long now) {
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID },
+                NoteColumns.ALERTED_DATE + ">?",
+                new String[] { String.valueOf(now) }, null);
+        if (c == null) {
+            Log.e(TAG, "Query legacy reminders failed");
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                cancelLegacyAlarm(context, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 注册排在(alertDate, noteId)之后的第一个提醒，提醒时间已过时闹钟立即触发
+     */
+    private static void schedule(Context context, long afterDate, long afterNoteId) {
+        String date = String.valueOf(afterDate);
+        Cursor c = context.getContentResolver().query(
+                Notes.CONTENT_NOTE_URI.buildUpon()
+                        .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, "1").build(),
+                PROJECTION,
+                NoteColumns.ALERTED_DATE + ">0 AND " + NoteColumns.ALERTED_DATE + ">=? AND NOT ("
+                        + NoteColumns.ALERTED_DATE + "=? AND " + NoteColumns.ID + "<=?)"
+                        + SELECTION_VISIBLE,
+                new String[] { date, date, String.valueOf(afterNoteId) }, SORT_ORDER);
+        if (c == null) {
+            Log.e(TAG, "Query next reminder failed");
+            return;
+        }
+
+        long noteId = 0;
+        long alertDate = 0;
+        try {
+            if (c.moveToFirst()) {
+                noteId = c.getLong(COLUMN_ID);
+                alertDate = c.getLong(COLUMN_ALERTED_DATE);
+            }
+        } finally {
+            c.close();
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (noteId == 0) {
+            // 没有待触发的提醒
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, REQUEST_CODE,
+                    new Intent(context, AlarmReceiver.class).setAction(ACTION_REMINDER),
+                    PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+            Log.d(TAG, "No pending reminder");
+            return;
+        }
+
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setAction(ACTION_REMINDER);
+        intent.putExtra(EXTRA_NOTE_ID, noteId);
+        intent.putExtra(EXTRA_ALERT_DATE, alertDate);
+        // Intent不带Data，每次都更新同一个PendingIntent，新闹钟替换旧闹钟
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, REQUEST_CODE, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, alertDate, pendingIntent);
+        Log.d(TAG, "Next reminder: note " + noteId + " at " + alertDate);
+    }
+}
@@ -22,14 +22,11 @@ import android.appwidget.AppWidgetProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.util.Log;
 import android.widget.RemoteViews;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NoteEditActivity;
 import net.micode.notes.ui.NotesListActivity;
 
@@ -51,6 +48,10 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
 
     private static final String TAG = "NoteWidgetProvider"; // 日志标签
 
+    // 各类型小部件的绘制实例，供WidgetUpdater使用
+    private static final NoteWidgetProvider sProvider2x = new NoteWidgetProvider_2x();
+    private static final NoteWidgetProvider sProvider4x = new NoteWidgetProvider_4x();
+
     /**
      * 当小部件被删除时调用，清除数据库中对应的widget_id
      */
@@ -66,90 +67,74 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
                     NoteColumns.WIDGET_ID + "=?", // WHERE条件：匹配当前widget_id
                     new String[] { String.valueOf(appWidgetIds[i]) });
         }
+        WidgetUpdater.getInstance(context).forget(appWidgetIds);
     }
 
     /**
-     * 查询指定widget_id对应的便签信息
-     * 
-     * @param widgetId 小部件ID
-     * @return 包含便签数据的游标
+     * 更新小部件显示的公开方法
+     * 由WidgetUpdater用一次查询取得所有小部件的内容后统一绘制
      */
-    private Cursor getNoteWidgetInfo(Context context, int widgetId) {
-        return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?", // 条件：匹配widget_id且不在回收站
-                new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
-                null);
+    protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        WidgetUpdater.getInstance(context).updateNow(appWidgetIds, getWidgetType());
     }
 
     /**
-     * 更新小部件显示的公开方法
+     * 根据小部件类型取得对应的提供者，用于绘制
+     * @return 不支持的类型返回null
      */
-    protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        update(context, appWidgetManager, appWidgetIds, false); // 默认非隐私模式
+    static NoteWidgetProvider forType(int widgetType) {
+        if (widgetType == Notes.TYPE_WIDGET_2X) {
+            return sProvider2x;
+        } else if (widgetType == Notes.TYPE_WIDGET_4X) {
+            return sProvider4x;
+        }
+        return null;
     }
 
     /**
-     * 核心更新逻辑：设置小部件外观和点击行为
-     * 
-     * @param privacyMode 是否为隐私模式（显示占位文本）
+     * 核心绘制逻辑：设置小部件外观和点击行为
+     *
+     * @param state 小部件应显示的内容，隐私模式时显示占位文本
      */
-    private void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds,
-            boolean privacyMode) {
-        for (int i = 0; i < appWidgetIds.length; i++) {
-            if (appWidgetIds[i] != AppWidgetManager.INVALID_APPWIDGET_ID) {
-                int bgId = ResourceParser.getDefaultBgId(context); // 默认背景色
-                String snippet = ""; // 内容片段
-                Intent intent = new Intent(context, NoteEditActivity.class);
-                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP); // 单例模式启动
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetIds[i]); // 传递widget_id
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType()); // 传递小部件类型
-
-                // 查询数据库获取便签信息
-                Cursor c = getNoteWidgetInfo(context, appWidgetIds[i]);
-                if (c != null && c.moveToFirst()) {
-                    if (c.getCount() > 1) {
-                        Log.e(TAG, "同一个widget_id对应多个便签:" + appWidgetIds[i]);
-                        c.close();
-                        return; // 数据异常直接返回
-                    }
-                    snippet = c.getString(COLUMN_SNIPPET); // 获取内容
-                    bgId = c.getInt(COLUMN_BG_COLOR_ID); // 获取背景色
-                    intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID)); // 传递便签ID
-                    intent.setAction(Intent.ACTION_VIEW); // 查看模式
-                } else {
-                    // 无关联便签时显示默认提示
-                    snippet = context.getResources().getString(R.string.widget_havenot_content);
-                    intent.setAction(Intent.ACTION_INSERT_OR_EDIT); // 新建便签模式
-                }
-
-                if (c != null) {
-                    c.close(); // 关闭游标释放资源
-                }
-
-                // 构建RemoteViews对象
-                RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
-                rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId)); // 设置背景
-                intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId); // 传递背景色
-
-                // 创建点击事件的PendingIntent
-                PendingIntent pendingIntent = null;
-                if (privacyMode) {
-                    // 隐私模式：显示占位文本，点击进入列表页
-                    rv.setTextViewText(R.id.widget_text, context.getString(R.string.widget_under_visit_mode));
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], new Intent(
-                            context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-                } else {
-                    // 正常模式：显示内容片段，点击进入编辑页
-                    rv.setTextViewText(R.id.widget_text, snippet);
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], intent,
-                            PendingIntent.FLAG_UPDATE_CURRENT);
-                }
-
-                rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent); // 绑定点击事件
-                appWidgetManager.updateAppWidget(appWidgetIds[i], rv); // 更新小部件
-            }
+    RemoteViews buildViews(Context context, int appWidgetId, WidgetUpdater.WidgetState state) {
+        int bgId = state.bgId;
+        Intent intent = new Intent(context, NoteEditActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP); // 单例模式启动
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetId); // 传递widget_id
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType()); // 传递小部件类型
+
+        String snippet;
+        if (state.noteId > 0) {
+            snippet = state.snippet; // 获取内容
+            intent.putExtra(Intent.EXTRA_UID, state.noteId); // 传递便签ID
+            intent.setAction(Intent.ACTION_VIEW); // 查看模式
+        } else {
+            // 无关联便签时显示默认提示
+            snippet = context.getResources().getString(R.string.widget_havenot_content);
+            intent.setAction(Intent.ACTION_INSERT_OR_EDIT); // 新建便签模式
         }
+
+        // 构建RemoteViews对象
+        RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
+        rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId)); // 设置背景
+        intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId); // 传递背景色
+
+        // 创建点击事件的PendingIntent
+        PendingIntent pendingIntent = null;
+        if (state.privacyMode) {
+            // 隐私模式：显示占位文本，点击进入列表页
+            rv.setTextViewText(R.id.widget_text, context.getString(R.string.widget_under_visit_mode));
+            pendingIntent = PendingIntent.getActivity(context, appWidgetId, new Intent(
+                    context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        } else {
+            // 正常模式：显示内容片段，点击进入编辑页
+            rv.setTextViewText(R.id.widget_text, snippet);
+            pendingIntent = PendingIntent.getActivity(context, appWidgetId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+
+        rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent); // 绑定点击事件
+        return rv;
     }
 
     // --------------- 需要子类实现的抽象方法 ---------------
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.ResourceParser;
+
+/**
+ * 便签小部件的更新服务
+ * 1. 保存便签等操作通过requestUpdate请求更新，合并窗口内的多次请求只执行一次
+ * 2. 一次更新的所有小部件用一条IN查询取得对应便签，不再逐个查询
+ * 3. 记录每个小部件上次显示的内容，可见内容没有变化时不调用updateAppWidget
+ * 系统发起的更新（onUpdate）总是重新绘制，因为桌面可能已经丢失了之前的视图
+ */
+public class WidgetUpdater {
+    private static final String TAG = "WidgetUpdater";
+
+    // 合并窗口（毫秒），窗口内的连续保存只触发一次更新
+    private static final long UPDATE_DELAY_MS = 500;
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.WIDGET_ID,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.SNIPPET
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_WIDGET_ID = 1;
+    private static final int COLUMN_BG_COLOR_ID = 2;
+    private static final int COLUMN_SNIPPET = 3;
+
+    private static WidgetUpdater sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // 等待更新的小部件ID到类型的映射，受this保护
+    private final SparseIntArray mPending = new SparseIntArray();
+    private boolean mUpdateScheduled;
+
+    // 每个小部件上次绘制的内容，受mRendered保护
+    private final SparseArray<WidgetState> mRendered = new SparseArray<WidgetState>();
+
+    /**
+     * 小部件的可见内容
+     */
+    static class WidgetState {
+        final long noteId;      // 对应的便签ID，没有对应便签时为0
+        final int bgId;         // 背景颜色ID
+        final String snippet;   // 显示的内容片段，没有对应便签时为null
+        final boolean privacyMode;
+
+        WidgetState(long noteId, int bgId, String snippet, boolean privacyMode) {
+            this.noteId = noteId;
+            this.bgId = bgId;
+            this.snippet = snippet;
+            this.privacyMode = privacyMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WidgetState)) {
+                return false;
+            }
+            WidgetState other = (WidgetState) o;
+            return noteId == other.noteId && bgId == other.bgId
+                    && privacyMode == other.privacyMode
+                    && TextUtils.equals(snippet, other.snippet);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) noteId * 31 + bgId;
+        }
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        public void run() {
+            SparseIntArray widgets;
+            synchronized (WidgetUpdater.this) {
+                widgets = mPending.clone();
+                mPending.clear();
+                mUpdateScheduled = false;
+            }
+            update(widgets, false);
+        }
+    };
+
+    public static synchronized WidgetUpdater getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetUpdater(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetUpdater(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * 请求更新一个小部件，在合并窗口结束后于后台线程执行
+     * @param widgetId 小部件ID
+     * @param widgetType 小部件类型，Notes.TYPE_WIDGET_2X或TYPE_WIDGET_4X
+     */
+    public void requestUpdate(int widgetId, int widgetType) {
+        if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID
+                || NoteWidgetProvider.forType(widgetType) == null) {
+            Log.e(TAG, "Unspported widget " + widgetId + " type " + widgetType);
+            return;
+        }
+        synchronized (this) {
+            mPending.put(widgetId, widgetType);
+            if (!mUpdateScheduled) {
+                mUpdateScheduled = true;
+                mHandler.postDelayed(mUpdateRunnable, UPDATE_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * 立即重新绘制同一类型的一组小部件，用于系统发起的更新
+     */
+    public void updateNow(int[] widgetIds, int widgetType) {
+        SparseIntArray widgets = new SparseIntArray(widgetIds.length);
+        for (int widgetId : widgetIds) {
+            if (widgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                widgets.put(widgetId, widgetType);
+            }
+        }
+        update(widgets, true);
+    }
+
+    /**
+     * 小部件被删除后清除其绘制记录
+     */
+    public void forget(int[] widgetIds) {
+        synchronized (mRendered) {
+            for (int widgetId : widgetIds) {
+                mRendered.remove(widgetId);
+            }
+        }
+    }
+
+    private void update(SparseIntArray widgets, boolean force) {
+        if (widgets.size() == 0) {
+            return;
+        }
+        SparseArray<WidgetState> states = queryStates(widgets);
+        if (states == null) {
+            return;
+        }
+
+        AppWidgetManager manager = AppWidgetManager.getInstance(mContext);
+        int skipped = 0;
+        for (int i = 0; i < widgets.size(); i++) {
+            int widgetId = widgets.keyAt(i);
+            WidgetState state = states.get(widgetId);
+            if (state == null) {
+                continue;
+            }
+            synchronized (mRendered) {
+                if (!force && state.equals(mRendered.get(widgetId))) {
+                    skipped++;
+                    continue;
+                }
+                mRendered.put(widgetId, state);
+            }
+            NoteWidgetProvider provider = NoteWidgetProvider.forType(widgets.valueAt(i));
+            manager.updateAppWidget(widgetId, provider.buildViews(mContext, widgetId, state));
+        }
+        if (skipped > 0) {
+            Log.d(TAG, "Skipped " + skipped + " unchanged widgets");
+        }
+    }
+
+    /**
+     * 用一条查询取得所有小部件当前应显示的内容
+     * @return 小部件ID到内容的映射，同一小部件对应多个便签时不包含该小部件；查询失败时为null
+     */
+    private SparseArray<WidgetState> queryStates(SparseIntArray widgets) {
+        StringBuilder selection = new StringBuilder();
+        selection.append(NoteColumns.WIDGET_ID).append(" IN (");
+        String[] selectionArgs = new String[widgets.size() + 1];
+        for (int i = 0; i < widgets.size(); i++) {
+            selection.append(i > 0 ? ",?" : "?");
+            selectionArgs[i] = String.valueOf(widgets.keyAt(i));
+        }
+        selection.append(") AND ").append(NoteColumns.PARENT_ID).append("<>?");
+        selectionArgs[widgets.size()] = String.valueOf(Notes.ID_TRASH_FOLER);
+
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (c == null) {
+            Log.e(TAG, "Query widget notes failed");
+            return null;
+        }
+
+        SparseArray<WidgetState> states = new SparseArray<WidgetState>(widgets.size());
+        SparseIntArray counts = new SparseIntArray();
+        try {
+            while (c.moveToNext()) {
+                int widgetId = c.getInt(COLUMN_WIDGET_ID);
+                counts.put(widgetId, counts.get(widgetId) + 1);
+                states.put(widgetId, new WidgetState(c.getLong(COLUMN_ID),
+                        c.getInt(COLUMN_BG_COLOR_ID), c.getString(COLUMN_SNIPPET), false));
+            }
+        } finally {
+            c.close();
+        }
+
+        int defaultBgId = ResourceParser.getDefaultBgId(mContext);
+        for (int i = 0; i < widgets.size(); i++) {
+            int widgetId = widgets.keyAt(i);
+            if (counts.get(widgetId) > 1) {
+                Log.e(TAG, "同一个widget_id对应多个便签:" + widgetId);
+                states.remove(widgetId);
+            } else if (counts.get(widgetId) == 0) {
+                // 无关联便签时显示默认提示
+                states.put(widgetId, new WidgetState(0, defaultBgId, null, false));
+            }
+        }
+        return states;
+    }
+}